@@ -5,6 +5,7 @@ import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
+import frc.robot.subsystems.drive.DriveConstants;
 import frc.robot.util.RioAlerts;
 import frc.robot.util.SparkUtil;
 
@@ -49,6 +50,10 @@ public class Robot extends LoggedRobot {
                 Logger.recordMetadata("GitDirty", "Unknown");
                 break;
         }
+        var odometryPlan = DriveConstants.odometryPlan;
+        Logger.recordMetadata("OdometryFrequency", Double.toString(odometryPlan.odometryFrequency()));
+        Logger.recordMetadata("EstimatedCANUtilization", String.format("%.1f%% (ceiling %.1f%%)",
+            odometryPlan.utilization() * 100, odometryPlan.utilizationCeiling() * 100));
 
         // Set up data receivers & replay source
         switch(Constants.currentMode) {
@@ -126,6 +126,9 @@ public class RobotContainer {
         routines = new AutoRoutines(drive, roller, autoChooser);
 
         DriveTuningCommands.addTuningCommandsToAutoChooser(drive, autoChooser);
+        if(driveSimulation != null) {
+            DriveTuningCommands.addSimulationTuningCommandsToAutoChooser(drive, driveSimulation, autoChooser);
+        }
         VisionTuningCommands.addTuningCommandsToAutoChooser(vision, autoChooser);
 
         // Configure the button bindings
@@ -3,6 +3,7 @@ package frc.robot;
 import java.util.Optional;
 import java.util.function.Consumer;
 import org.littletonrobotics.junction.AutoLogOutput;
+import org.littletonrobotics.junction.Logger;
 
 import edu.wpi.first.math.Matrix;
 import edu.wpi.first.math.geometry.Pose2d;
@@ -10,16 +11,23 @@ import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Transform2d;
 import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
-import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.DriverStation.Alliance;
+import edu.wpi.first.wpilibj.Timer;
 import frc.robot.subsystems.drive.DriveConstants;
+import frc.robot.subsystems.drive.SparkOdometryThread;
 import frc.robot.util.DriverStationInterface;
 import frc.robot.util.FlippingUtil;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import frc.robot.util.poseEstimator.EKFSwervePoseEstimator;
 import frc.robot.util.poseEstimator.OdometrySwerveDrivePoseEstimator;
+import frc.robot.util.poseEstimator.PoseVelocityEstimator;
+import frc.robot.util.poseEstimator.SwervePoseEstimator;
+import frc.robot.util.poseEstimator.VisionMeasurementBatch;
 
 /**
  * A singleton class that holds the state of the robot. This holds state that doesn't directly control mechanisms and
@@ -42,16 +50,88 @@ public class RobotState {
         // Private constructor to enforce singleton
     }
 
-    public SwerveDriveKinematics kinematics = new SwerveDriveKinematics(DriveConstants.moduleTranslations);
-    private Rotation2d rawGyroRotation = Rotation2d.kZero;
+    /**
+     * An immutable view of the robot state, published once per loop. Threads other than the main loop should read
+     * state through {@link RobotState#getSnapshot()} instead of the other getters, which read mutable state that the
+     * main loop may be updating.
+     * @param timestamp The time of the newest odometry sample included in the pose, in seconds. Before the first
+     *            sample, this is the time the snapshot was published.
+     * @param pose The estimated field pose.
+     * @param fieldVxMetersPerSecond The filtered field-relative x velocity.
+     * @param fieldVyMetersPerSecond The filtered field-relative y velocity.
+     * @param omegaRadiansPerSecond The filtered angular velocity.
+     * @param shouldFlip If we're on the red alliance, so blue-origin field positions should be flipped.
+     */
+    public static record Snapshot(double timestamp, Pose2d pose, double fieldVxMetersPerSecond,
+        double fieldVyMetersPerSecond, double omegaRadiansPerSecond, boolean shouldFlip) {
+        /** Returns the filtered field-relative velocity. */
+        public ChassisSpeeds fieldVelocity() {
+            return new ChassisSpeeds(fieldVxMetersPerSecond, fieldVyMetersPerSecond, omegaRadiansPerSecond);
+        }
 
-    // For delta tracking
-    private SwerveModulePosition[] lastModulePositions = new SwerveModulePosition[] {
-        new SwerveModulePosition(), new SwerveModulePosition(), new SwerveModulePosition(), new SwerveModulePosition()
-    };
+        /** Returns the filtered linear speed in meters per second. */
+        public double linearSpeed() {
+            return Math.hypot(fieldVxMetersPerSecond, fieldVyMetersPerSecond);
+        }
+    }
+
+    /** The last valid gyro yaw, in radians. */
+    private double rawGyroYawRad = 0.0;
+
+    // For holding the positions of invalid modules
+    private final MutableSwerveModulePosition[] lastModulePositions = MutableSwerveModulePosition.createArray(4);
+
+    private SwervePoseEstimator poseEstimator = createPoseEstimator();
+
+    private static SwervePoseEstimator createPoseEstimator() {
+        SwerveModulePosition[] modulePositions = new SwerveModulePosition[] {
+            new SwerveModulePosition(), new SwerveModulePosition(), new SwerveModulePosition(), new SwerveModulePosition()
+        };
+        if(DriveConstants.useEKFPoseEstimator) {
+            return new EKFSwervePoseEstimator(DriveConstants.moduleTranslations, Rotation2d.kZero, modulePositions,
+                Pose2d.kZero, DriveConstants.secondOrderOdometry);
+        }
+        return new OdometrySwerveDrivePoseEstimator(DriveConstants.moduleTranslations, Rotation2d.kZero,
+            modulePositions, Pose2d.kZero, DriveConstants.secondOrderOdometry);
+    }
 
-    private OdometrySwerveDrivePoseEstimator poseEstimator = new OdometrySwerveDrivePoseEstimator(kinematics,
-        rawGyroRotation, lastModulePositions, Pose2d.kZero);
+    // Enough for the fit window at odometry rates up to ~640Hz
+    private final PoseVelocityEstimator odometryVelocityEstimator = new PoseVelocityEstimator(64,
+        DriveConstants.velocityFitWindow);
+    /** The timestamp of the newest odometry sample. */
+    private double lastOdometryTimestamp = Double.NaN;
+    // Scratch space for the filtered velocity
+    private final MutablePose2d velocityOdometryPose = new MutablePose2d();
+    private final MutablePose2d velocityEstimatedPose = new MutablePose2d();
+    private final double[] velocityScratch = new double[3];
+    private final double[] accelerationScratch = new double[3];
+
+    /**
+     * A filtered proxy for the time from the newest odometry sample to when the setpoints computed from it are
+     * written, in seconds. It's the age of the newest sample at the start of the loop plus the expected wait before
+     * the setpoints are written, not a measurement of the write itself. Both timestamps are logged, so it's reproduced
+     * exactly in replay.
+     */
+    @AutoLogOutput(key = "Odometry/Prediction/EstimatedControlLatency")
+    private double estimatedControlLatency = DriveConstants.initialControlLatency;
+    /** The weight of each new estimate in the filtered estimate. */
+    private static final double CONTROL_LATENCY_FILTER_GAIN = 0.1;
+    /** Estimates above this are ignored, like the first loop after a long pause. */
+    private static final double MAX_CONTROL_LATENCY = 0.1;
+    // The newest prediction, checked against the estimate once odometry reaches its time
+    private final MutablePose2d pendingPrediction = new MutablePose2d();
+    private double pendingPredictionTimestamp = Double.NaN;
+    private final MutablePose2d predictionCheckPose = new MutablePose2d();
+    /** When the pose estimate was last reset with {@link #setPose}, or negative infinity if it hasn't been. */
+    private double lastPoseResetTimestamp = Double.NEGATIVE_INFINITY;
+
+    // The latest pose, recomputed only when the estimate or the odometry thread's movement changes
+    private Pose2d latestPoseBase = null;
+    private Optional<Transform2d> latestPoseMovement = Optional.empty();
+    private Pose2d latestPose = null;
+
+    /** The newest snapshot. Replaced, never modified, so readers on any thread see a consistent state. */
+    private volatile Snapshot snapshot = new Snapshot(0.0, Pose2d.kZero, 0.0, 0.0, 0.0, false);
 
     public Consumer<Pose2d> resetSimulationPoseCallback = (pose) -> {
     };
@@ -61,8 +141,23 @@ public class RobotState {
      */
     public boolean pieceVisionDisconnected = false;
 
+    /** The number of module samples that were invalid, so the module's last valid position was held instead. */
+    @AutoLogOutput(key = "Odometry/HeldModuleSamples")
+    private long heldModuleSamples = 0;
+
+    /** The number of odometry samples where any module was flagged as slipping. */
+    @AutoLogOutput(key = "Odometry/Slip/Samples")
+    private long slipSamples = 0;
+    /** The number of odometry samples each module was flagged as slipping in. */
+    @AutoLogOutput(key = "Odometry/Slip/ModuleSamples")
+    private final long[] moduleSlipSamples = new long[4];
+    /** The timestamp of the newest odometry sample with a slipping module. */
+    @AutoLogOutput(key = "Odometry/Slip/LastTimestamp")
+    private double lastSlipTimestamp = Double.NEGATIVE_INFINITY;
+    private final boolean[] slippingModules = new boolean[4];
+
     @AutoLogOutput(key = "Odometry/RobotVelocity")
-    private ChassisSpeeds robotVelocity = new ChassisSpeeds();
+    private final ChassisSpeeds robotVelocity = new ChassisSpeeds();
 
     /**
      * Gets the pose at the specified timestamp. This includes vision compensation, so it's a real estimated field pose.
@@ -71,6 +166,26 @@ public class RobotState {
         return poseEstimator.sampleAt(timestamp);
     }
 
+    /**
+     * Gets the pose at the specified timestamp without allocating. This includes vision compensation, so it's a real
+     * estimated field pose.
+     * @param out Receives the pose.
+     * @return False if there are no odometry samples yet, in which case the output isn't changed.
+     */
+    public boolean getPoseAtTimestamp(double timestamp, MutablePose2d out) {
+        return poseEstimator.sampleAt(timestamp, out);
+    }
+
+    /**
+     * Gets the covariance of the estimated pose at the specified timestamp without allocating. Only available when the
+     * pose estimator tracks its covariance, see {@link DriveConstants#useEKFPoseEstimator}.
+     * @param out Receives the 3x3 covariance of [x, y, heading], row-major.
+     * @return False if the covariance isn't available, in which case the output isn't changed.
+     */
+    public boolean getCovarianceAtTimestamp(double timestamp, double[] out) {
+        return poseEstimator.sampleCovarianceAt(timestamp, out);
+    }
+
     /**
      * Gets the _odometry_ pose at the specified timestamp. This does not include vision compensation, so it will drift
      * over time. This should only be used for delta tracking, not for actual field-relative position.
@@ -78,7 +193,18 @@ public class RobotState {
      * @return
      */
     public Optional<Pose2d> getOdometryPoseAtTimestamp(double timestamp) {
-        return poseEstimator.m_odometryPoseBuffer.getSample(timestamp);
+        return poseEstimator.getOdometryPoseBuffer().getSample(timestamp);
+    }
+
+    /**
+     * Gets the _odometry_ pose at the specified timestamp without allocating. This does not include vision
+     * compensation, so it will drift over time. This should only be used for delta tracking, not for actual
+     * field-relative position.
+     * @param out Receives the pose.
+     * @return False if there are no odometry samples yet, in which case the output isn't changed.
+     */
+    public boolean getOdometryPoseAtTimestamp(double timestamp, MutablePose2d out) {
+        return poseEstimator.getOdometryPoseBuffer().sampleAt(timestamp, out);
     }
 
     /**
@@ -88,7 +214,7 @@ public class RobotState {
      * @return
      */
     public Pose2d getOdometryPose() {
-        return poseEstimator.m_odometry.getPoseMeters();
+        return poseEstimator.getOdometryPose();
     }
 
     /**
@@ -103,9 +229,68 @@ public class RobotState {
         return pose.map(p -> new Transform2d(p, getOdometryPose()));
     }
 
-    /** Gets a rough pose prediction in the specified number of seconds based on our velocity. */
+    /**
+     * Gets a rough pose prediction in the specified number of seconds based on our filtered velocity and acceleration.
+     */
     public Pose2d getLookaheadPose(double inSeconds) {
-        return getPose().exp(robotVelocity.toTwist2d(inSeconds));
+        Pose2d pose = getPose();
+        getFilteredFieldVelocity(velocityScratch);
+        getFilteredFieldAcceleration(accelerationScratch);
+        double halfTimeSquared = 0.5 * inSeconds * inSeconds;
+        return new Pose2d(
+            pose.getX() + velocityScratch[0] * inSeconds + accelerationScratch[0] * halfTimeSquared,
+            pose.getY() + velocityScratch[1] * inSeconds + accelerationScratch[1] * halfTimeSquared,
+            pose.getRotation().plus(
+                new Rotation2d(velocityScratch[2] * inSeconds + accelerationScratch[2] * halfTimeSquared)));
+    }
+
+    /**
+     * Gets the pose predicted for when a drive setpoint computed now will take effect. This is the pose estimate at the
+     * newest odometry sample extrapolated along an arc at the filtered velocity by the estimated control latency from
+     * {@link #updateControlLatencyEstimate(double)} plus {@link DriveConstants#setpointActuationDelay}. Closed-loop
+     * controllers can use this to avoid reacting to error they've already corrected.
+     *
+     * <p>
+     * The fitted acceleration isn't used. Over a horizon of a few tens of milliseconds it moves the prediction by
+     * millimeters, which is less than the noise it adds.
+     */
+    public Pose2d getPredictedPose() {
+        double horizon = estimatedControlLatency + DriveConstants.setpointActuationDelay;
+        getFilteredRobotVelocity(velocityScratch);
+        Pose2d prediction = getPose().exp(
+            new Twist2d(velocityScratch[0] * horizon, velocityScratch[1] * horizon, velocityScratch[2] * horizon));
+        if(!Double.isNaN(lastOdometryTimestamp)) {
+            pendingPrediction.set(prediction);
+            pendingPredictionTimestamp = lastOdometryTimestamp + horizon;
+        }
+        return prediction;
+    }
+
+    /**
+     * Updates the control latency used by {@link #getPredictedPose()} after drive setpoints are computed this loop. The
+     * estimate is the time from the newest odometry sample to the start of this loop, plus the expected write delay.
+     * This is only a proxy for when the setpoints reach the CAN bus: the loop's work before the write and the
+     * transmission itself are covered by {@link DriveConstants#setpointActuationDelay} instead of being measured.
+     * @param expectedWriteDelay How long the setpoints are expected to wait before they're written to the CAN bus, in
+     *            seconds, like for the next tick of the drive control thread. Zero if they're written directly.
+     */
+    public void updateControlLatencyEstimate(double expectedWriteDelay) {
+        if(Double.isNaN(lastOdometryTimestamp)) return;
+        double latency = Timer.getTimestamp() - lastOdometryTimestamp + expectedWriteDelay;
+        if(latency < 0.0 || latency > MAX_CONTROL_LATENCY) return;
+        estimatedControlLatency += CONTROL_LATENCY_FILTER_GAIN * (latency - estimatedControlLatency);
+    }
+
+    /** Logs how far the newest prediction was from the estimate once odometry reaches the predicted time. */
+    private void checkPrediction() {
+        if(Double.isNaN(pendingPredictionTimestamp) || lastOdometryTimestamp < pendingPredictionTimestamp) return;
+        if(getPoseAtTimestamp(pendingPredictionTimestamp, predictionCheckPose)) {
+            Logger.recordOutput("Odometry/Prediction/PositionError",
+                Math.hypot(predictionCheckPose.x - pendingPrediction.x, predictionCheckPose.y - pendingPrediction.y));
+            Logger.recordOutput("Odometry/Prediction/HeadingError",
+                Math.abs(Math.IEEEremainder(predictionCheckPose.theta - pendingPrediction.theta, 2 * Math.PI)));
+        }
+        pendingPredictionTimestamp = Double.NaN;
     }
 
     /** Returns the current odometry pose. */
@@ -114,6 +299,25 @@ public class RobotState {
         return poseEstimator.getEstimatedPosition();
     }
 
+    /**
+     * Returns the current pose estimate advanced by the odometry the odometry thread sampled after the frames the
+     * estimator was last updated with. The movement is read once per loop and logged, so this is replayed exactly.
+     * Falls back to {@link #getPose()} when high-rate pose integration isn't enabled, like in simulation.
+     */
+    public Pose2d getLatestPose() {
+        Pose2d pose = getPose();
+        var movement = SparkOdometryThread.getInstance().getMovementSinceConsumedFrames();
+        if(movement.isEmpty()) return pose;
+
+        // Both are only replaced when they change, so this only allocates once per change
+        if(pose != latestPoseBase || movement != latestPoseMovement) {
+            latestPoseBase = pose;
+            latestPoseMovement = movement;
+            latestPose = pose.transformBy(movement.get());
+        }
+        return latestPose;
+    }
+
     /**
      * Gets if the robot is currently on the right side of the field.
      * @return
@@ -136,7 +340,16 @@ public class RobotState {
      */
     public void setPose(Pose2d pose, SwerveModulePosition[] modulePositions) {
         resetSimulationPoseCallback.accept(pose);
-        poseEstimator.resetPosition(rawGyroRotation, modulePositions, pose);
+        poseEstimator.resetPosition(new Rotation2d(rawGyroYawRad), modulePositions, pose);
+        for(int i = 0; i < 4; i++) lastModulePositions[i].set(modulePositions[i]);
+        odometryVelocityEstimator.clear();
+        pendingPredictionTimestamp = Double.NaN;
+        lastPoseResetTimestamp = Timer.getTimestamp();
+    }
+
+    /** Returns when the pose estimate was last reset with {@link #setPose}, or negative infinity if it hasn't been. */
+    public double getLastPoseResetTimestamp() {
+        return lastPoseResetTimestamp;
     }
 
     /** Adds a new timestamped vision measurement. */
@@ -145,32 +358,66 @@ public class RobotState {
         poseEstimator.addVisionMeasurement(visionRobotPoseMeters, timestampSeconds, visionMeasurementStdDevs);
     }
 
-    public void applyOdometryUpdate(double timestamp, SwerveModulePosition[] modulePositions,
-        Optional<Rotation2d> gyroRotation) {
-        SwerveModulePosition[] moduleDeltas = new SwerveModulePosition[4];
+    /**
+     * Adds every vision measurement from one loop at once. The measurements are applied in timestamp order in a single
+     * pass through the estimator, which is cheaper than adding them one at a time.
+     */
+    public void addVisionMeasurements(VisionMeasurementBatch batch) {
+        poseEstimator.addVisionMeasurements(batch);
+    }
+
+    /**
+     * Applies an odometry sample to the pose estimator. This doesn't allocate, so it's safe to call for every sample.
+     * @param modulePositions The position of each module. Invalid modules are overwritten with their last valid
+     *            position for this sample, so their movement is applied once they're valid again.
+     * @param moduleValid If each module position is valid.
+     * @param hasGyro If the gyro yaw is valid. If not, the rotation is estimated from the module positions.
+     * @param gyroYawRad The gyro yaw in radians.
+     */
+    public void applyOdometryUpdate(double timestamp, MutableSwerveModulePosition[] modulePositions,
+        boolean[] moduleValid, boolean hasGyro, double gyroYawRad) {
         for(int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
-            moduleDeltas[moduleIndex] = new SwerveModulePosition(
-                modulePositions[moduleIndex].distanceMeters - lastModulePositions[moduleIndex].distanceMeters,
-                modulePositions[moduleIndex].angle);
-            lastModulePositions[moduleIndex] = modulePositions[moduleIndex];
+            if(moduleValid[moduleIndex]) {
+                lastModulePositions[moduleIndex].set(modulePositions[moduleIndex]);
+            } else {
+                modulePositions[moduleIndex].set(lastModulePositions[moduleIndex]);
+                heldModuleSamples++;
+            }
         }
 
-        // Update gyro angle
-        if(gyroRotation.isPresent()) {
-            // Use the real gyro angle
-            rawGyroRotation = gyroRotation.get();
-        } else {
-            // Use the angle delta from the kinematics and module deltas
-            Twist2d twist = kinematics.toTwist2d(moduleDeltas);
-            rawGyroRotation = rawGyroRotation.plus(new Rotation2d(twist.dtheta));
-        }
+        if(hasGyro) rawGyroYawRad = gyroYawRad;
 
         // Apply update
-        poseEstimator.updateWithTime(timestamp, rawGyroRotation, modulePositions);
+        poseEstimator.updateWithTime(timestamp, modulePositions, hasGyro, gyroYawRad);
+        if(getOdometryPoseAtTimestamp(timestamp, velocityOdometryPose)) {
+            odometryVelocityEstimator.addSample(timestamp, velocityOdometryPose.x, velocityOdometryPose.y,
+                velocityOdometryPose.theta);
+            lastOdometryTimestamp = timestamp;
+        }
+
+        // Record slip events
+        if(poseEstimator.getSlippingModules(slippingModules) > 0) {
+            slipSamples++;
+            lastSlipTimestamp = Math.max(lastSlipTimestamp, timestamp);
+            for(int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+                if(slippingModules[moduleIndex]) moduleSlipSamples[moduleIndex]++;
+            }
+        }
+    }
+
+    /**
+     * Returns if odometry flagged a slipping module at or after the timestamp. Odometry since then has rejected or
+     * distrusted some wheel data, so vision should be trusted more.
+     */
+    public boolean hasOdometrySlippedSince(double timestamp) {
+        return lastSlipTimestamp >= timestamp;
     }
 
+    /** Records the measured robot-relative speeds. The speeds are copied, so the caller can reuse the object. */
     public void addDriveSpeeds(ChassisSpeeds speeds) {
-        robotVelocity = speeds;
+        robotVelocity.vxMetersPerSecond = speeds.vxMetersPerSecond;
+        robotVelocity.vyMetersPerSecond = speeds.vyMetersPerSecond;
+        robotVelocity.omegaRadiansPerSecond = speeds.omegaRadiansPerSecond;
     }
 
     public ChassisSpeeds getRobotVelocity() {
@@ -189,11 +436,89 @@ public class RobotState {
         return ChassisSpeeds.fromRobotRelativeSpeeds(robotVelocity, getRotation());
     }
 
+    /**
+     * Gets the filtered field-relative velocity without allocating. This is fit over recent odometry poses, so it's
+     * much less noisy than {@link #getFieldVelocity()}.
+     * @param out Receives the velocity as [vx in meters per second, vy in meters per second, omega in radians per
+     *            second].
+     */
+    public void getFilteredFieldVelocity(double[] out) {
+        odometryVelocityEstimator.getVelocity(out);
+        rotateToField(out);
+    }
+
+    /**
+     * Gets the filtered field-relative acceleration without allocating. This is fit over recent odometry poses.
+     * @param out Receives the acceleration as [ax in meters per second squared, ay in meters per second squared, alpha
+     *            in radians per second squared].
+     */
+    public void getFilteredFieldAcceleration(double[] out) {
+        odometryVelocityEstimator.getAcceleration(out);
+        rotateToField(out);
+    }
+
+    /**
+     * Gets the filtered robot-relative velocity without allocating. This is fit over recent odometry poses.
+     * @param out Receives the velocity as [vx in meters per second, vy in meters per second, omega in radians per
+     *            second].
+     */
+    public void getFilteredRobotVelocity(double[] out) {
+        odometryVelocityEstimator.getVelocity(out);
+        if(Double.isNaN(lastOdometryTimestamp)
+            || !getOdometryPoseAtTimestamp(lastOdometryTimestamp, velocityOdometryPose)) {
+            return;
+        }
+        rotate(out, -velocityOdometryPose.theta);
+    }
+
+    /**
+     * Rotates a vector fit from odometry poses into the field frame. Vision corrections rotate the estimated pose
+     * relative to the odometry pose, so odometry-frame directions need the same rotation.
+     */
+    private void rotateToField(double[] vector) {
+        if(Double.isNaN(lastOdometryTimestamp)
+            || !getOdometryPoseAtTimestamp(lastOdometryTimestamp, velocityOdometryPose)
+            || !getPoseAtTimestamp(lastOdometryTimestamp, velocityEstimatedPose)) {
+            return;
+        }
+        rotate(vector, velocityEstimatedPose.theta - velocityOdometryPose.theta);
+    }
+
+    /** Rotates the translation part of an [x, y, rotation] vector counterclockwise by an angle. */
+    private static void rotate(double[] vector, double angleRad) {
+        double cos = Math.cos(angleRad);
+        double sin = Math.sin(angleRad);
+        double x = vector[0];
+        vector[0] = x * cos - vector[1] * sin;
+        vector[1] = x * sin + vector[1] * cos;
+    }
+
+    /**
+     * Returns the newest snapshot of the robot state. This is safe to call from any thread and never blocks, but the
+     * snapshot is only updated once per loop, so it can be up to one loop old.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Updates and logs various periodic state information. This is called every loop iteration.
      */
     public void update() {
         // Update the driver station interface
         DriverStationInterface.getInstance().update(getPose());
+
+        getFilteredFieldVelocity(velocityScratch);
+        Logger.recordOutput("Odometry/FilteredFieldVelocity",
+            new ChassisSpeeds(velocityScratch[0], velocityScratch[1], velocityScratch[2]));
+        getFilteredFieldAcceleration(accelerationScratch);
+        Logger.recordOutput("Odometry/FilteredFieldAcceleration",
+            new ChassisSpeeds(accelerationScratch[0], accelerationScratch[1], accelerationScratch[2]));
+
+        checkPrediction();
+
+        // Publish a snapshot for other threads
+        snapshot = new Snapshot(Double.isNaN(lastOdometryTimestamp) ? Timer.getTimestamp() : lastOdometryTimestamp,
+            getPose(), velocityScratch[0], velocityScratch[1], velocityScratch[2], shouldFlip());
     }
 }
@@ -20,6 +20,7 @@ import java.util.OptionalDouble;
 import java.util.function.DoubleSupplier;
 import java.util.function.Supplier;
 import org.littletonrobotics.junction.Logger;
+import org.littletonrobotics.junction.networktables.LoggedNetworkBoolean;
 
 /**
  * Heavily inspired (copied) from [6328 Mechanical Advantage's
@@ -68,10 +69,17 @@ public class DriveToPose extends Command {
     private static final LoggedTunableNumber thetaFFMaxError = new LoggedTunableNumber( //
         "DriveToPose/ThetaFFMaxError", 0.0);
 
+    /**
+     * If the default pose supplier should use the pose predicted for when the setpoint takes effect instead of the
+     * newest measured pose. Toggle this to compare the logged tracking error with and without compensation.
+     */
+    private static final LoggedNetworkBoolean usePredictedPose = new LoggedNetworkBoolean(
+        "DriveToPose/UsePredictedPose", DriveConstants.latencyCompensatedControl);
+
     private final Drive drive;
 
     private final Supplier<Pose2d> target;
-    private Supplier<Pose2d> pose = RobotState.getInstance()::getPose;
+    private Supplier<Pose2d> pose = DriveToPose::getDefaultPose;
 
     private TrapezoidProfile driveProfile;
     private final PIDController driveController = new PIDController(0.0, 0.0, 0.0);
@@ -162,6 +170,12 @@ public class DriveToPose extends Command {
         this.pose = getPose;
     }
 
+    /** Gets the pose to control from when no pose supplier is given. */
+    private static Pose2d getDefaultPose() {
+        RobotState robotState = RobotState.getInstance();
+        return usePredictedPose.get() ? robotState.getPredictedPose() : robotState.getLatestPose();
+    }
+
     @Override
     public void initialize() {
         resetProfile();
@@ -189,6 +203,12 @@ public class DriveToPose extends Command {
         Pose2d currentPose = pose.get();
         Pose2d targetPose = target.get();
 
+        // How far the measured pose ended up from last loop's setpoint. This is always measured against the measured
+        // pose so runs with and without prediction are comparable.
+        Logger.recordOutput("DriveToPose/TrackingError",
+            RobotState.getInstance().getLatestPose().getTranslation().getDistance(lastSetpointTranslation));
+        Logger.recordOutput("DriveToPose/UsePredictedPoseActive", usePredictedPose.get());
+
         Pose2d poseError = currentPose.relativeTo(targetPose);
         absoluteTranslationError = poseError.getTranslation().getNorm();
         absoluteThetaError = Math.abs(poseError.getRotation().getRadians());
@@ -300,15 +320,15 @@ public class DriveToPose extends Command {
     private void resetProfile() {
         Pose2d currentPose = pose.get();
         Pose2d targetPose = target.get();
-        ChassisSpeeds fieldVelocity = RobotState.getInstance().getFieldVelocity();
-        Translation2d linearFieldVelocity = new Translation2d(fieldVelocity.vxMetersPerSecond,
-            fieldVelocity.vyMetersPerSecond);
+        double[] fieldVelocity = new double[3];
+        RobotState.getInstance().getFilteredFieldVelocity(fieldVelocity);
+        Translation2d linearFieldVelocity = new Translation2d(fieldVelocity[0], fieldVelocity[1]);
 
         driveProfile = new TrapezoidProfile(
             new TrapezoidProfile.Constraints(driveMaxVelocity.get(), driveMaxAcceleration.get()));
 
         driveController.reset();
-        thetaController.reset(currentPose.getRotation().getRadians(), fieldVelocity.omegaRadiansPerSecond);
+        thetaController.reset(currentPose.getRotation().getRadians(), fieldVelocity[2]);
 
         lastSetpointTranslation = currentPose.getTranslation();
         lastSetpointVelocity = linearFieldVelocity;
@@ -6,6 +6,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 import edu.wpi.first.math.filter.SlewRateLimiter;
+import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.util.Units;
@@ -20,6 +21,7 @@ import frc.robot.subsystems.drive.Drive;
 import frc.robot.subsystems.drive.DriveConstants;
 import frc.robot.util.Container;
 import frc.robot.util.LoggedAutoChooser;
+import frc.robot.util.poseEstimator.OdometryDriftTracker;
 
 import java.io.FileReader;
 import java.io.IOException;
@@ -28,6 +30,8 @@ import java.text.NumberFormat;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.function.BiFunction;
+import org.ironmaple.simulation.drivesims.SwerveDriveSimulation;
 import org.littletonrobotics.junction.Logger;
 
 /**
@@ -46,6 +50,36 @@ public class DriveTuningCommands {
     private static final double WHEEL_RADIUS_MAX_VELOCITY = 0.25; // Rad/Sec
     private static final double WHEEL_RADIUS_RAMP_RATE = 0.05; // Rad/Sec^2
 
+    private static final double DRIFT_SETTLE_TIME = 0.75; // Secs
+
+    /**
+     * A scripted drive path for measuring odometry drift.
+     * @param name The name printed in the drift report.
+     * @param startPose The pose the simulated robot is moved to before the path.
+     * @param duration How long to drive the path, in seconds.
+     * @param speeds Gets the robot-relative speeds from the time since the path started and the true robot rotation.
+     */
+    private record DriftTestPath(String name, Pose2d startPose, double duration,
+        BiFunction<Double, Rotation2d, ChassisSpeeds> speeds) {
+    }
+
+    /**
+     * The paths driven by {@link #odometryDriftTest}. These stay clear of the field elements on the blue half of the
+     * field and focus on the cases where first-order odometry is weakest: hard acceleration, translating while
+     * rotating, and continuous steering.
+     */
+    private static final DriftTestPath[] DRIFT_TEST_PATHS = new DriftTestPath[] {
+        new DriftTestPath("Sprint", new Pose2d(2.0, 1.5, Rotation2d.kZero), 2.5,
+            (time, rotation) -> new ChassisSpeeds(time < 1.5 ? DriveConstants.maxSpeedMetersPerSec : 0.0, 0.0, 0.0)),
+        new DriftTestPath("Translate While Spinning", new Pose2d(2.0, 1.5, Rotation2d.kZero), 2.5,
+            (time, rotation) -> ChassisSpeeds.fromFieldRelativeSpeeds(2.5, 0.0, 1.5 * Math.PI, rotation)),
+        new DriftTestPath("Slalom", new Pose2d(2.0, 2.0, Rotation2d.kZero), 2.5,
+            (time, rotation) -> ChassisSpeeds.fromFieldRelativeSpeeds(3.0, 1.5 * Math.sin(2 * Math.PI * time / 1.25),
+                0.0, rotation)),
+        new DriftTestPath("Arc", new Pose2d(7.0, 0.8, Rotation2d.kZero), 2 * Math.PI / 1.6,
+            (time, rotation) -> new ChassisSpeeds(2.0, 0.0, 1.6)),
+    };
+
     /** The path to the JSON file where we save our tuning results. */
     public static final String TUNING_RESULTS_FILE = Constants.currentMode == Constants.Mode.REAL
         ? "/U/tuning_results.json" // On a real robot, this is a USB stick
@@ -133,6 +167,50 @@ public class DriveTuningCommands {
         }
     }
 
+    /** Adds the drive tuning commands that need the drivetrain simulation to the auto chooser. */
+    public static void addSimulationTuningCommandsToAutoChooser(Drive drive, SwerveDriveSimulation driveSimulation,
+        LoggedAutoChooser chooser) {
+        chooser.addCmd("TUNING | Odometry Drift", () -> odometryDriftTest(drive, driveSimulation));
+    }
+
+    /**
+     * Measures how far first-order and second-order odometry drift from the simulated ground truth pose over a set of
+     * scripted paths. Both are integrated from the same odometry samples, and a drift report is printed after each
+     * path.
+     */
+    public static Command odometryDriftTest(Drive drive, SwerveDriveSimulation driveSimulation) {
+        OdometryDriftTracker tracker = new OdometryDriftTracker(DriveConstants.moduleTranslations);
+        Command[] pathCommands = new Command[DRIFT_TEST_PATHS.length];
+        for(int i = 0; i < DRIFT_TEST_PATHS.length; i++) {
+            DriftTestPath path = DRIFT_TEST_PATHS[i];
+            Timer timer = new Timer();
+            pathCommands[i] = Commands.sequence(
+                // Move to the start and let the robot settle before measuring
+                Commands.runOnce(() -> drive.setPose(path.startPose())),
+                Commands.run(drive::stop, drive).withTimeout(DRIFT_SETTLE_TIME),
+                Commands.runOnce(() -> {
+                    tracker.reset(driveSimulation.getSimulatedDriveTrainPose());
+                    timer.restart();
+                }),
+
+                // Drive the path, then stop so the report includes braking
+                Commands.run(() -> {
+                    Pose2d groundTruth = driveSimulation.getSimulatedDriveTrainPose();
+                    drive.runVelocity(path.speeds().apply(timer.get(), groundTruth.getRotation()));
+                    tracker.update(groundTruth);
+                }, drive).withTimeout(path.duration()),
+                Commands.run(() -> {
+                    drive.stop();
+                    tracker.update(driveSimulation.getSimulatedDriveTrainPose());
+                }, drive).withTimeout(DRIFT_SETTLE_TIME),
+
+                Commands.runOnce(() -> tracker.printReport(path.name())));
+        }
+
+        return Commands.sequence(Commands.runOnce(() -> drive.setOdometryDriftTracker(tracker)),
+            Commands.sequence(pathCommands)).finallyDo(() -> drive.setOdometryDriftTracker(null));
+    }
+
     /**
      * Measures the velocity feedforward constants for the drive motors.
      *
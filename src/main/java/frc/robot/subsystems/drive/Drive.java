@@ -1,5 +1,6 @@
 package frc.robot.subsystems.drive;
 
+import static edu.wpi.first.units.Units.RadiansPerSecond;
 import static frc.robot.subsystems.drive.DriveConstants.maxSpeedMetersPerSec;
 import static frc.robot.subsystems.drive.DriveConstants.moduleTranslations;
 
@@ -20,13 +21,14 @@ import edu.wpi.first.wpilibj2.command.button.RobotModeTriggers;
 import frc.robot.Constants;
 import frc.robot.RobotState;
 import frc.robot.Constants.Mode;
-
-import java.util.Optional;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import frc.robot.util.AllocationMeter;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import frc.robot.util.poseEstimator.OdometryDriftTracker;
+import frc.robot.util.poseEstimator.SwerveOdometryIntegrator;
 
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
+import org.littletonrobotics.junction.networktables.LoggedNetworkBoolean;
 
 import choreo.Choreo.TrajectoryLogger;
 import choreo.auto.AutoFactory;
@@ -37,7 +39,6 @@ import choreo.trajectory.SwerveSample;
  * identification.
  */
 public class Drive extends SubsystemBase {
-    static final Lock odometryLock = new ReentrantLock();
     private final GyroIO gyroIO;
     private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
     private final Module[] modules = new Module[4]; // FL, FR, BL, BR
@@ -46,6 +47,65 @@ public class Drive extends SubsystemBase {
 
     public SwerveDriveKinematics kinematics = new SwerveDriveKinematics(DriveConstants.moduleTranslations);
 
+    // Reused for every odometry sample so updating odometry doesn't allocate
+    private final MutableSwerveModulePosition[] odometrySamplePositions = MutableSwerveModulePosition.createArray(4);
+    private final boolean[] odometrySampleValid = new boolean[4];
+    /** Receives every odometry sample while measuring odometry drift. Null when not measuring. */
+    private OdometryDriftTracker odometryDriftTracker = null;
+
+    // Reused every loop so the periodic loop doesn't allocate once it's running
+    private final AllocationMeter allocationMeter = new AllocationMeter("Drive");
+    private static final SwerveModuleState[] NO_MODULE_STATES = new SwerveModuleState[] {};
+    private final SwerveModuleState[] measuredModuleStates = new SwerveModuleState[] {
+        new SwerveModuleState(), new SwerveModuleState(), new SwerveModuleState(), new SwerveModuleState()
+    };
+    /** Solves the chassis speeds from module velocities with the same least-squares fit as odometry. */
+    private final SwerveOdometryIntegrator chassisSpeedsSolver = new SwerveOdometryIntegrator(moduleTranslations);
+    private final double[] moduleVelocityX = new double[4];
+    private final double[] moduleVelocityY = new double[4];
+    private final double[] moduleVelocityWeights = new double[] {
+        1.0, 1.0, 1.0, 1.0
+    };
+    private final double[] chassisSpeedsScratch = new double[3];
+    private final ChassisSpeeds measuredChassisSpeeds = new ChassisSpeeds();
+    private final double[] trajectoryAccelerations = new double[4];
+    /** Zero module accelerations for requests without acceleration feedforward. Never modified. */
+    private static final double[] NO_ACCELERATIONS = new double[4];
+    private final ChassisSpeeds holdSpeeds = new ChassisSpeeds();
+    /** The request {@link #stop()} sends. Never modified, since runVelocity doesn't modify its speeds. */
+    private final ChassisSpeeds stopSpeeds = new ChassisSpeeds();
+
+    /** Limits velocity setpoints to what the modules can achieve. Only used if USE_SETPOINT_GENERATOR is set. */
+    private final SwerveSetpointGenerator setpointGenerator = new SwerveSetpointGenerator(moduleTranslations,
+        maxSpeedMetersPerSec, DriveConstants.maxSteerVelocity.in(RadiansPerSecond), DriveConstants.driveSimMotor,
+        DriveConstants.driveMotorReduction, DriveConstants.driveMotorCurrentLimit, DriveConstants.wheelRadiusMeters,
+        DriveConstants.robotMassKg, DriveConstants.wheelCOF);
+    /** If the setpoint generator should restart from the measured state, like after being disabled. */
+    private boolean setpointGeneratorNeedsReset = true;
+    private final double[] measuredModuleAnglesRad = new double[4];
+    private final SwerveModuleState[] generatedSetpointStates = new SwerveModuleState[] {
+        new SwerveModuleState(), new SwerveModuleState(), new SwerveModuleState(), new SwerveModuleState()
+    };
+    // The generated module angles and the rotations logged for them, only recreated when a module's angle changes
+    private final double[] generatedModuleAnglesRad = new double[4];
+    private final Rotation2d[] generatedModuleAngles = new Rotation2d[] {
+        Rotation2d.kZero, Rotation2d.kZero, Rotation2d.kZero, Rotation2d.kZero
+    };
+    /** Runs velocity control at a high rate on the real robot. Null if it isn't enabled. */
+    private final DriveControlThread controlThread;
+    /** The module angles for {@link #stopWithX()}. */
+    private static final double[] X_MODULE_ANGLES_RAD = new double[] {
+        moduleTranslations[0].getAngle().getRadians(), moduleTranslations[1].getAngle().getRadians(),
+        moduleTranslations[2].getAngle().getRadians(), moduleTranslations[3].getAngle().getRadians()
+    };
+
+    /**
+     * If path following should compute its error against the pose predicted for when the setpoint takes effect instead
+     * of the newest measured pose. Toggle this to compare the logged tracking error with and without compensation.
+     */
+    private static final LoggedNetworkBoolean followPathUsePredictedPose = new LoggedNetworkBoolean(
+        "Drive/FollowPathUsePredictedPose", DriveConstants.latencyCompensatedControl);
+
     /**
      * If the trajectory following callback was run this tick. Reset at the end of each loop iteration so we know when
      * to continue pathing to the latest known pose.
@@ -57,6 +117,16 @@ public class Drive extends SubsystemBase {
     /** If we're currently controlling the robot with velocity. */
     private boolean velocityControlMode = true;
 
+    /** The status frame profile the modules were last switched to. They start in the teleop profile. */
+    private SparkStatusProfile statusProfile = SparkStatusProfile.TELEOP;
+    /** The estimated CAN bus utilization of each status frame profile, indexed by ordinal. */
+    private static final double[] STATUS_PROFILE_BUS_UTILIZATION = new double[SparkStatusProfile.values().length];
+    static {
+        for(var profile : SparkStatusProfile.values()) {
+            STATUS_PROFILE_BUS_UTILIZATION[profile.ordinal()] = profile.getEstimatedBusUtilization();
+        }
+    }
+
     /** A debouncer that automatically unlocks the wheels after the robot has been disabled for a period of time. */
     private final Debouncer unlockWheelsDebouncer = new Debouncer(2.0, Debouncer.DebounceType.kFalling);
     /** If the wheels are currently in brake mode. */
@@ -87,6 +157,15 @@ public class Drive extends SubsystemBase {
         // Start odometry thread
         SparkOdometryThread.getInstance().start();
 
+        // Start the drive control thread if it's enabled. It can't be simulated or replayed, so it's only used on the
+        // real robot.
+        if(DriveConstants.highRateDriveControl && Constants.currentMode == Mode.REAL) {
+            controlThread = new DriveControlThread(modules);
+            controlThread.start();
+        } else {
+            controlThread = null;
+        }
+
         thetaController.enableContinuousInput(-Math.PI, Math.PI);
 
         RobotModeTriggers.autonomous().onTrue(Commands.runOnce(() -> {
@@ -116,29 +195,34 @@ public class Drive extends SubsystemBase {
 
         var baseSpeeds = sample.getChassisSpeeds();
 
-        double[] accelerations = new double[modules.length];
         for(int i = 0; i < modules.length; i++) {
             double accelerationX = sample.moduleForcesX()[i] / DriveConstants.robotMassKg;
             double accelerationY = sample.moduleForcesY()[i] / DriveConstants.robotMassKg;
-            accelerations[i] = Math.sqrt(accelerationX * accelerationX + accelerationY * accelerationY);
+            trajectoryAccelerations[i] = Math.sqrt(accelerationX * accelerationX + accelerationY * accelerationY);
         }
 
-        followPathToTarget(latestTrajectoryTarget, accelerations, baseSpeeds);
+        followPathToTarget(latestTrajectoryTarget, trajectoryAccelerations, baseSpeeds);
     }
 
     public void followPathToTarget(Pose2d targetPose, double[] accelerations, ChassisSpeeds baseSpeeds) {
-        var pose = RobotState.getInstance().getPose();
+        var robotState = RobotState.getInstance();
+        var measuredPose = robotState.getLatestPose();
+        boolean usePredictedPose = followPathUsePredictedPose.get();
+        var pose = usePredictedPose ? robotState.getPredictedPose() : measuredPose;
 
         Logger.recordOutput("Odometry/CurrentPose", pose);
         Logger.recordOutput("Odometry/TargetPose", targetPose);
+        Logger.recordOutput("Drive/FollowPath/UsePredictedPose", usePredictedPose);
+        // Always measured against the measured pose so runs with and without prediction are comparable
+        Logger.recordOutput("Drive/FollowPath/TrackingError",
+            measuredPose.getTranslation().getDistance(targetPose.getTranslation()));
 
         baseSpeeds.vxMetersPerSecond += xController.calculate(pose.getX(), targetPose.getX());
         baseSpeeds.vyMetersPerSecond += yController.calculate(pose.getY(), targetPose.getY());
         baseSpeeds.omegaRadiansPerSecond += thetaController.calculate(pose.getRotation().getRadians(),
             targetPose.getRotation().getRadians());
 
-        runVelocity(ChassisSpeeds.fromFieldRelativeSpeeds(baseSpeeds, RobotState.getInstance().getRotation()),
-            accelerations);
+        runVelocity(ChassisSpeeds.fromFieldRelativeSpeeds(baseSpeeds, pose.getRotation()), accelerations);
     }
 
     /**
@@ -147,7 +231,7 @@ public class Drive extends SubsystemBase {
      * @param accelerations
      */
     public void runVelocity(ChassisSpeeds speeds) {
-        runVelocity(speeds, new double[4]);
+        runVelocity(speeds, NO_ACCELERATIONS);
     }
 
     /**
@@ -158,43 +242,92 @@ public class Drive extends SubsystemBase {
     public void runVelocity(ChassisSpeeds speeds, double[] accelerationsMps2) {
         Logger.recordOutput("SwerveChassisSpeeds/TargetSpeeds", speeds);
 
+        // Characterization doesn't go through the generator, so restart it from the measured state afterward
+        if(!velocityControlMode) setpointGeneratorNeedsReset = true;
         velocityControlMode = true;
 
+        // The control thread discretizes, limits, and sends the setpoints itself
+        if(controlThread != null) {
+            controlThread.post(speeds.vxMetersPerSecond, speeds.vyMetersPerSecond, speeds.omegaRadiansPerSecond,
+                accelerationsMps2);
+            RobotState.getInstance().updateControlLatencyEstimate(controlThread.getExpectedWriteDelay());
+            return;
+        }
+
         ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(speeds, 0.02);
-        SwerveModuleState[] setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
-        SwerveDriveKinematics.desaturateWheelSpeeds(setpointStates, maxSpeedMetersPerSec);
+        SwerveModuleState[] setpointStates;
+        if(DriveConstants.USE_SETPOINT_GENERATOR) {
+            setpointStates = generateFeasibleSetpoints(discreteSpeeds);
+        } else {
+            setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
+            SwerveDriveKinematics.desaturateWheelSpeeds(setpointStates, maxSpeedMetersPerSec);
+        }
 
         // Log unoptimized setpoints
         Logger.recordOutput("SwerveStates/Setpoints", setpointStates);
 
         // Send setpoints to modules
         for(int i = 0; i < 4; i++) modules[i].runSetpoint(setpointStates[i], accelerationsMps2[i]);
+        RobotState.getInstance().updateControlLatencyEstimate(0.0);
 
         // Log optimized setpoints (runSetpoint mutates each state)
         Logger.recordOutput("SwerveStates/SetpointsOptimized", setpointStates);
     }
 
+    /**
+     * Limits the requested speeds to what the modules can achieve by the next loop and returns the module setpoints.
+     * The returned array is reused.
+     */
+    private SwerveModuleState[] generateFeasibleSetpoints(ChassisSpeeds speeds) {
+        long startNanos = System.nanoTime();
+        if(setpointGeneratorNeedsReset) {
+            ChassisSpeeds measuredSpeeds = getChassisSpeeds();
+            for(int i = 0; i < 4; i++) measuredModuleAnglesRad[i] = modules[i].getAngle().getRadians();
+            setpointGenerator.reset(measuredSpeeds.vxMetersPerSecond, measuredSpeeds.vyMetersPerSecond,
+                measuredSpeeds.omegaRadiansPerSecond, measuredModuleAnglesRad);
+            setpointGeneratorNeedsReset = false;
+        }
+        setpointGenerator.generate(speeds.vxMetersPerSecond, speeds.vyMetersPerSecond, speeds.omegaRadiansPerSecond,
+            0.02);
+        Logger.recordOutput("Drive/SetpointGenerator/ExecutionMicros", (System.nanoTime() - startNanos) / 1000.0);
+        Logger.recordOutput("Drive/SetpointGenerator/StepFraction", setpointGenerator.getLastStepFraction());
+
+        for(int i = 0; i < 4; i++) {
+            double angleRad = setpointGenerator.getModuleAngle(i);
+            if(angleRad != generatedModuleAnglesRad[i]) {
+                generatedModuleAnglesRad[i] = angleRad;
+                generatedModuleAngles[i] = new Rotation2d(angleRad);
+            }
+            generatedSetpointStates[i].speedMetersPerSecond = setpointGenerator.getModuleSpeed(i);
+            generatedSetpointStates[i].angle = generatedModuleAngles[i];
+        }
+        return generatedSetpointStates;
+    }
+
     /** Runs the drive in a straight line with the specified drive output. */
     public void runCharacterization(double output) {
         velocityControlMode = false;
+        if(controlThread != null) controlThread.release();
         for(int i = 0; i < 4; i++) modules[i].runCharacterization(output);
     }
 
     /** Runs the drive to rotate with the specified drive output for angular system identification. */
     public void runAngularCharacterization(double output) {
         velocityControlMode = false;
+        if(controlThread != null) controlThread.release();
         for(int i = 0; i < 4; i++) modules[i].runAngularCharacterization(output);
     }
 
     /** Runs a particular module in a straight line with the specified drive output. */
     public void runCharacterization(int module, double output) {
         velocityControlMode = false;
+        if(controlThread != null) controlThread.release();
         modules[module].runCharacterization(output);
     }
 
     /** Stops the drive. */
     public void stop() {
-        runVelocity(new ChassisSpeeds());
+        runVelocity(stopSpeeds);
     }
 
     /** Resets the modules to absolute. */
@@ -210,17 +343,19 @@ public class Drive extends SubsystemBase {
         Rotation2d[] headings = new Rotation2d[4];
         for(int i = 0; i < 4; i++) headings[i] = moduleTranslations[i].getAngle();
         kinematics.resetHeadings(headings);
+        setpointGenerator.park(X_MODULE_ANGLES_RAD);
+        if(controlThread != null) controlThread.park();
         stop();
     }
 
     /**
-     * Returns the module states (turn angles and drive velocities) for all of the modules.
+     * Returns the module states (turn angles and drive velocities) for all of the modules. The returned array is reused
+     * and is overwritten by the next call.
      */
     @AutoLogOutput(key = "SwerveStates/Measured")
     private SwerveModuleState[] getModuleStates() {
-        SwerveModuleState[] states = new SwerveModuleState[4];
-        for(int i = 0; i < 4; i++) states[i] = modules[i].getState();
-        return states;
+        for(int i = 0; i < 4; i++) modules[i].getState(measuredModuleStates[i]);
+        return measuredModuleStates;
     }
 
     /**
@@ -240,10 +375,24 @@ public class Drive extends SubsystemBase {
         RobotState.getInstance().setPose(pose, getModulePositions());
     }
 
-    /** Returns the measured chassis speeds of the robot. */
+    /**
+     * Returns the measured chassis speeds of the robot. The returned speeds are reused and are overwritten by the next
+     * call.
+     */
     @AutoLogOutput(key = "SwerveChassisSpeeds/Measured")
     public ChassisSpeeds getChassisSpeeds() {
-        return kinematics.toChassisSpeeds(getModuleStates());
+        // Equivalent to kinematics.toChassisSpeeds, but without allocating matrices
+        for(int i = 0; i < 4; i++) {
+            double speed = modules[i].getVelocityMetersPerSec();
+            Rotation2d angle = modules[i].getAngle();
+            moduleVelocityX[i] = speed * angle.getCos();
+            moduleVelocityY[i] = speed * angle.getSin();
+        }
+        chassisSpeedsSolver.solveTwist(moduleVelocityX, moduleVelocityY, moduleVelocityWeights, chassisSpeedsScratch);
+        measuredChassisSpeeds.vxMetersPerSecond = chassisSpeedsScratch[0];
+        measuredChassisSpeeds.vyMetersPerSecond = chassisSpeedsScratch[1];
+        measuredChassisSpeeds.omegaRadiansPerSecond = chassisSpeedsScratch[2];
+        return measuredChassisSpeeds;
     }
 
     /** Returns the measured linear speed of the robot. */
@@ -278,24 +427,66 @@ public class Drive extends SubsystemBase {
         return modules[module].getWheelRadiusCharacterizationPosition();
     }
 
+    /**
+     * Sets the tracker that receives every odometry sample while measuring odometry drift, or null to stop.
+     */
+    public void setOdometryDriftTracker(OdometryDriftTracker tracker) {
+        odometryDriftTracker = tracker;
+    }
+
     /** Temporarily changes the drive motor current limit for slip current measurement. */
     public void setSlipMeasurementCurrentLimit(int amps) {
         for(int i = 0; i < 4; i++) modules[i].setSlipMeasurementCurrentLimit(amps);
     }
 
+    /**
+     * Switches the modules to the status frame profile for the current mode. Profiles are only sent when the mode
+     * changes, and are applied without waiting for the Sparks to acknowledge them.
+     */
+    private void updateStatusProfile() {
+        SparkStatusProfile profile;
+        if(DriverStation.isDisabled()) profile = SparkStatusProfile.DISABLED;
+        else if(!velocityControlMode) profile = SparkStatusProfile.CHARACTERIZATION;
+        else if(DriverStation.isAutonomous()) profile = SparkStatusProfile.AUTO;
+        else profile = SparkStatusProfile.TELEOP;
+
+        if(profile == statusProfile) return;
+        statusProfile = profile;
+        for(var module : modules) module.setStatusProfile(profile);
+        SparkOdometryThread.getInstance().setSamplePeriodMs(profile.getEncoderPeriodMs());
+
+        Logger.recordOutput("Drive/StatusProfile/Active", profile.name());
+        Logger.recordOutput("Drive/StatusProfile/BusUtilization", STATUS_PROFILE_BUS_UTILIZATION[profile.ordinal()]);
+        // Only logged on changes, so the string building here doesn't allocate every loop
+        for(var estimatedProfile : SparkStatusProfile.values()) {
+            Logger.recordOutput("Drive/StatusProfile/Estimates/" + estimatedProfile.name(),
+                STATUS_PROFILE_BUS_UTILIZATION[estimatedProfile.ordinal()]);
+        }
+    }
+
     @Override
     public void periodic() {
-        odometryLock.lock(); // Prevents odometry updates while reading data
+        allocationMeter.start();
+
+        // Take every odometry frame sampled since the last loop. Each frame holds one sample of every signal, so the
+        // gyro and module inputs read from them below are always aligned.
+        var odometryThread = SparkOdometryThread.getInstance();
+        odometryThread.consumeFrames();
+        odometryThread.logMetrics();
+        if(controlThread != null) controlThread.logMetrics();
+        if(Constants.currentMode == Mode.REAL) SparkSetpointWriter.getInstance().logMetrics();
         gyroIO.updateInputs(gyroInputs);
         Logger.processInputs("Drive/Gyro", gyroInputs);
         for(var module : modules) module.periodic();
-        odometryLock.unlock();
 
         // Stop moving when disabled
         if(DriverStation.isDisabled()) {
             for(var module : modules) module.stop();
+            setpointGeneratorNeedsReset = true;
         }
 
+        updateStatusProfile();
+
         // Unlock wheels if we've been disabled for a while
         boolean shouldLock = unlockWheelsDebouncer.calculate(DriverStation.isEnabled());
         if(shouldLock != wheelsLocked) {
@@ -305,8 +496,8 @@ public class Drive extends SubsystemBase {
 
         // Log empty setpoint states when disabled
         if(DriverStation.isDisabled()) {
-            Logger.recordOutput("SwerveStates/Setpoints", new SwerveModuleState[] {});
-            Logger.recordOutput("SwerveStates/SetpointsOptimized", new SwerveModuleState[] {});
+            Logger.recordOutput("SwerveStates/Setpoints", NO_MODULE_STATES);
+            Logger.recordOutput("SwerveStates/SetpointsOptimized", NO_MODULE_STATES);
         }
 
         // Update odometry
@@ -314,15 +505,26 @@ public class Drive extends SubsystemBase {
         int sampleCount = sampleTimestamps.length;
         var robotState = RobotState.getInstance();
         for(int i = 0; i < sampleCount; i++) {
-            // Read wheel positions and deltas from each module
-            SwerveModulePosition[] modulePositions = new SwerveModulePosition[4];
+            // Read wheel positions from each module
             for(int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
-                modulePositions[moduleIndex] = modules[moduleIndex].getOdometryPositions()[i];
+                modules[moduleIndex].getOdometryPosition(i, odometrySamplePositions[moduleIndex]);
+                odometrySampleValid[moduleIndex] = modules[moduleIndex].isOdometryPositionValid(i);
             }
 
-            robotState.applyOdometryUpdate(sampleTimestamps[i], modulePositions,
-                gyroInputs.connected ? Optional.of(gyroInputs.odometryYawPositions[i]) : Optional.empty());
+            // Logs from before gyro sample validity was recorded don't include it, so only the connection is used
+            boolean gyroValid = gyroInputs.connected
+                && (gyroInputs.odometryYawValid.length != sampleCount || gyroInputs.odometryYawValid[i]);
+            double gyroYawRad = gyroValid ? gyroInputs.odometryYawPositionsRad[i] : 0.0;
+            robotState.applyOdometryUpdate(sampleTimestamps[i], odometrySamplePositions, odometrySampleValid,
+                gyroValid, gyroYawRad);
+            if(odometryDriftTracker != null) {
+                odometryDriftTracker.addSample(sampleTimestamps[i], odometrySamplePositions, odometrySampleValid,
+                    gyroValid, gyroYawRad);
+            }
         }
+        // Read the movement sampled since the consumed frames once, after they're applied, so commands this loop see
+        // the same latest pose in replay
+        odometryThread.updateMovementInputs();
         robotState.addDriveSpeeds(getChassisSpeeds());
 
         // Update gyro alert
@@ -330,12 +532,14 @@ public class Drive extends SubsystemBase {
 
         if(!trajectoryUpdatedThisTick && velocityControlMode && latestTrajectoryTarget != null
             && DriverStation.isAutonomousEnabled()) {
-            followPathToTarget( //
-                latestTrajectoryTarget, //
-                new double[modules.length], //
-                new ChassisSpeeds(0., 0., 0.) //
-            );
+            // followPathToTarget adds its feedback to the base speeds, so they need to be zeroed every time
+            holdSpeeds.vxMetersPerSecond = 0.0;
+            holdSpeeds.vyMetersPerSecond = 0.0;
+            holdSpeeds.omegaRadiansPerSecond = 0.0;
+            followPathToTarget(latestTrajectoryTarget, NO_ACCELERATIONS, holdSpeeds);
         }
         trajectoryUpdatedThisTick = false;
+
+        allocationMeter.stop();
     }
 }
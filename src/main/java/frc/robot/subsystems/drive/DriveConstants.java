@@ -15,13 +15,70 @@ import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.system.plant.DCMotor;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.units.measure.AngularVelocity;
+import frc.robot.util.CANBusPlanner;
 
 public class DriveConstants {
     public record SwerveModuleConfiguration(String name, int driveMotorCanID, int turnMotorCanID,
         Rotation2d zeroOffset) {
     }
 
-    public static final double odometryFrequency = 100.0; // Hz
+    /** The highest estimated CAN bus utilization, from 0 to 1, the odometry rate may push the bus to. */
+    public static final double maxCANUtilization = 0.7;
+    /** The fastest rate the NavX produces new yaw samples, in Hz. */
+    public static final double maxGyroFrequency = 200.0;
+    /**
+     * Odometry rates the planner can choose from, in Hz. Each has a whole-millisecond period and divides
+     * {@link #maxGyroFrequency}, so odometry never samples faster than the gyro and every sample lines up with a gyro
+     * update.
+     */
+    private static final double[] odometryFrequencyCandidates = new double[] {
+        200.0, 100.0, 50.0
+    };
+    public static final CANBusPlanner.Plan odometryPlan = createCANBusPlanner(SparkStatusProfile.TELEOP)
+        .plan(odometryFrequencyCandidates, maxCANUtilization);
+    public static final double odometryFrequency = odometryPlan.odometryFrequency(); // Hz
+    /**
+     * If the odometry thread should integrate the pose itself at the sample rate. When enabled, commands that read
+     * {@link frc.robot.RobotState#getLatestPose()} also see the movement the thread sampled while the drive subsystem
+     * was updating. The movement is logged as an input once per loop, so it's replayed.
+     */
+    public static final boolean highRateOdometryPose = false;
+    /**
+     * If odometry frames with some unreadable signals should still be published with per-signal validity. Missing
+     * module positions are interpolated or held by the main loop, and a missing gyro yaw falls back to the wheels. A
+     * frame is only published if at least one module or the gyro was read. When disabled, any unreadable signal drops
+     * the whole frame.
+     */
+    public static final boolean partialOdometryFrames = false;
+    /**
+     * If the pose estimator should be an extended Kalman filter that tracks the full pose covariance, instead of
+     * WPILib's estimator with a fixed steady-state vision gain.
+     */
+    public static final boolean useEKFPoseEstimator = false;
+    /**
+     * If odometry should account for module steering and acceleration within each sample instead of assuming the
+     * modules held their final angle and the robot moved at a constant speed. Use the "Odometry Drift" tuning command
+     * in simulation to compare the two.
+     */
+    public static final boolean secondOrderOdometry = false;
+    /**
+     * How far back the filtered velocity and acceleration in {@link frc.robot.RobotState} fit odometry poses, in
+     * seconds. Longer windows are smoother but respond slower to jerk.
+     */
+    public static final double velocityFitWindow = 0.1;
+    /**
+     * If closed-loop drive commands should compute their errors against the pose predicted for when their output takes
+     * effect instead of the newest measured pose. This is the default for the switches in {@link Drive} and
+     * {@link frc.robot.commands.drive.DriveToPose}, which can be toggled from NetworkTables to compare tracking error.
+     */
+    public static final boolean latencyCompensatedControl = false;
+    /**
+     * The assumed time from the start of the loop until the motor controller applies a setpoint sent during it, in
+     * seconds. This covers the loop's work before the setpoints are written and the CAN transmission.
+     */
+    public static final double setpointActuationDelay = 0.008;
+    /** The control latency estimate in {@link frc.robot.RobotState} before the first loop updates it, in seconds. */
+    public static final double initialControlLatency = 0.02;
     public static final double bumperSizeMeters = Units.inchesToMeters(29.5);
     public static final double trackWidth = Units.inchesToMeters(24. - 6.5);
     public static final double wheelBase = Units.inchesToMeters(22. - 6.5);
@@ -47,7 +104,51 @@ public class DriveConstants {
     public static final SwerveModuleConfiguration backRightModule = new SwerveModuleConfiguration("Back right", //
         31, 32, Rotation2d.fromRadians(2.21));
 
+    /**
+     * If velocity setpoints should be limited to what the modules can achieve each loop by
+     * {@link SwerveSetpointGenerator}, using the drive current limit and {@link #maxSteerVelocity}.
+     */
     public static final boolean USE_SETPOINT_GENERATOR = false;
+    /**
+     * If velocity control should run on {@link DriveControlThread} instead of the main loop. This only applies on the
+     * real robot, since the thread isn't simulated or replayed.
+     */
+    public static final boolean highRateDriveControl = false;
+    /** The frequency of {@link DriveControlThread}, in Hz. */
+    public static final double driveControlFrequency = 200.0;
+
+    // Module setpoints within these of the last one sent aren't sent again until the refresh period passes. See
+    // SparkSetpointCache.
+    public static final double driveVelocitySetpointEpsilon = 0.01; // Wheel radians per second
+    public static final double turnPositionSetpointEpsilon = 0.001; // Radians
+    public static final double voltageSetpointEpsilon = 0.01; // Volts, for open loop and arbitrary feedforward
+    public static final double setpointRefreshPeriod = 0.1; // Seconds
+    /** If module setpoints should be sent to the Sparks from a background thread. See {@link SparkSetpointWriter}. */
+    public static final boolean asyncSparkSetpoints = false;
+
+    /**
+     * Describes the periodic traffic on the CAN bus with the module Sparks in a status frame profile. The odometry rate
+     * is planned with {@link SparkStatusProfile#TELEOP}. This must be kept in sync with the status frame periods
+     * configured in {@link ModuleIOSpark} and the other devices on the bus. The NavX is on SPI, so it doesn't use any
+     * CAN bandwidth.
+     */
+    static CANBusPlanner createCANBusPlanner(SparkStatusProfile profile) {
+        int moduleCount = 4;
+        var planner = new CANBusPlanner(1_000_000)
+            // Spark status 0 (applied output, bus voltage, current) and status 1 (faults) on every Spark
+            .addPeriodicFrames(profile.outputPeriodMs, moduleCount * 2).addPeriodicFrames(20, moduleCount * 2)
+            // Spark status 3 (analog absolute encoder) on the turn Sparks
+            .addPeriodicFrames(profile.analogPeriodMs, moduleCount)
+            // Setpoints sent to every Spark each loop, and the roboRIO's heartbeat
+            .addPeriodicFrames(20, moduleCount * 2).addPeriodicFrames(20, 1)
+            // Roller Talon SRX with default status frames (general, feedback, analog/temp/battery) and control frames
+            .addPeriodicFrames(10, 1).addPeriodicFrames(20, 1).addPeriodicFrames(160, 1).addPeriodicFrames(10, 1)
+            // Primary encoder velocity on every Spark
+            .addPeriodicFrames(profile.velocityPeriodMs, moduleCount * 2);
+        // Primary encoder position on every Spark, read by the odometry thread
+        if(profile.encoderAtOdometryRate) return planner.addOdometryFrames(moduleCount * 2);
+        return planner.addPeriodicFrames(profile.getEncoderPeriodMs(), moduleCount * 2);
+    }
 
     // Drive motor configuration
     public static final int driveMotorCurrentLimit = 38;
@@ -0,0 +1,370 @@
+package frc.robot.subsystems.drive;
+
+import static edu.wpi.first.units.Units.RadiansPerSecond;
+
+import edu.wpi.first.math.controller.SimpleMotorFeedforward;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.Timer;
+import frc.robot.util.TimingHistogram;
+import frc.robot.util.poseEstimator.SwerveOdometryIntegrator;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Runs the drive's velocity control on its own thread at {@link DriveConstants#driveControlFrequency}, independent of
+ * the 50 Hz main loop. Commands still run on the main loop and post chassis speed requests with
+ * {@link #post(double, double, double, double[])}; this thread picks up the newest request every tick, limits it with
+ * a {@link SwerveSetpointGenerator}, and sends the module setpoints. This lets the drivetrain follow requests at a
+ * higher bandwidth without the main loop's other subsystems delaying it.
+ *
+ * <p>
+ * Requests are handed over through a seqlock like {@link SparkOdometryThread}'s frames, so neither thread ever waits on
+ * the other. Each request carries a snapshot of the modules' measured state and feedforward gains taken on the main
+ * thread, since the {@link Module} fields behind them are updated by the main loop without any synchronization. If the
+ * main loop stops posting requests for {@link #REQUEST_TIMEOUT} seconds, or the robot is disabled, the thread stops
+ * sending setpoints and restarts from the measured state when requests resume.
+ *
+ * <p>
+ * This thread can't log through AdvantageKit, and what it does isn't replayed, so it's only used on the real robot.
+ * Call {@link #logMetrics()} every loop to publish its timing from the main thread.
+ */
+public class DriveControlThread {
+    /** How long a request is followed after it was posted, in seconds. */
+    private static final double REQUEST_TIMEOUT = 0.1;
+    /** Ticks whose period is over this multiple of the target period are counted as late. */
+    private static final double LATE_PERIOD_FACTOR = 1.5;
+    /** How often metrics are published, in seconds. */
+    private static final double METRICS_PERIOD = 1.0;
+    /** How many times the thread retries reading a request that's being written before using the previous one. */
+    private static final int MAX_READ_ATTEMPTS = 3;
+    /** How long {@link #release()} waits for the thread to stop sending setpoints, in periods. */
+    private static final double RELEASE_TIMEOUT_PERIODS = 3.0;
+    /** How often {@link #release()} checks if the thread has stopped sending setpoints, in nanoseconds. */
+    private static final long RELEASE_POLL_NANOS = 200_000;
+
+    private final Module[] modules;
+    private final Notifier notifier = new Notifier(this::run);
+    private final double period = 1.0 / DriveConstants.driveControlFrequency;
+
+    // The request mailbox. Written by the main thread and read by the control thread, guarded by the sequence: odd
+    // while a request is being written and even once it's complete.
+    private volatile long requestSequence = 0;
+    private double requestVx = 0.0;
+    private double requestVy = 0.0;
+    private double requestOmega = 0.0;
+    private final double[] requestAccelerations;
+    private long requestTimeMicros = 0;
+    private boolean requestActive = false;
+    private final double[] requestModuleSpeeds;
+    private final Rotation2d[] requestModuleAngles;
+    private final double[] requestDriveKs;
+    private final double[] requestDriveKv;
+    private final double[] requestDriveKa;
+    private volatile boolean parkRequested = false;
+    /** The sequence of the newest request the thread has finished a tick with. Written by the control thread. */
+    private volatile long acknowledgedSequence = 0;
+
+    // The last request read by the control thread
+    private long readSequence = 0;
+    private double vx = 0.0;
+    private double vy = 0.0;
+    private double omega = 0.0;
+    private final double[] accelerations;
+    private long timeMicros = 0;
+    private boolean active = false;
+    private final double[] moduleSpeeds;
+    private final Rotation2d[] moduleAngles;
+    private final double[] driveKs;
+    private final double[] driveKv;
+    private final double[] driveKa;
+
+    // Control state, only used by the control thread
+    private final SwerveSetpointGenerator setpointGenerator = new SwerveSetpointGenerator(
+        DriveConstants.moduleTranslations, DriveConstants.maxSpeedMetersPerSec,
+        DriveConstants.maxSteerVelocity.in(RadiansPerSecond), DriveConstants.driveSimMotor,
+        DriveConstants.driveMotorReduction, DriveConstants.driveMotorCurrentLimit, DriveConstants.wheelRadiusMeters,
+        DriveConstants.robotMassKg, DriveConstants.wheelCOF);
+    private boolean needsReset = true;
+    private final SwerveOdometryIntegrator chassisSpeedsSolver = new SwerveOdometryIntegrator(
+        DriveConstants.moduleTranslations);
+    private final double[] moduleVelocityX;
+    private final double[] moduleVelocityY;
+    private final double[] moduleWeights;
+    private final double[] moduleAnglesRad;
+    private final double[] xModuleAnglesRad;
+    private final double[] measuredSpeeds = new double[3];
+    private final SimpleMotorFeedforward[] feedforwards;
+
+    // Timing metrics, recorded by the control thread
+    private final TimingHistogram periodHistogram = new TimingHistogram(100, 300);
+    private final TimingHistogram executionHistogram = new TimingHistogram(10, 500);
+    private long lastRunStartMicros = 0;
+    private final AtomicLong lateTickCount = new AtomicLong();
+    private final AtomicLong controlledTickCount = new AtomicLong();
+    private final AtomicLong staleReadCount = new AtomicLong();
+    private final AtomicLong releaseTimeoutCount = new AtomicLong();
+    private final Timer metricsTimer = new Timer();
+    /** When the metrics were last published, in FPGA microseconds. The timer can fire late, so windows vary. */
+    private long lastMetricsMicros = 0;
+
+    /**
+     * Creates a new control thread for the given modules. The thread sends setpoints to the modules with
+     * {@link Module#runSetpoint(double, double, double)}, so the main loop must not also send them while it runs.
+     */
+    public DriveControlThread(Module[] modules) {
+        this.modules = modules;
+        int moduleCount = modules.length;
+        requestAccelerations = new double[moduleCount];
+        accelerations = new double[moduleCount];
+        requestModuleSpeeds = new double[moduleCount];
+        requestModuleAngles = new Rotation2d[moduleCount];
+        requestDriveKs = new double[moduleCount];
+        requestDriveKv = new double[moduleCount];
+        requestDriveKa = new double[moduleCount];
+        moduleSpeeds = new double[moduleCount];
+        moduleAngles = new Rotation2d[moduleCount];
+        driveKs = new double[moduleCount];
+        driveKv = new double[moduleCount];
+        driveKa = new double[moduleCount];
+        moduleVelocityX = new double[moduleCount];
+        moduleVelocityY = new double[moduleCount];
+        moduleWeights = new double[moduleCount];
+        moduleAnglesRad = new double[moduleCount];
+        xModuleAnglesRad = new double[moduleCount];
+        feedforwards = new SimpleMotorFeedforward[moduleCount];
+        for(int i = 0; i < moduleCount; i++) {
+            moduleWeights[i] = 1.0;
+            xModuleAnglesRad[i] = DriveConstants.moduleTranslations[i].getAngle().getRadians();
+            requestModuleAngles[i] = Rotation2d.kZero;
+            moduleAngles[i] = Rotation2d.kZero;
+            feedforwards[i] = new SimpleMotorFeedforward(0.0, 0.0, 0.0);
+        }
+        notifier.setName("DriveControlThread");
+    }
+
+    public void start() {
+        metricsTimer.start();
+        lastMetricsMicros = RobotController.getFPGATime();
+        notifier.startPeriodic(period);
+    }
+
+    /**
+     * Posts a new robot-relative chassis speed request. The speeds are discretized by the control thread for its own
+     * period, so they shouldn't be discretized beforehand. Must only be called from the main thread.
+     * @param accelerationsMps2 The acceleration feedforward for each module in meters per second squared.
+     */
+    public void post(double vx, double vy, double omega, double[] accelerationsMps2) {
+        writeRequest(vx, vy, omega, accelerationsMps2, true);
+    }
+
+    /**
+     * Returns how long a posted request waits on average before the thread sends it to the modules, in seconds. Requests
+     * are picked up on the thread's next tick, which is half a period away on average.
+     */
+    public double getExpectedWriteDelay() {
+        return period / 2;
+    }
+
+    /**
+     * Stops following requests, for when the drive is controlled some other way like characterization. Waits for the
+     * thread to finish a tick with the release, so it can't send another setpoint over the caller's outputs, unless it
+     * doesn't respond within a few periods. Must only be called from the main thread.
+     */
+    public void release() {
+        // Only the main thread writes requests, so it can read its own fields
+        if(requestActive) writeRequest(0.0, 0.0, 0.0, null, false);
+        long released = requestSequence;
+        if(acknowledgedSequence == released) return;
+
+        long deadlineNanos = System.nanoTime() + (long) (RELEASE_TIMEOUT_PERIODS * period * 1e9);
+        while(acknowledgedSequence != released) {
+            if(System.nanoTime() > deadlineNanos) {
+                releaseTimeoutCount.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(RELEASE_POLL_NANOS);
+        }
+    }
+
+    /**
+     * Turns the modules to an X arrangement once they're stopped, until a nonzero velocity is requested. Can be called
+     * from any thread.
+     */
+    public void park() {
+        parkRequested = true;
+    }
+
+    private void writeRequest(double vx, double vy, double omega, double[] accelerationsMps2, boolean active) {
+        long sequence = requestSequence;
+        requestSequence = sequence + 1;
+        // Make sure the odd sequence is visible before any of the fields change
+        VarHandle.storeStoreFence();
+        requestVx = vx;
+        requestVy = vy;
+        requestOmega = omega;
+        for(int i = 0; i < requestAccelerations.length; i++) {
+            requestAccelerations[i] = accelerationsMps2 != null ? accelerationsMps2[i] : 0.0;
+        }
+        requestTimeMicros = RobotController.getFPGATime();
+        requestActive = active;
+        for(int i = 0; i < modules.length; i++) {
+            requestModuleSpeeds[i] = modules[i].getVelocityMetersPerSec();
+            // Rotation2d is immutable, so sharing the reference is safe once the sequence publishes it
+            requestModuleAngles[i] = modules[i].getAngle();
+            SimpleMotorFeedforward feedforward = modules[i].getDriveFeedforward();
+            requestDriveKs[i] = feedforward.getKs();
+            requestDriveKv[i] = feedforward.getKv();
+            requestDriveKa[i] = feedforward.getKa();
+        }
+        requestSequence = sequence + 2;
+    }
+
+    /** Copies the newest request. Returns false if it was being written every time we tried. */
+    private boolean readRequest() {
+        for(int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long sequence = requestSequence;
+            if((sequence & 1) != 0) continue;
+
+            double readVx = requestVx, readVy = requestVy, readOmega = requestOmega;
+            for(int i = 0; i < accelerations.length; i++) {
+                accelerations[i] = requestAccelerations[i];
+                moduleSpeeds[i] = requestModuleSpeeds[i];
+                moduleAngles[i] = requestModuleAngles[i];
+                driveKs[i] = requestDriveKs[i];
+                driveKv[i] = requestDriveKv[i];
+                driveKa[i] = requestDriveKa[i];
+            }
+            long readTimeMicros = requestTimeMicros;
+            boolean readActive = requestActive;
+            // Make sure the copy is finished before checking that the request wasn't rewritten during it
+            VarHandle.loadLoadFence();
+            if(requestSequence != sequence) continue;
+
+            readSequence = sequence;
+            vx = readVx;
+            vy = readVy;
+            omega = readOmega;
+            timeMicros = readTimeMicros;
+            active = readActive;
+            return true;
+        }
+        return false;
+    }
+
+    private void run() {
+        long startMicros = RobotController.getFPGATime();
+        if(lastRunStartMicros != 0) {
+            long periodMicros = startMicros - lastRunStartMicros;
+            periodHistogram.record(periodMicros);
+            if(periodMicros > period * LATE_PERIOD_FACTOR * 1e6) lateTickCount.incrementAndGet();
+        }
+        lastRunStartMicros = startMicros;
+
+        // If the request couldn't be read, keep following the previous one; it's at most one tick old
+        if(!readRequest()) staleReadCount.incrementAndGet();
+
+        boolean requestFresh = active && startMicros - timeMicros < REQUEST_TIMEOUT * 1e6;
+        if(!requestFresh || DriverStation.isDisabled()) {
+            needsReset = true;
+        } else {
+            if(needsReset) {
+                resetToMeasured();
+                needsReset = false;
+            }
+            if(parkRequested) {
+                parkRequested = false;
+                setpointGenerator.park(xModuleAnglesRad);
+            }
+            runSetpoints();
+            controlledTickCount.incrementAndGet();
+        }
+        // Any setpoints for this request have been sent
+        acknowledgedSequence = readSequence;
+
+        executionHistogram.record(RobotController.getFPGATime() - startMicros);
+    }
+
+    /** Restarts the setpoint generator from the module states measured with the last request. */
+    private void resetToMeasured() {
+        for(int i = 0; i < modules.length; i++) {
+            Rotation2d angle = moduleAngles[i];
+            moduleVelocityX[i] = moduleSpeeds[i] * angle.getCos();
+            moduleVelocityY[i] = moduleSpeeds[i] * angle.getSin();
+            moduleAnglesRad[i] = angle.getRadians();
+        }
+        chassisSpeedsSolver.solveTwist(moduleVelocityX, moduleVelocityY, moduleWeights, measuredSpeeds);
+        setpointGenerator.reset(measuredSpeeds[0], measuredSpeeds[1], measuredSpeeds[2], moduleAnglesRad);
+    }
+
+    /** Discretizes the request for this thread's period, limits it, and sends it to the modules. */
+    private void runSetpoints() {
+        // Equivalent to ChassisSpeeds.discretize: find the twist that moves along an arc to where the robot would be
+        // after one period at the requested speeds, so translating while rotating doesn't drift
+        double dx = vx * period, dy = vy * period, dtheta = omega * period;
+        double halfDtheta = dtheta / 2.0;
+        double cosMinusOne = Math.cos(dtheta) - 1.0;
+        double halfThetaByTanOfHalfDtheta = Math.abs(cosMinusOne) < 1E-9 ? 1.0 - dtheta * dtheta / 12.0
+            : -(halfDtheta * Math.sin(dtheta)) / cosMinusOne;
+        double discreteVx = (dx * halfThetaByTanOfHalfDtheta + dy * halfDtheta) / period;
+        double discreteVy = (dy * halfThetaByTanOfHalfDtheta - dx * halfDtheta) / period;
+
+        setpointGenerator.generate(discreteVx, discreteVy, omega, period);
+        for(int i = 0; i < modules.length; i++) {
+            // Same as Module.runSetpoint, but from the posted snapshot rather than the module's own fields, and on
+            // primitives so this thread doesn't allocate
+            double targetAngleRad = setpointGenerator.getModuleAngle(i);
+            double measuredAngleRad = moduleAngles[i].getRadians();
+            double angleRad = Module.optimizeAngleRad(targetAngleRad, measuredAngleRad);
+            double speed = Module.optimizeSpeed(setpointGenerator.getModuleSpeed(i), targetAngleRad, measuredAngleRad);
+
+            double speedRadPerSec = speed / DriveConstants.wheelRadiusMeters;
+            double accelerationRadPerSecPerSec = accelerations[i] / DriveConstants.wheelRadiusMeters;
+            double feedforwardVolts = getFeedforward(i).calculateWithVelocities(speedRadPerSec,
+                speedRadPerSec + accelerationRadPerSecPerSec * 0.02);
+            modules[i].runSetpoint(speedRadPerSec, feedforwardVolts, angleRad);
+        }
+    }
+
+    /** Returns the feedforward model for a module, rebuilding it if the posted gains have been tuned. */
+    private SimpleMotorFeedforward getFeedforward(int module) {
+        SimpleMotorFeedforward feedforward = feedforwards[module];
+        if(feedforward.getKs() != driveKs[module] || feedforward.getKv() != driveKv[module]
+            || feedforward.getKa() != driveKa[module]) {
+            feedforward = new SimpleMotorFeedforward(driveKs[module], driveKv[module], driveKa[module]);
+            feedforwards[module] = feedforward;
+        }
+        return feedforward;
+    }
+
+    /**
+     * Publishes the control thread's timing metrics if enough time has passed since they were last published. Must be
+     * called from the main thread.
+     */
+    public void logMetrics() {
+        if(!metricsTimer.advanceIfElapsed(METRICS_PERIOD)) return;
+
+        periodHistogram.updateWindow();
+        executionHistogram.updateWindow();
+        long nowMicros = RobotController.getFPGATime();
+        double windowSeconds = (nowMicros - lastMetricsMicros) / 1e6;
+        lastMetricsMicros = nowMicros;
+
+        Logger.recordOutput("Drive/ControlThread/TargetFrequency", DriveConstants.driveControlFrequency);
+        Logger.recordOutput("Drive/ControlThread/MeasuredFrequency", periodHistogram.getWindowCount() / windowSeconds);
+        Logger.recordOutput("Drive/ControlThread/PeriodP50Micros", periodHistogram.getP50Micros());
+        Logger.recordOutput("Drive/ControlThread/PeriodP99Micros", periodHistogram.getP99Micros());
+        Logger.recordOutput("Drive/ControlThread/PeriodMaxMicros", periodHistogram.getMaxMicros());
+        Logger.recordOutput("Drive/ControlThread/ExecutionP50Micros", executionHistogram.getP50Micros());
+        Logger.recordOutput("Drive/ControlThread/ExecutionP99Micros", executionHistogram.getP99Micros());
+        Logger.recordOutput("Drive/ControlThread/ExecutionMaxMicros", executionHistogram.getMaxMicros());
+        Logger.recordOutput("Drive/ControlThread/LateTicks", lateTickCount.get());
+        Logger.recordOutput("Drive/ControlThread/ControlledTicks", controlledTickCount.get());
+        Logger.recordOutput("Drive/ControlThread/StaleReads", staleReadCount.get());
+        Logger.recordOutput("Drive/ControlThread/ReleaseTimeouts", releaseTimeoutCount.get());
+    }
+}
@@ -10,7 +10,8 @@ public interface GyroIO {
         public Rotation2d yawPosition = new Rotation2d();
         public double yawVelocityRadPerSec = 0.0;
         public double[] odometryYawTimestamps = new double[] {};
-        public Rotation2d[] odometryYawPositions = new Rotation2d[] {};
+        public double[] odometryYawPositionsRad = new double[] {};
+        public boolean[] odometryYawValid = new boolean[] {};
     }
 
     public default void updateInputs(GyroIOInputs inputs) {
@@ -6,17 +6,14 @@ import com.studica.frc.AHRS;
 import com.studica.frc.AHRS.NavXComType;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
-import java.util.Queue;
 
 /** IO implementation for NavX. */
 public class GyroIONavX implements GyroIO {
-    private final AHRS navX = new AHRS(NavXComType.kMXP_SPI, (byte) odometryFrequency);
-    private final Queue<Double> yawPositionQueue;
-    private final Queue<Double> yawTimestampQueue;
+    private final AHRS navX = new AHRS(NavXComType.kMXP_SPI, (byte) Math.min(odometryFrequency, maxGyroFrequency));
 
     public GyroIONavX() {
-        yawTimestampQueue = SparkOdometryThread.getInstance().makeTimestampQueue();
-        yawPositionQueue = SparkOdometryThread.getInstance().registerSignal(navX::getAngle);
+        SparkOdometryThread.getInstance().registerGyro(() -> Units.degreesToRadians(-navX.getAngle()),
+            navX::isConnected);
     }
 
     @Override
@@ -25,10 +22,18 @@ public class GyroIONavX implements GyroIO {
         inputs.yawPosition = Rotation2d.fromDegrees(-navX.getAngle());
         inputs.yawVelocityRadPerSec = Units.degreesToRadians(-navX.getRawGyroZ());
 
-        inputs.odometryYawTimestamps = yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-        inputs.odometryYawPositions = yawPositionQueue.stream().map((Double value) -> Rotation2d.fromDegrees(-value))
-            .toArray(Rotation2d[]::new);
-        yawTimestampQueue.clear();
-        yawPositionQueue.clear();
+        // Update odometry inputs from the frames consumed by the drive subsystem this loop. New arrays are used
+        // because AdvantageKit keeps a reference to logged arrays, but yaws are stored as radians.
+        var odometryThread = SparkOdometryThread.getInstance();
+        int sampleCount = odometryThread.getConsumedFrameCount();
+        inputs.odometryYawTimestamps = new double[sampleCount];
+        inputs.odometryYawPositionsRad = new double[sampleCount];
+        inputs.odometryYawValid = new boolean[sampleCount];
+        for(int i = 0; i < sampleCount; i++) {
+            OdometryFrame frame = odometryThread.getConsumedFrame(i);
+            inputs.odometryYawTimestamps[i] = frame.timestamp;
+            inputs.odometryYawPositionsRad[i] = frame.gyroYawRad;
+            inputs.odometryYawValid[i] = frame.gyroValid;
+        }
     }
 }
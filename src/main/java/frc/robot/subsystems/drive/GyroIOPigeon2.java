@@ -11,14 +11,11 @@ import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.units.measure.Angle;
 import edu.wpi.first.units.measure.AngularVelocity;
-import java.util.Queue;
 
 /** IO implementation for Pigeon 2. */
 public class GyroIOPigeon2 implements GyroIO {
     private final Pigeon2 pigeon = new Pigeon2(10);
     private final StatusSignal<Angle> yaw = pigeon.getYaw();
-    private final Queue<Double> yawPositionQueue;
-    private final Queue<Double> yawTimestampQueue;
     private final StatusSignal<AngularVelocity> yawVelocity = pigeon.getAngularVelocityZWorld();
 
     public GyroIOPigeon2() {
@@ -27,8 +24,8 @@ public class GyroIOPigeon2 implements GyroIO {
         yaw.setUpdateFrequency(odometryFrequency);
         yawVelocity.setUpdateFrequency(50.0);
         pigeon.optimizeBusUtilization();
-        yawTimestampQueue = SparkOdometryThread.getInstance().makeTimestampQueue();
-        yawPositionQueue = SparkOdometryThread.getInstance().registerSignal(yaw::getValueAsDouble);
+        SparkOdometryThread.getInstance().registerGyro(() -> Units.degreesToRadians(yaw.getValueAsDouble()),
+            () -> yaw.getStatus().isOK());
     }
 
     @Override
@@ -37,10 +34,18 @@ public class GyroIOPigeon2 implements GyroIO {
         inputs.yawPosition = Rotation2d.fromDegrees(yaw.getValueAsDouble());
         inputs.yawVelocityRadPerSec = Units.degreesToRadians(yawVelocity.getValueAsDouble());
 
-        inputs.odometryYawTimestamps = yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-        inputs.odometryYawPositions = yawPositionQueue.stream().map((Double value) -> Rotation2d.fromDegrees(value))
-            .toArray(Rotation2d[]::new);
-        yawTimestampQueue.clear();
-        yawPositionQueue.clear();
+        // Update odometry inputs from the frames consumed by the drive subsystem this loop. New arrays are used
+        // because AdvantageKit keeps a reference to logged arrays, but yaws are stored as radians.
+        var odometryThread = SparkOdometryThread.getInstance();
+        int sampleCount = odometryThread.getConsumedFrameCount();
+        inputs.odometryYawTimestamps = new double[sampleCount];
+        inputs.odometryYawPositionsRad = new double[sampleCount];
+        inputs.odometryYawValid = new boolean[sampleCount];
+        for(int i = 0; i < sampleCount; i++) {
+            OdometryFrame frame = odometryThread.getConsumedFrame(i);
+            inputs.odometryYawTimestamps[i] = frame.timestamp;
+            inputs.odometryYawPositionsRad[i] = frame.gyroYawRad;
+            inputs.odometryYawValid[i] = frame.gyroValid;
+        }
     }
 }
@@ -2,8 +2,10 @@ package frc.robot.subsystems.drive;
 
 import static edu.wpi.first.units.Units.RadiansPerSecond;
 
+import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
 import frc.robot.util.SparkUtil;
+import java.util.Arrays;
 import org.ironmaple.simulation.drivesims.GyroSimulation;
 
 public class GyroIOSim implements GyroIO {
@@ -21,6 +23,12 @@ public class GyroIOSim implements GyroIO {
             .degreesToRadians(gyroSimulation.getMeasuredAngularVelocity().in(RadiansPerSecond));
 
         inputs.odometryYawTimestamps = SparkUtil.getSimulationOdometryTimestamps();
-        inputs.odometryYawPositions = gyroSimulation.getCachedGyroReadings();
+        Rotation2d[] cachedReadings = gyroSimulation.getCachedGyroReadings();
+        inputs.odometryYawPositionsRad = new double[cachedReadings.length];
+        for(int i = 0; i < cachedReadings.length; i++) {
+            inputs.odometryYawPositionsRad[i] = cachedReadings[i].getRadians();
+        }
+        inputs.odometryYawValid = new boolean[cachedReadings.length];
+        Arrays.fill(inputs.odometryYawValid, true);
     }
 }
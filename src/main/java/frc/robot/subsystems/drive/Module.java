@@ -2,6 +2,7 @@ package frc.robot.subsystems.drive;
 
 import static frc.robot.subsystems.drive.DriveConstants.*;
 
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.controller.SimpleMotorFeedforward;
 import edu.wpi.first.math.filter.Debouncer;
 import edu.wpi.first.math.filter.Debouncer.DebounceType;
@@ -13,6 +14,8 @@ import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.Alert.AlertType;
 import frc.robot.Constants;
 import frc.robot.util.LoggedTunableNumber;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import java.util.Arrays;
 
 import org.littletonrobotics.junction.Logger;
 
@@ -48,14 +51,29 @@ public class Module {
     private final ModuleIO io;
     private final ModuleIOInputsAutoLogged inputs = new ModuleIOInputsAutoLogged();
     private final String name;
+    // Log keys, built once so the periodic loop doesn't allocate them
+    private final String inputsKey;
+    private final String interpolatedOdometrySamplesKey;
+    private final String updateInputsMicrosKey;
 
     private SimpleMotorFeedforward ffModel;
+    // The last setpoint angle that was flipped when optimizing and what it was flipped to
+    private Rotation2d lastFlippedTarget = null;
+    private Rotation2d lastFlippedAngle = null;
 
     private final Alert driveDisconnectedAlert;
     private final Alert turnDisconnectedAlert;
     private final Alert turnEncoderDisconnectedAlert;
 
-    private SwerveModulePosition[] odometryPositions = new SwerveModulePosition[] {};
+    // Odometry samples received this cycle. These are reused between cycles and only grow, so only the first
+    // odometrySampleCount entries are used.
+    private int odometrySampleCount = 0;
+    private double[] odometryDistancesMeters = new double[0];
+    private double[] odometryAnglesRad = new double[0];
+    private boolean[] odometryDriveValid = new boolean[0];
+    private boolean[] odometryTurnValid = new boolean[0];
+    /** The number of odometry samples with an unreadable signal that were recovered by interpolation. */
+    private long interpolatedOdometrySamples = 0;
 
     /**
      * A debouncer used to reset the module to absolute after it hasn't rotated for a period of time. Used to prevent
@@ -70,6 +88,9 @@ public class Module {
     public Module(ModuleIO io, String name) {
         this.io = io;
         this.name = name;
+        inputsKey = "Drive/Module" + name;
+        interpolatedOdometrySamplesKey = inputsKey + "/InterpolatedOdometrySamples";
+        updateInputsMicrosKey = inputsKey + "/UpdateInputsMicros";
 
         ffModel = new SimpleMotorFeedforward(driveS.get(), driveV.get(), driveA.get());
 
@@ -96,17 +117,32 @@ public class Module {
             io.resetToAbsolute();
         }
 
+        long updateStartNanos = System.nanoTime();
         io.updateInputs(inputs);
-        Logger.processInputs("Drive/Module" + name, inputs);
+        Logger.recordOutput(updateInputsMicrosKey, (System.nanoTime() - updateStartNanos) / 1000.0);
+        Logger.processInputs(inputsKey, inputs);
 
-        // Calculate positions for odometry
+        // Calculate positions for odometry. Samples where a signal couldn't be read are interpolated from the valid
+        // samples around them; ones at the end of the loop can't be yet, so they're left for RobotState to hold.
         int sampleCount = inputs.odometryTimestamps.length; // All signals are sampled together
-        odometryPositions = new SwerveModulePosition[sampleCount];
+        if(odometryDistancesMeters.length < sampleCount) {
+            odometryDistancesMeters = new double[sampleCount];
+            odometryAnglesRad = new double[sampleCount];
+            odometryDriveValid = new boolean[sampleCount];
+            odometryTurnValid = new boolean[sampleCount];
+        }
+        odometrySampleCount = sampleCount;
         for(int i = 0; i < sampleCount; i++) {
-            double positionMeters = inputs.odometryDrivePositionsRad[i] * wheelRadiusMeters;
-            Rotation2d angle = inputs.odometryTurnPositions[i];
-            odometryPositions[i] = new SwerveModulePosition(positionMeters, angle);
+            odometryDistancesMeters[i] = inputs.odometryDrivePositionsRad[i] * wheelRadiusMeters;
+            odometryAnglesRad[i] = inputs.odometryTurnPositionsRad[i];
         }
+        copyValidity(inputs.odometryDriveValid, odometryDriveValid, sampleCount);
+        copyValidity(inputs.odometryTurnValid, odometryTurnValid, sampleCount);
+        interpolatedOdometrySamples += interpolateInvalidSamples(inputs.odometryTimestamps, odometryDistancesMeters,
+            odometryDriveValid, sampleCount, false);
+        interpolatedOdometrySamples += interpolateInvalidSamples(inputs.odometryTimestamps, odometryAnglesRad,
+            odometryTurnValid, sampleCount, true);
+        Logger.recordOutput(interpolatedOdometrySamplesKey, interpolatedOdometrySamples);
 
         // Update alerts
         driveDisconnectedAlert.set(!inputs.driveConnected);
@@ -126,16 +162,57 @@ public class Module {
      * Runs the module with the specified setpoint state and acceleration in meters per second per second.
      */
     public void runSetpoint(SwerveModuleState state, double accelerationMps2) {
-        // Optimize velocity setpoint
-        state.optimize(getAngle());
-        state.cosineScale(inputs.relativeTurnPosition);
+        // Optimize velocity setpoint. Same as SwerveModuleState.optimize and cosineScale, but the flipped angle is only
+        // created when the setpoint's angle changes.
+        double targetAngleRad = state.angle.getRadians();
+        double currentAngleRad = getAngle().getRadians();
+        state.speedMetersPerSecond = optimizeSpeed(state.speedMetersPerSecond, targetAngleRad, currentAngleRad);
+        if(optimizeAngleRad(targetAngleRad, currentAngleRad) != targetAngleRad) {
+            if(state.angle != lastFlippedTarget) {
+                lastFlippedTarget = state.angle;
+                lastFlippedAngle = state.angle.rotateBy(Rotation2d.kPi);
+            }
+            state.angle = lastFlippedAngle;
+        }
 
         // Apply setpoints
         double speedRadPerSec = state.speedMetersPerSecond / DriveConstants.wheelRadiusMeters;
         double accelerationRadPerSecPerSec = accelerationMps2 / DriveConstants.wheelRadiusMeters;
         io.setDriveVelocity(speedRadPerSec,
             ffModel.calculateWithVelocities(speedRadPerSec, speedRadPerSec + accelerationRadPerSecPerSec * 0.02));
-        io.setTurnPosition(state.angle);
+        io.setTurnPosition(state.angle.getRadians());
+    }
+
+    /**
+     * Sends a setpoint that's already been optimized against the module's angle and had its feedforward calculated. Only
+     * uses the IO, not this module's inputs or feedforward model, so {@link DriveControlThread} can call it with the
+     * snapshot it was posted instead of reading state the main loop is updating.
+     */
+    public void runSetpoint(double driveVelocityRadPerSec, double driveFeedforwardVolts, double turnAngleRad) {
+        io.setDriveVelocity(driveVelocityRadPerSec, driveFeedforwardVolts);
+        io.setTurnPosition(turnAngleRad);
+    }
+
+    /**
+     * Returns the angle to turn to for a setpoint, flipped by half a turn if it's more than 90 degrees from the current
+     * angle, like {@link SwerveModuleState#optimize}. Doesn't allocate.
+     */
+    public static double optimizeAngleRad(double targetAngleRad, double currentAngleRad) {
+        return Math.abs(MathUtil.angleModulus(targetAngleRad - currentAngleRad)) > Math.PI / 2
+            ? targetAngleRad + Math.PI : targetAngleRad;
+    }
+
+    /**
+     * Returns the speed for a setpoint after {@link #optimizeAngleRad} and {@link SwerveModuleState#cosineScale}.
+     * Flipping the angle also reverses the speed and the sign of the cosine, so the result is the same either way.
+     */
+    public static double optimizeSpeed(double speed, double targetAngleRad, double currentAngleRad) {
+        return speed * Math.cos(targetAngleRad - currentAngleRad);
+    }
+
+    /** Returns the current drive feedforward model. */
+    public SimpleMotorFeedforward getDriveFeedforward() {
+        return ffModel;
     }
 
     /** Sets if the drive and turn motors are in brake mode. */
@@ -149,13 +226,13 @@ public class Module {
      */
     public void runCharacterization(double output) {
         io.setDriveOpenLoop(output);
-        io.setTurnPosition(Rotation2d.kZero);
+        io.setTurnPosition(0.0);
     }
 
     /** Characterize robot angular motion. */
     public void runAngularCharacterization(double output) {
         io.setDriveOpenLoop(output);
-        io.setTurnPosition(Rotation2d.fromDegrees(switch(name) {
+        io.setTurnPosition(Math.toRadians(switch(name) {
             case "FrontLeft" -> 135.0;
             case "FrontRight" -> 45.0;
             case "BackLeft" -> -135.0;
@@ -195,9 +272,68 @@ public class Module {
         return new SwerveModuleState(getVelocityMetersPerSec(), getAngle());
     }
 
-    /** Returns the module positions received this cycle. */
-    public SwerveModulePosition[] getOdometryPositions() {
-        return odometryPositions;
+    /** Gets the module state (turn angle and drive velocity) without allocating. */
+    public void getState(SwerveModuleState out) {
+        out.speedMetersPerSecond = getVelocityMetersPerSec();
+        out.angle = getAngle();
+    }
+
+    /** Returns the number of odometry samples received this cycle. */
+    public int getOdometrySampleCount() {
+        return odometrySampleCount;
+    }
+
+    /**
+     * Gets a module position received this cycle without allocating.
+     * @param sampleIndex The index of the sample, less than {@link #getOdometrySampleCount()}.
+     * @param out Receives the position.
+     */
+    public void getOdometryPosition(int sampleIndex, MutableSwerveModulePosition out) {
+        out.set(odometryDistancesMeters[sampleIndex], odometryAnglesRad[sampleIndex]);
+    }
+
+    /** Returns if a module position received this cycle is valid. Invalid positions should be ignored. */
+    public boolean isOdometryPositionValid(int sampleIndex) {
+        return odometryDriveValid[sampleIndex] && odometryTurnValid[sampleIndex];
+    }
+
+    /**
+     * Copies the validity of each odometry sample. Logs from before validity was recorded don't include it, so every
+     * sample is treated as valid in that case.
+     */
+    private static void copyValidity(boolean[] validity, boolean[] out, int sampleCount) {
+        if(validity.length == sampleCount) {
+            System.arraycopy(validity, 0, out, 0, sampleCount);
+        } else {
+            Arrays.fill(out, 0, sampleCount, true);
+        }
+    }
+
+    /**
+     * Linearly interpolates invalid samples that have a valid sample on both sides, and marks them as valid.
+     * @param sampleCount The number of samples to use from the start of the arrays.
+     * @param isAngle If the values are angles in radians, in which case the shortest path between them is used.
+     * @return The number of samples that were interpolated.
+     */
+    private static int interpolateInvalidSamples(double[] timestamps, double[] values, boolean[] valid,
+        int sampleCount, boolean isAngle) {
+        int interpolated = 0;
+        int previousValid = -1;
+        for(int i = 0; i < sampleCount; i++) {
+            if(!valid[i]) continue;
+            if(previousValid >= 0 && i - previousValid > 1) {
+                double start = values[previousValid];
+                double change = isAngle ? MathUtil.angleModulus(values[i] - start) : values[i] - start;
+                double duration = timestamps[i] - timestamps[previousValid];
+                for(int j = previousValid + 1; j < i; j++) {
+                    values[j] = start + change * (timestamps[j] - timestamps[previousValid]) / duration;
+                    valid[j] = true;
+                    interpolated++;
+                }
+            }
+            previousValid = i;
+        }
+        return interpolated;
     }
 
     /** Returns the timestamps of the samples received this cycle. */
@@ -224,4 +360,9 @@ public class Module {
     public void setSlipMeasurementCurrentLimit(int amps) {
         io.setDriveCurrentLimit(amps);
     }
+
+    /** Changes the status frame periods of the module's motor controllers. */
+    public void setStatusProfile(SparkStatusProfile profile) {
+        io.setStatusProfile(profile);
+    }
 }
@@ -24,7 +24,15 @@ public interface ModuleIO {
 
         public double[] odometryTimestamps = new double[] {};
         public double[] odometryDrivePositionsRad = new double[] {};
-        public Rotation2d[] odometryTurnPositions = new Rotation2d[] {};
+        public double[] odometryTurnPositionsRad = new double[] {};
+        public boolean[] odometryDriveValid = new boolean[] {};
+        public boolean[] odometryTurnValid = new boolean[] {};
+
+        // Setpoints sent to the motor controllers and ones skipped because they matched the last one sent
+        public long driveSetpointsSent = 0;
+        public long driveSetpointsSuppressed = 0;
+        public long turnSetpointsSent = 0;
+        public long turnSetpointsSuppressed = 0;
     }
 
     /** Updates the set of loggable inputs. */
@@ -43,8 +51,8 @@ public interface ModuleIO {
     public default void setDriveVelocity(double velocityRadPerSec, double feedforward) {
     }
 
-    /** Run the turn motor to the specified rotation. */
-    public default void setTurnPosition(Rotation2d rotation) {
+    /** Run the turn motor to the specified position in radians. */
+    public default void setTurnPosition(double positionRad) {
     }
 
     /** Sets if the drive motor brake is enabled. */
@@ -72,4 +80,8 @@ public interface ModuleIO {
     /** Temporarily change the drive motor current limit. */
     public default void setDriveCurrentLimit(int limitAmps) {
     }
+
+    /** Changes the status frame periods of the motor controllers without blocking. */
+    public default void setStatusProfile(SparkStatusProfile profile) {
+    }
 }
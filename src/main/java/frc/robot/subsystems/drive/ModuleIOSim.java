@@ -10,7 +10,6 @@ import org.ironmaple.simulation.drivesims.SwerveModuleSimulation;
 import org.ironmaple.simulation.motorsims.SimulatedMotorController;
 
 import edu.wpi.first.math.controller.PIDController;
-import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.wpilibj.Timer;
 
 /** Physics sim implementation of module IO. */
@@ -81,8 +80,14 @@ public class ModuleIOSim implements ModuleIO {
         inputs.odometryDrivePositionsRad = new double[] {
             inputs.drivePositionRad
         };
-        inputs.odometryTurnPositions = new Rotation2d[] {
-            inputs.relativeTurnPosition
+        inputs.odometryTurnPositionsRad = new double[] {
+            inputs.relativeTurnPosition.getRadians()
+        };
+        inputs.odometryDriveValid = new boolean[] {
+            true
+        };
+        inputs.odometryTurnValid = new boolean[] {
+            true
         };
     }
 
@@ -106,9 +111,9 @@ public class ModuleIOSim implements ModuleIO {
     }
 
     @Override
-    public void setTurnPosition(Rotation2d rotation) {
+    public void setTurnPosition(double positionRad) {
         turnClosedLoop = true;
-        turnController.setSetpoint(rotation.getRadians());
+        turnController.setSetpoint(positionRad);
     }
 
     @Override
@@ -4,17 +4,15 @@ import static frc.robot.subsystems.drive.DriveConstants.*;
 import static frc.robot.util.SparkUtil.*;
 
 import com.revrobotics.RelativeEncoder;
-import com.revrobotics.spark.ClosedLoopSlot;
 import com.revrobotics.spark.SparkAnalogSensor;
 import com.revrobotics.spark.SparkBase;
 import com.revrobotics.spark.SparkBase.ControlType;
 import com.revrobotics.spark.SparkBase.PersistMode;
 import com.revrobotics.spark.SparkBase.ResetMode;
-import com.revrobotics.spark.SparkClosedLoopController;
-import com.revrobotics.spark.SparkClosedLoopController.ArbFFUnits;
 import com.revrobotics.spark.SparkFlex;
 import com.revrobotics.spark.SparkLowLevel.MotorType;
 import com.revrobotics.spark.config.ClosedLoopConfig.FeedbackSensor;
+import com.revrobotics.spark.config.SignalsConfig;
 import com.revrobotics.spark.config.SparkBaseConfig.IdleMode;
 import com.revrobotics.spark.config.SparkFlexConfig;
 import com.revrobotics.spark.config.SparkMaxConfig;
@@ -25,9 +23,9 @@ import edu.wpi.first.wpilibj.DriverStation;
 import frc.robot.Constants;
 import frc.robot.subsystems.drive.DriveConstants.SwerveModuleConfiguration;
 import frc.robot.util.AngleAverageFilter;
+import frc.robot.util.SparkSetpointCache;
+import frc.robot.util.SparkStatusReader;
 
-import java.util.Queue;
-import java.util.function.DoubleSupplier;
 
 /**
  * Module IO implementation for Spark Flex drive motor controller, Spark Max turn motor controller, and duty cycle
@@ -43,14 +41,8 @@ public class ModuleIOSpark implements ModuleIO {
     private final RelativeEncoder turnEncoder;
     private final SparkAnalogSensor turnAbsoluteEncoder;
 
-    // Closed loop controllers
-    private final SparkClosedLoopController driveController;
-    private final SparkClosedLoopController turnController;
-
-    // Queue inputs from odometry thread
-    private final Queue<Double> timestampQueue;
-    private final Queue<Double> drivePositionQueue;
-    private final Queue<Double> turnPositionQueue;
+    // The index of this module's positions in each odometry frame
+    private final int odometryModuleIndex;
 
     // Connection debouncers
     private final Debouncer driveConnectedDebounce = new Debouncer(0.5);
@@ -58,6 +50,22 @@ public class ModuleIOSpark implements ModuleIO {
     private final Debouncer turnEncoderConnectedDebounce = new Debouncer(0.5);
 
     private final AngleAverageFilter encoderFilter = new AngleAverageFilter(15);
+
+    // Skip sending setpoints the Sparks already have
+    private final SparkSetpointCache driveSetpointCache = new SparkSetpointCache(driveVelocitySetpointEpsilon,
+        voltageSetpointEpsilon, setpointRefreshPeriod);
+    private final SparkSetpointCache turnSetpointCache = new SparkSetpointCache(turnPositionSetpointEpsilon,
+        voltageSetpointEpsilon, setpointRefreshPeriod);
+    // Batched status reads, one per group of signals that share a connection check
+    private final SparkStatusReader driveStatus;
+    private final SparkStatusReader turnStatus;
+    private final SparkStatusReader turnAbsoluteStatus;
+    /** The absolute turn position the absolute rotations were last created from, or NaN before the first read. */
+    private double lastAbsoluteTurnPositionRad = Double.NaN;
+
+    // Setpoints that pass the cache are sent through these, off the main loop if asynchronous writes are enabled
+    private final SparkSetpointWriter.Slot driveSetpointSlot;
+    private final SparkSetpointWriter.Slot turnSetpointSlot;
     private boolean didResetToAbsolute = false;
 
     public ModuleIOSpark(SwerveModuleConfiguration config) {
@@ -72,10 +80,7 @@ public class ModuleIOSpark implements ModuleIO {
         driveConfig.encoder.positionConversionFactor(driveEncoderPositionFactor)
             .velocityConversionFactor(driveEncoderVelocityFactor).uvwMeasurementPeriod(10).uvwAverageDepth(2);
         driveConfig.closedLoop.feedbackSensor(FeedbackSensor.kPrimaryEncoder).pidf(driveKp, 0.0, driveKd, 0.0);
-        driveConfig.signals.primaryEncoderPositionAlwaysOn(true)
-            .primaryEncoderPositionPeriodMs((int) (1000.0 / odometryFrequency)).primaryEncoderVelocityAlwaysOn(true)
-            .primaryEncoderVelocityPeriodMs(20).appliedOutputPeriodMs(20).busVoltagePeriodMs(20)
-            .outputCurrentPeriodMs(20);
+        configureSignals(driveConfig.signals, SparkStatusProfile.TELEOP, false);
 
         tryUntilOk(driveSpark, 5,
             () -> driveSpark.configure(driveConfig, ResetMode.kResetSafeParameters, PersistMode.kPersistParameters));
@@ -94,11 +99,7 @@ public class ModuleIOSpark implements ModuleIO {
         // setting with SmartMotion or MAXMotion, but it doesn't support PID position wrapping :(
         turnConfig.closedLoop.feedbackSensor(FeedbackSensor.kPrimaryEncoder).positionWrappingEnabled(true)
             .positionWrappingInputRange(turnPIDMinInput, turnPIDMaxInput).pidf(turnKp, 0.0, turnKd, 0.0);
-        turnConfig.signals.analogPositionAlwaysOn(true).analogPositionPeriodMs(20).analogVelocityAlwaysOn(true)
-            .analogVelocityPeriodMs(20).primaryEncoderPositionAlwaysOn(true)
-            .primaryEncoderPositionPeriodMs((int) (1000.0 / DriveConstants.odometryFrequency))
-            .primaryEncoderVelocityAlwaysOn(true).primaryEncoderVelocityPeriodMs(20).appliedOutputPeriodMs(20)
-            .busVoltagePeriodMs(20).outputCurrentPeriodMs(20);
+        configureSignals(turnConfig.signals, SparkStatusProfile.TELEOP, true);
 
         tryUntilOk(turnSpark, 5,
             () -> turnSpark.configure(turnConfig, ResetMode.kResetSafeParameters, PersistMode.kPersistParameters));
@@ -107,15 +108,18 @@ public class ModuleIOSpark implements ModuleIO {
         turnEncoder = turnSpark.getEncoder();
         turnAbsoluteEncoder = turnSpark.getAnalog();
 
-        driveController = driveSpark.getClosedLoopController();
-        turnController = turnSpark.getClosedLoopController();
+        driveSetpointSlot = SparkSetpointWriter.getInstance().register(driveSpark);
+        driveStatus = new SparkStatusReader(driveSpark, driveEncoder::getPosition, driveEncoder::getVelocity, true);
+        turnStatus = new SparkStatusReader(turnSpark, turnEncoder::getPosition, null, true);
+        turnAbsoluteStatus = new SparkStatusReader(turnSpark, turnAbsoluteEncoder::getPosition,
+            turnAbsoluteEncoder::getVelocity, false);
+        turnSetpointSlot = SparkSetpointWriter.getInstance().register(turnSpark);
 
         tryUntilOk(driveSpark, 5, () -> driveEncoder.setPosition(0.0));
 
-        // Create odometry queues
-        timestampQueue = SparkOdometryThread.getInstance().makeTimestampQueue();
-        drivePositionQueue = SparkOdometryThread.getInstance().registerSignal(driveSpark, driveEncoder::getPosition);
-        turnPositionQueue = SparkOdometryThread.getInstance().registerSignal(turnSpark, turnEncoder::getPosition);
+        // Register with the odometry thread
+        odometryModuleIndex = SparkOdometryThread.getInstance().registerModule(driveSpark, driveEncoder::getPosition,
+            turnSpark, turnEncoder::getPosition);
 
         registerSparkFaultAlerts(driveSpark, config.name() + " drive");
         registerSparkFaultAlerts(turnSpark, config.name() + " turn");
@@ -126,41 +130,56 @@ public class ModuleIOSpark implements ModuleIO {
     @Override
     public void updateInputs(ModuleIOInputs inputs) {
         // Update drive inputs
-        sparkStickyFault = false;
-        ifOk(driveSpark, driveEncoder::getPosition, (value) -> inputs.drivePositionRad = value);
-        ifOk(driveSpark, driveEncoder::getVelocity, (value) -> inputs.driveVelocityRadPerSec = value);
-        ifOk(driveSpark, new DoubleSupplier[] {
-            driveSpark::getAppliedOutput, driveSpark::getBusVoltage
-        }, (values) -> inputs.driveAppliedVolts = values[0] * values[1]);
-        ifOk(driveSpark, driveSpark::getOutputCurrent, (value) -> inputs.driveCurrentAmps = value);
-        inputs.driveConnected = driveConnectedDebounce.calculate(!sparkStickyFault);
+        driveStatus.read();
+        inputs.drivePositionRad = driveStatus.position;
+        inputs.driveVelocityRadPerSec = driveStatus.velocity;
+        inputs.driveAppliedVolts = driveStatus.appliedVolts;
+        inputs.driveCurrentAmps = driveStatus.currentAmps;
+        inputs.driveConnected = driveConnectedDebounce.calculate(driveStatus.valid);
+
+        // Update absolute turn inputs. Rotations are only created when the angle changes, so a stationary module
+        // doesn't allocate.
+        turnAbsoluteStatus.read();
+        inputs.turnVelocityRadPerSec = turnAbsoluteStatus.velocity;
+        if(turnAbsoluteStatus.position != lastAbsoluteTurnPositionRad) {
+            lastAbsoluteTurnPositionRad = turnAbsoluteStatus.position;
+            inputs.absoluteTurnPosition = new Rotation2d(turnAbsoluteStatus.position);
+            inputs.offsetAbsoluteTurnPosition = inputs.absoluteTurnPosition.minus(zeroRotation);
+        }
+        inputs.turnEncoderConnected = turnEncoderConnectedDebounce.calculate(turnAbsoluteStatus.valid);
 
         // Update turn inputs
-        sparkStickyFault = false;
-        ifOk(turnSpark, turnAbsoluteEncoder::getVelocity, (value) -> inputs.turnVelocityRadPerSec = value);
-        ifOk(turnSpark, turnAbsoluteEncoder::getPosition,
-            (value) -> inputs.absoluteTurnPosition = new Rotation2d(value));
-        ifOk(turnSpark, turnAbsoluteEncoder::getPosition,
-            (value) -> inputs.offsetAbsoluteTurnPosition = new Rotation2d(value).minus(zeroRotation));
-        // Update absolute turn inputs
-        inputs.turnEncoderConnected = turnEncoderConnectedDebounce.calculate(!sparkStickyFault);
-
-        sparkStickyFault = false;
-        ifOk(turnSpark, new DoubleSupplier[] {
-            turnSpark::getAppliedOutput, turnSpark::getBusVoltage
-        }, (values) -> inputs.turnAppliedVolts = values[0] * values[1]);
-        ifOk(turnSpark, turnSpark::getOutputCurrent, (value) -> inputs.turnCurrentAmps = value);
-        ifOk(turnSpark, turnEncoder::getPosition, (value) -> inputs.relativeTurnPosition = new Rotation2d(value));
-        inputs.turnConnected = turnConnectedDebounce.calculate(!sparkStickyFault);
-
-        // Update odometry inputs
-        inputs.odometryTimestamps = timestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-        inputs.odometryDrivePositionsRad = drivePositionQueue.stream().mapToDouble((Double value) -> value).toArray();
-        inputs.odometryTurnPositions = turnPositionQueue.stream().map(Rotation2d::new).toArray(Rotation2d[]::new);
-
-        timestampQueue.clear();
-        drivePositionQueue.clear();
-        turnPositionQueue.clear();
+        turnStatus.read();
+        inputs.turnAppliedVolts = turnStatus.appliedVolts;
+        inputs.turnCurrentAmps = turnStatus.currentAmps;
+        if(turnStatus.position != inputs.relativeTurnPosition.getRadians()) {
+            inputs.relativeTurnPosition = new Rotation2d(turnStatus.position);
+        }
+        inputs.turnConnected = turnConnectedDebounce.calculate(turnStatus.valid);
+
+        // Update odometry inputs from the frames consumed by the drive subsystem this loop. New arrays are used
+        // because AdvantageKit keeps a reference to logged arrays until its log receivers have written them, but
+        // angles are stored as radians so there's no rotation per sample.
+        var odometryThread = SparkOdometryThread.getInstance();
+        int sampleCount = odometryThread.getConsumedFrameCount();
+        inputs.odometryTimestamps = new double[sampleCount];
+        inputs.odometryDrivePositionsRad = new double[sampleCount];
+        inputs.odometryTurnPositionsRad = new double[sampleCount];
+        inputs.odometryDriveValid = new boolean[sampleCount];
+        inputs.odometryTurnValid = new boolean[sampleCount];
+        for(int i = 0; i < sampleCount; i++) {
+            OdometryFrame frame = odometryThread.getConsumedFrame(i);
+            inputs.odometryTimestamps[i] = frame.timestamp;
+            inputs.odometryDrivePositionsRad[i] = frame.drivePositionsRad[odometryModuleIndex];
+            inputs.odometryTurnPositionsRad[i] = frame.turnPositionsRad[odometryModuleIndex];
+            inputs.odometryDriveValid[i] = frame.driveValid[odometryModuleIndex];
+            inputs.odometryTurnValid[i] = frame.turnValid[odometryModuleIndex];
+        }
+
+        inputs.driveSetpointsSent = driveSetpointCache.getSentCount();
+        inputs.driveSetpointsSuppressed = driveSetpointCache.getSuppressedCount();
+        inputs.turnSetpointsSent = turnSetpointCache.getSentCount();
+        inputs.turnSetpointsSuppressed = turnSetpointCache.getSuppressedCount();
 
         if(!didResetToAbsolute) {
             encoderFilter.reset();
@@ -170,24 +189,27 @@ public class ModuleIOSpark implements ModuleIO {
 
     @Override
     public void setDriveOpenLoop(double output) {
-        driveSpark.setVoltage(output);
+        if(!driveSetpointCache.shouldSend(ControlType.kVoltage, output, 0.0)) return;
+        driveSetpointSlot.post(ControlType.kVoltage, output, 0.0);
     }
 
     @Override
     public void setTurnOpenLoop(double output) {
-        turnSpark.setVoltage(output);
+        if(!turnSetpointCache.shouldSend(ControlType.kVoltage, output, 0.0)) return;
+        turnSetpointSlot.post(ControlType.kVoltage, output, 0.0);
     }
 
     @Override
     public void setDriveVelocity(double velocityRadPerSec, double feedforward) {
-        driveController.setReference(velocityRadPerSec, ControlType.kVelocity, ClosedLoopSlot.kSlot0, feedforward,
-            ArbFFUnits.kVoltage);
+        if(!driveSetpointCache.shouldSend(ControlType.kVelocity, velocityRadPerSec, feedforward)) return;
+        driveSetpointSlot.post(ControlType.kVelocity, velocityRadPerSec, feedforward);
     }
 
     @Override
-    public void setTurnPosition(Rotation2d rotation) {
-        double setpoint = MathUtil.inputModulus(rotation.getRadians(), turnPIDMinInput, turnPIDMaxInput);
-        turnController.setReference(setpoint, ControlType.kPosition);
+    public void setTurnPosition(double positionRad) {
+        double setpoint = MathUtil.inputModulus(positionRad, turnPIDMinInput, turnPIDMaxInput);
+        if(!turnSetpointCache.shouldSend(ControlType.kPosition, setpoint, 0.0)) return;
+        turnSetpointSlot.post(ControlType.kPosition, setpoint, 0.0);
     }
 
     @Override
@@ -196,6 +218,7 @@ public class ModuleIOSpark implements ModuleIO {
         newConfig.closedLoop.pidf(kP, kI, kD, 0.0);
         tryUntilOk(driveSpark, 5,
             () -> driveSpark.configure(newConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters));
+        driveSetpointCache.invalidate();
     }
 
     @Override
@@ -204,6 +227,7 @@ public class ModuleIOSpark implements ModuleIO {
         newConfig.idleMode(enable ? IdleMode.kBrake : IdleMode.kCoast);
         tryUntilOk(driveSpark, 5,
             () -> driveSpark.configure(newConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters));
+        driveSetpointCache.invalidate();
     }
 
     @Override
@@ -212,6 +236,7 @@ public class ModuleIOSpark implements ModuleIO {
         newConfig.idleMode(enable ? IdleMode.kBrake : IdleMode.kCoast);
         tryUntilOk(turnSpark, 5,
             () -> turnSpark.configure(newConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters));
+        turnSetpointCache.invalidate();
     }
 
     @Override
@@ -221,9 +246,12 @@ public class ModuleIOSpark implements ModuleIO {
 
         didResetToAbsolute = true;
 
-        turnEncoder.setPosition(MathUtil.inputModulus(
-            encoderFilter.calculate(turnAbsoluteEncoder.getPosition() - zeroRotation.getRadians()), turnPIDMinInput,
-            turnPIDMaxInput));
+        // Held like a read, since the odometry thread reads this Spark and checks its error concurrently
+        synchronized(turnSpark) {
+            turnEncoder.setPosition(MathUtil.inputModulus(
+                encoderFilter.calculate(turnAbsoluteEncoder.getPosition() - zeroRotation.getRadians()), turnPIDMinInput,
+                turnPIDMaxInput));
+        }
     }
 
     @Override
@@ -236,6 +264,7 @@ public class ModuleIOSpark implements ModuleIO {
         newConfig.closedLoop.pidf(kP, kI, kD, 0.0).dFilter(dFilter);
         tryUntilOk(turnSpark, 5,
             () -> turnSpark.configure(newConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters));
+        turnSetpointCache.invalidate();
     }
 
     @Override
@@ -244,5 +273,41 @@ public class ModuleIOSpark implements ModuleIO {
         newConfig.smartCurrentLimit(limitAmps);
         tryUntilOk(driveSpark, 5,
             () -> driveSpark.configure(newConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters));
+        driveSetpointCache.invalidate();
+    }
+
+    @Override
+    public void setStatusProfile(SparkStatusProfile profile) {
+        // Applied asynchronously so switching modes doesn't stall the main loop waiting for acknowledgements. Status
+        // frame periods aren't persisted, so the Sparks fall back to the profile from the constructor after a reset.
+        // The calls still hold each Spark so they can't replace the error between the odometry thread's read and check.
+        SparkFlexConfig newDriveConfig = new SparkFlexConfig();
+        configureSignals(newDriveConfig.signals, profile, false);
+        synchronized(driveSpark) {
+            driveSpark.configureAsync(newDriveConfig, ResetMode.kNoResetSafeParameters,
+                PersistMode.kNoPersistParameters);
+        }
+
+        SparkMaxConfig newTurnConfig = new SparkMaxConfig();
+        configureSignals(newTurnConfig.signals, profile, true);
+        synchronized(turnSpark) {
+            turnSpark.configureAsync(newTurnConfig, ResetMode.kNoResetSafeParameters, PersistMode.kNoPersistParameters);
+        }
+    }
+
+    /**
+     * Sets the status frame periods for a profile. This must be kept in sync with
+     * {@link DriveConstants#createCANBusPlanner}.
+     * @param hasAnalogSensor If the Spark has the analog absolute encoder connected.
+     */
+    private static void configureSignals(SignalsConfig signals, SparkStatusProfile profile, boolean hasAnalogSensor) {
+        signals.primaryEncoderPositionAlwaysOn(true).primaryEncoderPositionPeriodMs(profile.getEncoderPeriodMs())
+            .primaryEncoderVelocityAlwaysOn(true).primaryEncoderVelocityPeriodMs(profile.velocityPeriodMs)
+            .appliedOutputPeriodMs(profile.outputPeriodMs).busVoltagePeriodMs(profile.outputPeriodMs)
+            .outputCurrentPeriodMs(profile.outputPeriodMs);
+        if(hasAnalogSensor) {
+            signals.analogPositionAlwaysOn(true).analogPositionPeriodMs(profile.analogPeriodMs)
+                .analogVelocityAlwaysOn(true).analogVelocityPeriodMs(profile.analogPeriodMs);
+        }
     }
 }
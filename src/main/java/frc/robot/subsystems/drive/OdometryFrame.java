@@ -0,0 +1,61 @@
+package frc.robot.subsystems.drive;
+
+/**
+ * A single sample from the odometry thread. Every signal in a frame is read during the same tick, so the drive
+ * positions, turn positions, and gyro yaw are always aligned to one timestamp. Frames are preallocated and reused by
+ * {@link SparkOdometryThread}; consumers should copy out what they need instead of holding onto them.
+ *
+ * <p>
+ * Each module signal and the gyro have their own validity flag. Positions whose signal couldn't be read hold an
+ * undefined value and must be ignored.
+ */
+public class OdometryFrame {
+    /** The FPGA timestamp the frame was sampled at, in seconds. */
+    public double timestamp = 0.0;
+    /** The drive position of each registered module, in radians of the wheel. */
+    public final double[] drivePositionsRad;
+    /** The turn position of each registered module, in radians. */
+    public final double[] turnPositionsRad;
+    /** If each module's drive position was read successfully. */
+    public final boolean[] driveValid;
+    /** If each module's turn position was read successfully. */
+    public final boolean[] turnValid;
+    /** The gyro yaw in radians, counterclockwise positive. Only meaningful if a gyro is registered. */
+    public double gyroYawRad = 0.0;
+    /** If the gyro yaw was read successfully. Always false if no gyro is registered. */
+    public boolean gyroValid = false;
+    /**
+     * The pose integrated by the odometry thread up to and including this frame, if
+     * {@link DriveConstants#highRateOdometryPose} is enabled. This is in the odometry thread's own frame, so only
+     * differences between frames are meaningful.
+     */
+    public double poseX = 0.0, poseY = 0.0, poseTheta = 0.0;
+
+    /**
+     * The number of the frame currently stored in this slot of the odometry thread's pool, or {@link #WRITING} while
+     * the odometry thread is writing to it. Used to detect frames that were overwritten while being copied.
+     */
+    volatile long sequence = WRITING;
+    static final long WRITING = -1;
+
+    OdometryFrame(int moduleCount) {
+        drivePositionsRad = new double[moduleCount];
+        turnPositionsRad = new double[moduleCount];
+        driveValid = new boolean[moduleCount];
+        turnValid = new boolean[moduleCount];
+    }
+
+    /** Copies the contents of another frame with the same module count into this one. */
+    void copyFrom(OdometryFrame other) {
+        timestamp = other.timestamp;
+        System.arraycopy(other.drivePositionsRad, 0, drivePositionsRad, 0, drivePositionsRad.length);
+        System.arraycopy(other.turnPositionsRad, 0, turnPositionsRad, 0, turnPositionsRad.length);
+        System.arraycopy(other.driveValid, 0, driveValid, 0, driveValid.length);
+        System.arraycopy(other.turnValid, 0, turnValid, 0, turnValid.length);
+        gyroYawRad = other.gyroYawRad;
+        gyroValid = other.gyroValid;
+        poseX = other.poseX;
+        poseY = other.poseY;
+        poseTheta = other.poseTheta;
+    }
+}
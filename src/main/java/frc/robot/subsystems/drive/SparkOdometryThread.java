@@ -2,28 +2,127 @@ package frc.robot.subsystems.drive;
 
 import com.revrobotics.REVLibError;
 import com.revrobotics.spark.SparkBase;
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Transform2d;
 import edu.wpi.first.wpilibj.Notifier;
 import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.Timer;
+import frc.robot.util.TimingHistogram;
+import frc.robot.util.poseEstimator.SwerveOdometryIntegrator;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
 import java.util.function.DoubleSupplier;
+import org.littletonrobotics.junction.AutoLog;
+import org.littletonrobotics.junction.Logger;
 
 /**
- * Provides an interface for asynchronously reading high-frequency measurements to a set of queues.
+ * Provides an interface for asynchronously reading high-frequency odometry measurements. Every tick produces a single
+ * {@link OdometryFrame} containing the timestamp, all module drive and turn positions, and the gyro yaw. Frames are
+ * written into a preallocated pool and handed to the main loop together with {@link #consumeFrames()}, so samples from
+ * different signals can never become misaligned.
  *
  * <p>
- * This version includes an overload for Spark signals, which checks for errors to ensure that all measurements in the
- * sample are valid.
+ * The handoff is lock-free so the odometry thread never waits on the main loop. Each frame slot works like a seqlock:
+ * the odometry thread marks the slot as being written, fills it, then stamps it with the frame number. The main loop
+ * checks the stamp before and after copying a frame and discards the frame if it was overwritten in the meantime. If
+ * the main loop falls more than {@link #FRAME_CAPACITY} frames behind, the oldest frames are overwritten and counted
+ * in {@link #getOverflowCount()}.
+ *
+ * <p>
+ * Spark signals are checked for errors, the gyro reports whether its yaw is valid, and each signal's validity is stored
+ * in the frame. If {@link DriveConstants#partialOdometryFrames} is enabled, frames with some invalid signals are still
+ * published so one flaky controller doesn't starve odometry for the whole drivetrain; otherwise any invalid signal
+ * discards the frame.
+ *
+ * <p>
+ * If {@link DriveConstants#highRateOdometryPose} is enabled, the thread also integrates the pose for every published
+ * frame and stores it in the frame. Once per loop, {@link #updateMovementInputs()} reads how far the robot has moved
+ * between the newest frame the main loop applied and the newest frame published, and logs it as an input so replay
+ * sees the same movement. {@link #getMovementSinceConsumedFrames()} returns it until the next loop.
+ *
+ * <p>
+ * The thread also measures its own timing and sample health. Call {@link #logMetrics()} every loop; it publishes the
+ * metrics at a low rate.
  */
 public class SparkOdometryThread {
-    private final List<SparkBase> sparks = new ArrayList<>();
-    private final List<DoubleSupplier> sparkSignals = new ArrayList<>();
-    private final List<DoubleSupplier> genericSignals = new ArrayList<>();
-    private final List<Queue<Double>> sparkQueues = new ArrayList<>();
-    private final List<Queue<Double>> genericQueues = new ArrayList<>();
-    private final List<Queue<Double>> timestampQueues = new ArrayList<>();
+    /** The number of frames that can wait for the main loop before the oldest are overwritten. Power of two. */
+    public static final int FRAME_CAPACITY = 32;
+    /** How many times the main loop tries to read the newest frame's pose if it's overwritten while being read. */
+    private static final int MAX_NEWEST_POSE_READ_ATTEMPTS = 3;
+
+    private final List<SparkBase> driveSparks = new ArrayList<>();
+    private final List<SparkBase> turnSparks = new ArrayList<>();
+    private final List<DoubleSupplier> drivePositionSignals = new ArrayList<>();
+    private final List<DoubleSupplier> turnPositionSignals = new ArrayList<>();
+    private DoubleSupplier gyroYawSignal = null;
+    private BooleanSupplier gyroValidSignal = null;
+
+    /** The frame pool written by the odometry thread. Allocated when the thread starts. */
+    private OdometryFrame[] frames = new OdometryFrame[0];
+    /** Copies of the frames taken by the last call to {@link #consumeFrames()}. Only used by the main thread. */
+    private OdometryFrame[] consumedFrames = new OdometryFrame[0];
+    private int consumedFrameCount = 0;
+
+    /** The total number of frames published. Only written by the odometry thread. */
+    private volatile long writeCount = 0;
+    /** The total number of frames the main loop has taken or skipped. Only used by the main thread. */
+    private long readCount = 0;
+
+    /** The number of torn frames discarded because they were overwritten before or while the main loop copied them. */
+    private long tornFrameCount = 0;
+    /** The number of frames overwritten before the main loop took them because the pool was full. */
+    private long overflowCount = 0;
+
+    /** Integrates the pose on the odometry thread. Null unless high-rate pose integration is enabled. */
+    private SwerveOdometryIntegrator poseIntegrator = null;
+    private double[] driveDistancesMeters = new double[0];
+    private boolean[] moduleValid = new boolean[0];
+    // The pose integrated from the newest frame taken by the main loop. Only used by the main thread.
+    private boolean hasConsumedPose = false;
+    private double consumedPoseX = 0.0, consumedPoseY = 0.0, consumedPoseTheta = 0.0;
+    /** The movement since the consumed frames, read once per loop. Replayed from the log in replay. */
+    private final OdometryMovementInputsAutoLogged movementInputs = new OdometryMovementInputsAutoLogged();
+    /** The movement from {@link #movementInputs}, created once per loop. */
+    private Optional<Transform2d> movementSinceConsumedFrames = Optional.empty();
+
+    /** How often metrics are published, in seconds. */
+    private static final double METRICS_PERIOD = 1.0;
+    private final Timer metricsTimer = new Timer();
+    /** When the metrics were last published, in FPGA microseconds. The timer can fire late, so windows vary. */
+    private long lastMetricsMicros = 0;
+
+    // Timing metrics, recorded by the odometry thread
+    private final TimingHistogram periodHistogram = new TimingHistogram(100, 300);
+    private final TimingHistogram executionHistogram = new TimingHistogram(10, 500);
+    private long lastRunStartMicros = 0;
+
+    /** How many notifier ticks pass between samples. Set by the main thread, read by the odometry thread. */
+    private volatile int ticksPerSample = 1;
+    /** The ticks left until the next sample. Only used by the odometry thread. */
+    private int ticksUntilSample = 0;
+
+    // Sample health metrics, recorded by the odometry thread
+    private final AtomicLong partialFrameCount = new AtomicLong();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private AtomicLongArray invalidDriveSampleCounts = new AtomicLongArray(0);
+    private AtomicLongArray invalidTurnSampleCounts = new AtomicLongArray(0);
+    private final AtomicLong invalidGyroSampleCount = new AtomicLong();
+
+    @AutoLog
+    public static class OdometryMovementInputs {
+        /** If the movement is known. False if high-rate pose integration is disabled or no frames were taken yet. */
+        public boolean hasMovement = false;
+        /** The movement, relative to the robot at the newest consumed frame, in meters and radians. */
+        public double movementX = 0.0;
+        public double movementY = 0.0;
+        public double movementTheta = 0.0;
+    }
 
     private static SparkOdometryThread instance = null;
     private Notifier notifier = new Notifier(this::run);
@@ -40,81 +139,298 @@ public class SparkOdometryThread {
     }
 
     public void start() {
-        if(timestampQueues.size() > 0) {
-            notifier.startPeriodic(1.0 / DriveConstants.odometryFrequency);
+        if(drivePositionSignals.isEmpty() && gyroYawSignal == null) return;
+
+        // Registration and allocation happen before the notifier starts, which makes them visible to the thread
+        int moduleCount = drivePositionSignals.size();
+        frames = new OdometryFrame[FRAME_CAPACITY];
+        consumedFrames = new OdometryFrame[FRAME_CAPACITY];
+        for(int i = 0; i < FRAME_CAPACITY; i++) {
+            frames[i] = new OdometryFrame(moduleCount);
+            consumedFrames[i] = new OdometryFrame(moduleCount);
         }
+        invalidDriveSampleCounts = new AtomicLongArray(moduleCount);
+        invalidTurnSampleCounts = new AtomicLongArray(moduleCount);
+
+        if(DriveConstants.highRateOdometryPose && moduleCount == DriveConstants.moduleTranslations.length) {
+            poseIntegrator = new SwerveOdometryIntegrator(DriveConstants.moduleTranslations,
+                DriveConstants.secondOrderOdometry);
+            driveDistancesMeters = new double[moduleCount];
+            moduleValid = new boolean[moduleCount];
+        }
+
+        metricsTimer.start();
+        lastMetricsMicros = RobotController.getFPGATime();
+        notifier.startPeriodic(1.0 / DriveConstants.odometryFrequency);
+    }
+
+    /**
+     * Registers a swerve module's drive and turn position signals to be read from the thread. Must be called before
+     * {@link #start()}.
+     * @return The index of the module's positions in each {@link OdometryFrame}.
+     */
+    public int registerModule(SparkBase driveSpark, DoubleSupplier drivePositionRad, SparkBase turnSpark,
+        DoubleSupplier turnPositionRad) {
+        driveSparks.add(driveSpark);
+        turnSparks.add(turnSpark);
+        drivePositionSignals.add(drivePositionRad);
+        turnPositionSignals.add(turnPositionRad);
+        return drivePositionSignals.size() - 1;
+    }
+
+    /**
+     * Registers the gyro yaw signal, in radians counterclockwise positive, to be read from the thread. Must be called
+     * before {@link #start()}.
+     * @param valid If the yaw read just before it is valid. Read right after the yaw every tick.
+     */
+    public void registerGyro(DoubleSupplier yawRad, BooleanSupplier valid) {
+        gyroYawSignal = yawRad;
+        gyroValidSignal = valid;
+    }
+
+    /**
+     * Sets how often the thread samples, rounded to a whole number of notifier periods. When the Sparks send positions
+     * slower than the odometry rate, sampling every tick would integrate the same positions several times and count
+     * them as valid. Can be called from the main thread while the thread is running.
+     * @param periodMs The period of the primary encoder position frames, in milliseconds.
+     */
+    public void setSamplePeriodMs(int periodMs) {
+        ticksPerSample = Math.max(1, (int) Math.round(periodMs * DriveConstants.odometryFrequency / 1000.0));
     }
 
-    /** Registers a Spark signal to be read from the thread. */
-    public Queue<Double> registerSignal(SparkBase spark, DoubleSupplier signal) {
-        Queue<Double> queue = new ArrayBlockingQueue<>(20);
-        Drive.odometryLock.lock();
-        try {
-            sparks.add(spark);
-            sparkSignals.add(signal);
-            sparkQueues.add(queue);
-        } finally {
-            Drive.odometryLock.unlock();
+    /**
+     * Takes every frame sampled since the last call. The frames are available from {@link #getConsumedFrame(int)}
+     * until the next call. This should be called once per loop by the drive subsystem before updating its inputs.
+     */
+    public void consumeFrames() {
+        consumedFrameCount = 0;
+        long publishedCount = writeCount;
+
+        // Skip frames that have already been overwritten
+        if(publishedCount - readCount > frames.length) {
+            overflowCount += publishedCount - frames.length - readCount;
+            readCount = publishedCount - frames.length;
+        }
+
+        for(; readCount < publishedCount; readCount++) {
+            OdometryFrame frame = frames[(int) readCount & (frames.length - 1)];
+            OdometryFrame copy = consumedFrames[consumedFrameCount];
+
+            if(frame.sequence != readCount) {
+                tornFrameCount++;
+                continue;
+            }
+            copy.copyFrom(frame);
+            // Make sure the copy is finished before checking that the frame wasn't overwritten during it
+            VarHandle.loadLoadFence();
+            if(frame.sequence != readCount) {
+                tornFrameCount++;
+                continue;
+            }
+
+            consumedFrameCount++;
+        }
+
+        if(poseIntegrator != null && consumedFrameCount > 0) {
+            OdometryFrame newest = consumedFrames[consumedFrameCount - 1];
+            hasConsumedPose = true;
+            consumedPoseX = newest.poseX;
+            consumedPoseY = newest.poseY;
+            consumedPoseTheta = newest.poseTheta;
         }
-        return queue;
-    }
-
-    /** Registers a generic signal to be read from the thread. */
-    public Queue<Double> registerSignal(DoubleSupplier signal) {
-        Queue<Double> queue = new ArrayBlockingQueue<>(20);
-        Drive.odometryLock.lock();
-        try {
-            genericSignals.add(signal);
-            genericQueues.add(queue);
-        } finally {
-            Drive.odometryLock.unlock();
+    }
+
+    /**
+     * Reads the odometry movement between the newest frame taken by {@link #consumeFrames()} and the newest frame the
+     * thread has published, and logs it as an input. Must be called once per loop from the main thread, after the
+     * consumed frames are applied to the pose estimate. The movement doesn't change until the next call, so everything
+     * that uses it this loop sees the same value in replay.
+     */
+    public void updateMovementInputs() {
+        movementInputs.hasMovement = hasConsumedPose && readNewestPose();
+        Logger.processInputs("Odometry/Thread", movementInputs);
+
+        movementSinceConsumedFrames = movementInputs.hasMovement
+            ? Optional.of(new Transform2d(movementInputs.movementX, movementInputs.movementY,
+                new Rotation2d(movementInputs.movementTheta)))
+            : Optional.empty();
+    }
+
+    /**
+     * Reads the pose from the newest published frame into the movement inputs, relative to the consumed pose.
+     * @return False if the newest frame was overwritten every time we tried to read it.
+     */
+    private boolean readNewestPose() {
+        for(int attempt = 0; attempt < MAX_NEWEST_POSE_READ_ATTEMPTS; attempt++) {
+            long frameNumber = writeCount - 1;
+            OdometryFrame frame = frames[(int) frameNumber & (frames.length - 1)];
+            if(frame.sequence != frameNumber) continue;
+
+            double x = frame.poseX, y = frame.poseY, theta = frame.poseTheta;
+            // Make sure the copy is finished before checking that the frame wasn't overwritten during it
+            VarHandle.loadLoadFence();
+            if(frame.sequence != frameNumber) continue;
+
+            // Equivalent to new Transform2d(consumedPose, newestPose)
+            double dx = x - consumedPoseX, dy = y - consumedPoseY;
+            double cos = Math.cos(consumedPoseTheta), sin = Math.sin(consumedPoseTheta);
+            movementInputs.movementX = dx * cos + dy * sin;
+            movementInputs.movementY = -dx * sin + dy * cos;
+            movementInputs.movementTheta = MathUtil.angleModulus(theta - consumedPoseTheta);
+            return true;
         }
-        return queue;
+        return false;
+    }
+
+    /**
+     * Returns the odometry movement between the newest frame taken by {@link #consumeFrames()} and the newest frame
+     * published by the thread, as of the last {@link #updateMovementInputs()}. Applying this to the pose estimate from
+     * the consumed frames gives a pose at most one odometry period older than that call. Empty if high-rate pose
+     * integration is disabled or no frames have been taken yet. The same object is returned until the next update.
+     */
+    public Optional<Transform2d> getMovementSinceConsumedFrames() {
+        return movementSinceConsumedFrames;
     }
 
-    /** Returns a new queue that returns timestamp values for each sample. */
-    public Queue<Double> makeTimestampQueue() {
-        Queue<Double> queue = new ArrayBlockingQueue<>(20);
-        Drive.odometryLock.lock();
-        try {
-            timestampQueues.add(queue);
-        } finally {
-            Drive.odometryLock.unlock();
+    /**
+     * Returns the total number of frames overwritten before the main loop took them because the pool was full. Must be
+     * called from the main thread.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /** Returns the number of frames taken by the last call to {@link #consumeFrames()}. */
+    public int getConsumedFrameCount() {
+        return consumedFrameCount;
+    }
+
+    /** Returns a frame taken by the last call to {@link #consumeFrames()}, oldest first. */
+    public OdometryFrame getConsumedFrame(int index) {
+        return consumedFrames[index];
+    }
+
+    /**
+     * Publishes the odometry thread's timing and sample health metrics if enough time has passed since they were last
+     * published. Must be called from the main thread.
+     */
+    public void logMetrics() {
+        if(!metricsTimer.advanceIfElapsed(METRICS_PERIOD)) return;
+
+        periodHistogram.updateWindow();
+        executionHistogram.updateWindow();
+        long nowMicros = RobotController.getFPGATime();
+        double windowSeconds = (nowMicros - lastMetricsMicros) / 1e6;
+        lastMetricsMicros = nowMicros;
+
+        Logger.recordOutput("Odometry/Thread/TargetFrequency", DriveConstants.odometryFrequency / ticksPerSample);
+        Logger.recordOutput("Odometry/Thread/MeasuredFrequency", periodHistogram.getWindowCount() / windowSeconds);
+        Logger.recordOutput("Odometry/Thread/PeriodP50Micros", periodHistogram.getP50Micros());
+        Logger.recordOutput("Odometry/Thread/PeriodP99Micros", periodHistogram.getP99Micros());
+        Logger.recordOutput("Odometry/Thread/PeriodMaxMicros", periodHistogram.getMaxMicros());
+        Logger.recordOutput("Odometry/Thread/ExecutionP50Micros", executionHistogram.getP50Micros());
+        Logger.recordOutput("Odometry/Thread/ExecutionP99Micros", executionHistogram.getP99Micros());
+        Logger.recordOutput("Odometry/Thread/ExecutionMaxMicros", executionHistogram.getMaxMicros());
+
+        long[] invalidDriveSamples = new long[invalidDriveSampleCounts.length()];
+        long[] invalidTurnSamples = new long[invalidTurnSampleCounts.length()];
+        for(int i = 0; i < invalidDriveSamples.length; i++) {
+            invalidDriveSamples[i] = invalidDriveSampleCounts.get(i);
+            invalidTurnSamples[i] = invalidTurnSampleCounts.get(i);
         }
-        return queue;
+        Logger.recordOutput("Odometry/Thread/PartialFrames", partialFrameCount.get());
+        Logger.recordOutput("Odometry/Thread/DroppedFrames", droppedFrameCount.get());
+        Logger.recordOutput("Odometry/Thread/InvalidDriveSamples", invalidDriveSamples);
+        Logger.recordOutput("Odometry/Thread/InvalidTurnSamples", invalidTurnSamples);
+        Logger.recordOutput("Odometry/Thread/InvalidGyroSamples", invalidGyroSampleCount.get());
+
+        // Frames that never made it to the main loop
+        Logger.recordOutput("Odometry/Thread/TornFrames", tornFrameCount);
+        Logger.recordOutput("Odometry/Thread/Overflows", overflowCount);
     }
 
     private void run() {
-        // Save new data to queues
-        Drive.odometryLock.lock();
-        try {
-            // Get sample timestamp
-            double timestamp = RobotController.getFPGATime() / 1e6;
-
-            // Read Spark values, mark invalid in case of error
-            double[] sparkValues = new double[sparkSignals.size()];
-            boolean isValid = true;
-            for(int i = 0; i < sparkSignals.size(); i++) {
-                sparkValues[i] = sparkSignals.get(i).getAsDouble();
-                if(sparks.get(i).getLastError() != REVLibError.kOk) {
-                    isValid = false;
-                }
+        if(--ticksUntilSample > 0) return;
+        ticksUntilSample = ticksPerSample;
+
+        long startMicros = RobotController.getFPGATime();
+        if(lastRunStartMicros != 0) periodHistogram.record(startMicros - lastRunStartMicros);
+        lastRunStartMicros = startMicros;
+
+        long frameNumber = writeCount;
+        OdometryFrame frame = frames[(int) frameNumber & (frames.length - 1)];
+
+        // Mark the slot as being written before changing anything in it
+        frame.sequence = OdometryFrame.WRITING;
+        VarHandle.storeStoreFence();
+
+        // Get sample timestamp
+        frame.timestamp = startMicros / 1e6;
+
+        // Read Spark values, mark invalid in case of error. Each Spark is held from its read to its error check so a
+        // setpoint sent from another thread can't replace the error in between; see SparkSetpointWriter.
+        boolean allValid = true;
+        int validModules = 0;
+        for(int i = 0; i < drivePositionSignals.size(); i++) {
+            SparkBase driveSpark = driveSparks.get(i);
+            synchronized(driveSpark) {
+                frame.drivePositionsRad[i] = drivePositionSignals.get(i).getAsDouble();
+                frame.driveValid[i] = driveSpark.getLastError() == REVLibError.kOk;
+            }
+            if(!frame.driveValid[i]) {
+                invalidDriveSampleCounts.lazySet(i, invalidDriveSampleCounts.get(i) + 1);
+            }
+            SparkBase turnSpark = turnSparks.get(i);
+            synchronized(turnSpark) {
+                frame.turnPositionsRad[i] = turnPositionSignals.get(i).getAsDouble();
+                frame.turnValid[i] = turnSpark.getLastError() == REVLibError.kOk;
+            }
+            if(!frame.turnValid[i]) {
+                invalidTurnSampleCounts.lazySet(i, invalidTurnSampleCounts.get(i) + 1);
             }
 
-            // If valid, add values to queues
-            if(isValid) {
-                for(int i = 0; i < sparkSignals.size(); i++) {
-                    sparkQueues.get(i).offer(sparkValues[i]);
-                }
-                for(int i = 0; i < genericSignals.size(); i++) {
-                    genericQueues.get(i).offer(genericSignals.get(i).getAsDouble());
-                }
-                for(int i = 0; i < timestampQueues.size(); i++) {
-                    timestampQueues.get(i).offer(timestamp);
-                }
+            if(frame.driveValid[i] && frame.turnValid[i]) {
+                validModules++;
+            } else {
+                allValid = false;
             }
-        } finally {
-            Drive.odometryLock.unlock();
         }
+        if(gyroYawSignal != null) {
+            frame.gyroYawRad = gyroYawSignal.getAsDouble();
+            frame.gyroValid = gyroValidSignal.getAsBoolean();
+            if(!frame.gyroValid) {
+                invalidGyroSampleCount.lazySet(invalidGyroSampleCount.get() + 1);
+                allValid = false;
+            }
+        }
+
+        // Publish the frame if it's usable. Otherwise its slot is reused for the next sample. A partial frame needs at
+        // least one signal that was actually read; a registered but disconnected gyro doesn't count.
+        boolean usable = allValid
+            || (DriveConstants.partialOdometryFrames && (validModules > 0 || frame.gyroValid));
+        if(usable) {
+            if(!allValid) partialFrameCount.lazySet(partialFrameCount.get() + 1);
+            if(poseIntegrator != null) integratePose(frame);
+            frame.sequence = frameNumber;
+            writeCount = frameNumber + 1;
+        } else {
+            droppedFrameCount.lazySet(droppedFrameCount.get() + 1);
+        }
+
+        executionHistogram.record(RobotController.getFPGATime() - startMicros);
+    }
+
+    /** Integrates a published frame and stores the resulting pose in it. */
+    private void integratePose(OdometryFrame frame) {
+        for(int i = 0; i < driveDistancesMeters.length; i++) {
+            driveDistancesMeters[i] = frame.drivePositionsRad[i] * DriveConstants.wheelRadiusMeters;
+            moduleValid[i] = frame.driveValid[i] && frame.turnValid[i];
+        }
+        poseIntegrator.update(frame.timestamp, driveDistancesMeters, frame.turnPositionsRad, moduleValid,
+            frame.gyroValid, frame.gyroYawRad);
+
+        frame.poseX = poseIntegrator.getX();
+        frame.poseY = poseIntegrator.getY();
+        frame.poseTheta = poseIntegrator.getTheta();
     }
 }
@@ -0,0 +1,207 @@
+package frc.robot.subsystems.drive;
+
+import com.revrobotics.spark.ClosedLoopSlot;
+import com.revrobotics.spark.SparkBase;
+import com.revrobotics.spark.SparkBase.ControlType;
+import com.revrobotics.spark.SparkClosedLoopController;
+import com.revrobotics.spark.SparkClosedLoopController.ArbFFUnits;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.Timer;
+import frc.robot.util.TimingHistogram;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Sends Spark setpoints from a background thread so the JNI calls, which can take hundreds of microseconds each on a
+ * loaded bus, don't run on the main loop. Each controller has one {@link Slot} holding its newest setpoint. Posting a
+ * setpoint overwrites the slot and wakes the writer thread, which sends the newest setpoint of every slot that changed.
+ * If a setpoint is posted again before the writer gets to it, only the newest one is sent, so nothing queues up.
+ *
+ * <p>
+ * Slots work like a seqlock, so the writer thread never blocks the threads posting setpoints. Posting to one slot is
+ * serialized, so setpoints can come from both the main loop and {@link DriveControlThread}.
+ *
+ * <p>
+ * A Spark only remembers the error from its most recent call, and {@code getLastError()} returns whichever call that
+ * was, on any thread. A setpoint sent between another thread's read and its error check would make the check report the
+ * setpoint's result instead of the read's. Every place that reads a Spark and checks its error, like
+ * {@link frc.robot.util.SparkStatusReader} and {@link SparkOdometryThread}, holds the Spark's monitor for the read and
+ * the check. Setpoints are sent holding it too, as are configuration and encoder resets through
+ * {@link frc.robot.util.SparkUtil#tryUntilOk} and {@link ModuleIOSpark}, so the checks stay meaningful whichever thread
+ * makes the other calls. Any new Spark call must do the same.
+ *
+ * <p>
+ * If {@link DriveConstants#asyncSparkSetpoints} is disabled, slots send setpoints immediately on the posting thread
+ * instead, and the same timing metrics are recorded, so the two can be compared. Call {@link #logMetrics()} every loop;
+ * it publishes the metrics at a low rate.
+ */
+public class SparkSetpointWriter {
+    /** How long the writer thread sleeps when there's nothing to send, in nanoseconds. */
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+    /** How often metrics are published, in seconds. */
+    private static final double METRICS_PERIOD = 1.0;
+
+    private final boolean async = DriveConstants.asyncSparkSetpoints;
+    /** The registered slots. Replaced instead of modified, so the writer thread can iterate it without locking. */
+    private volatile Slot[] slots = new Slot[0];
+    private final Thread thread;
+
+    // Timing metrics. The write histograms are recorded by the writer thread, or by the posting threads when writes are
+    // synchronous, in which case a count can occasionally be lost if two threads write at once.
+    private final TimingHistogram writeHistogram = new TimingHistogram(10, 500);
+    private final TimingHistogram delayHistogram = new TimingHistogram(100, 100);
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writeMicros = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final Timer metricsTimer = new Timer();
+    /** When the metrics were last published, in FPGA microseconds. The timer can fire late, so windows vary. */
+    private long lastMetricsMicros = 0;
+    private long lastWriteMicros = 0;
+
+    /** The newest setpoint for one controller. */
+    public class Slot {
+        private final SparkBase spark;
+        private final SparkClosedLoopController controller;
+
+        // Odd while a setpoint is being posted and even once it's complete
+        private volatile long sequence = 0;
+        private ControlType controlType = ControlType.kVoltage;
+        private double value = 0.0;
+        private double feedforward = 0.0;
+        private long postedMicros = 0;
+        /** The sequence of the last setpoint sent. Only used by the writer thread. */
+        private long sentSequence = 0;
+
+        private Slot(SparkBase spark) {
+            this.spark = spark;
+            controller = spark.getClosedLoopController();
+        }
+
+        /**
+         * Posts a new setpoint, replacing any setpoint that hasn't been sent yet. Open-loop voltage setpoints use
+         * {@link ControlType#kVoltage}.
+         * @param feedforward The arbitrary feedforward in volts.
+         */
+        public synchronized void post(ControlType controlType, double value, double feedforward) {
+            if(!async) {
+                send(controlType, value, feedforward);
+                return;
+            }
+
+            long current = sequence;
+            sequence = current + 1;
+            // Make sure the odd sequence is visible before any of the fields change
+            VarHandle.storeStoreFence();
+            this.controlType = controlType;
+            this.value = value;
+            this.feedforward = feedforward;
+            postedMicros = RobotController.getFPGATime();
+            sequence = current + 2;
+
+            LockSupport.unpark(thread);
+        }
+
+        /** Sends the newest setpoint if it hasn't been sent yet. Only called by the writer thread. */
+        private void sendIfPosted() {
+            long current = sequence;
+            if(current == sentSequence || (current & 1) != 0) return;
+
+            ControlType postedType = controlType;
+            double postedValue = value;
+            double postedFeedforward = feedforward;
+            long posted = postedMicros;
+            // Make sure the copy is finished before checking that the setpoint wasn't replaced during it
+            VarHandle.loadLoadFence();
+            if(sequence != current) return;
+
+            // Each post advances the sequence by two, so any more than one post since the last send were never sent
+            long skipped = (current - sentSequence) / 2 - 1;
+            if(skipped > 0) supersededCount.addAndGet(skipped);
+            sentSequence = current;
+
+            delayHistogram.record(RobotController.getFPGATime() - posted);
+            send(postedType, postedValue, postedFeedforward);
+        }
+
+        private void send(ControlType controlType, double value, double feedforward) {
+            long startMicros = RobotController.getFPGATime();
+            // Holds the Spark so this doesn't replace the last error between another thread's read and its check
+            synchronized(spark) {
+                controller.setReference(value, controlType, ClosedLoopSlot.kSlot0, feedforward, ArbFFUnits.kVoltage);
+            }
+            long durationMicros = RobotController.getFPGATime() - startMicros;
+            writeHistogram.record(durationMicros);
+            writeCount.incrementAndGet();
+            writeMicros.addAndGet(durationMicros);
+        }
+    }
+
+    private static SparkSetpointWriter instance = null;
+
+    public static SparkSetpointWriter getInstance() {
+        if(instance == null) {
+            instance = new SparkSetpointWriter();
+        }
+        return instance;
+    }
+
+    private SparkSetpointWriter() {
+        thread = new Thread(this::run, "SparkSetpointWriter");
+        thread.setDaemon(true);
+        if(async) thread.start();
+        metricsTimer.start();
+        lastMetricsMicros = RobotController.getFPGATime();
+    }
+
+    /** Registers a Spark's closed loop controller and returns the slot its setpoints are posted to. */
+    public synchronized Slot register(SparkBase spark) {
+        Slot slot = new Slot(spark);
+        Slot[] newSlots = Arrays.copyOf(slots, slots.length + 1);
+        newSlots[slots.length] = slot;
+        slots = newSlots;
+        return slot;
+    }
+
+    private void run() {
+        while(true) {
+            // A slot skipped because it was being posted to gets picked up next time, since the poster unparks this
+            // thread when it finishes
+            for(Slot slot : slots) slot.sendIfPosted();
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Publishes the writer's timing metrics if enough time has passed since they were last published. Must be called
+     * from the main thread.
+     */
+    public void logMetrics() {
+        if(!metricsTimer.advanceIfElapsed(METRICS_PERIOD)) return;
+
+        writeHistogram.updateWindow();
+        delayHistogram.updateWindow();
+        long nowMicros = RobotController.getFPGATime();
+        double windowSeconds = (nowMicros - lastMetricsMicros) / 1e6;
+        lastMetricsMicros = nowMicros;
+
+        long totalWriteMicros = writeMicros.get();
+        Logger.recordOutput("Drive/SparkWriter/Async", async);
+        Logger.recordOutput("Drive/SparkWriter/Writes", writeCount.get());
+        Logger.recordOutput("Drive/SparkWriter/Superseded", supersededCount.get());
+        // The time spent in setReference calls, which is taken off the main loop when writes are asynchronous
+        Logger.recordOutput("Drive/SparkWriter/WriteMicrosPerSecond",
+            (totalWriteMicros - lastWriteMicros) / windowSeconds);
+        lastWriteMicros = totalWriteMicros;
+        Logger.recordOutput("Drive/SparkWriter/WriteP50Micros", writeHistogram.getP50Micros());
+        Logger.recordOutput("Drive/SparkWriter/WriteP99Micros", writeHistogram.getP99Micros());
+        Logger.recordOutput("Drive/SparkWriter/WriteMaxMicros", writeHistogram.getMaxMicros());
+        if(async) {
+            Logger.recordOutput("Drive/SparkWriter/DelayP50Micros", delayHistogram.getP50Micros());
+            Logger.recordOutput("Drive/SparkWriter/DelayP99Micros", delayHistogram.getP99Micros());
+            Logger.recordOutput("Drive/SparkWriter/DelayMaxMicros", delayHistogram.getMaxMicros());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package frc.robot.subsystems.drive;
+
+import frc.robot.util.CANBusPlanner;
+
+/**
+ * Named sets of status frame periods for the module Sparks. {@link Drive} switches between them when the robot mode
+ * changes, so the bus only carries full-rate traffic when something uses it. For example, odometry doesn't need
+ * high-rate encoder frames while the robot is disabled in the queue.
+ */
+public enum SparkStatusProfile {
+    /**
+     * Slow frames while disabled. Encoders still update often enough to track the robot being pushed, and the absolute
+     * encoder stays at full rate since the turn encoders are reset from it while disabled. The odometry thread samples
+     * at the encoder period so it doesn't integrate repeated positions.
+     */
+    DISABLED(100, 20, false, 20, 20),
+    /** Full-rate odometry for driver control. */
+    TELEOP(20, 0, true, 20, 20),
+    /** Full-rate odometry for path following. */
+    AUTO(20, 0, true, 20, 20),
+    /** Full-rate odometry and faster output frames for characterization data. */
+    CHARACTERIZATION(10, 0, true, 20, 20);
+
+    /** The period of status 0 (applied output, bus voltage, and current), in milliseconds. */
+    public final int outputPeriodMs;
+    /** The period of the primary encoder position when it isn't at the odometry rate, in milliseconds. */
+    private final int encoderPeriodMs;
+    /** If the primary encoder position is sent once per odometry sample. */
+    public final boolean encoderAtOdometryRate;
+    /** The period of the primary encoder velocity, in milliseconds. Velocity is only read once per loop. */
+    public final int velocityPeriodMs;
+    /** The period of status 3 (the analog absolute turn encoder), in milliseconds. */
+    public final int analogPeriodMs;
+
+    SparkStatusProfile(int outputPeriodMs, int encoderPeriodMs, boolean encoderAtOdometryRate, int velocityPeriodMs,
+        int analogPeriodMs) {
+        this.outputPeriodMs = outputPeriodMs;
+        this.encoderPeriodMs = encoderPeriodMs;
+        this.encoderAtOdometryRate = encoderAtOdometryRate;
+        this.velocityPeriodMs = velocityPeriodMs;
+        this.analogPeriodMs = analogPeriodMs;
+    }
+
+    /** Returns the period of the primary encoder position, in milliseconds. The odometry thread samples at it. */
+    public int getEncoderPeriodMs() {
+        return encoderAtOdometryRate ? CANBusPlanner.getOdometryPeriodMs(DriveConstants.odometryFrequency)
+            : encoderPeriodMs;
+    }
+
+    /** Returns the estimated CAN bus utilization with the modules in this profile, from 0 to 1. */
+    public double getEstimatedBusUtilization() {
+        return DriveConstants.createCANBusPlanner(this).getUtilization(DriveConstants.odometryFrequency);
+    }
+}
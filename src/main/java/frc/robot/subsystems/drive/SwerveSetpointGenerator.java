@@ -0,0 +1,273 @@
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.system.plant.DCMotor;
+
+/**
+ * Limits requested chassis speeds to what the modules can physically achieve in one loop. The requested speeds are
+ * approached along a straight line from the previous setpoint, and the generator takes the largest step for which
+ * every module stays within its drive acceleration and steering rate limits. Because the whole chassis setpoint is
+ * limited instead of each module separately, the module setpoints always agree with each other kinematically, so the
+ * wheels don't fight each other while the robot accelerates or changes direction.
+ *
+ * <p>
+ * The drive acceleration limit comes from a DC motor model: the force each module can apply is limited by the current
+ * limit, by back-EMF at speed, and by wheel friction. Steering is limited to the maximum steering velocity, where
+ * reversing a module's direction counts as no steering since the module can flip its drive direction instead.
+ *
+ * <p>
+ * Everything is computed in preallocated primitive arrays, so generating setpoints doesn't allocate.
+ */
+public class SwerveSetpointGenerator {
+    private static final double GRAVITY = 9.81;
+    /** Module speeds below this are considered stopped, so their direction isn't meaningful. */
+    private static final double STOPPED_SPEED = 1E-3;
+    /** The number of bisection steps used to find the steering-limited step. Resolves the step to 1/1024. */
+    private static final int STEERING_ITERATIONS = 10;
+
+    private final int moduleCount;
+    private final double[] moduleX;
+    private final double[] moduleY;
+    private final double maxModuleSpeed;
+    private final double maxSteerVelocity;
+
+    // Drive force model
+    private final double forcePerAmp;
+    private final double currentLimitAmps;
+    private final double motorSpeedPerWheelSpeed;
+    private final double nominalVoltage;
+    private final double motorKv;
+    private final double motorResistance;
+    private final double frictionForce;
+    private final double massPerModule;
+
+    // The previous setpoint
+    private double lastVx = 0.0;
+    private double lastVy = 0.0;
+    private double lastOmega = 0.0;
+    private final double[] lastAnglesRad;
+    /** Angles to hold the modules at while stopped, or null to hold their last angles. */
+    private double[] parkedAnglesRad = null;
+
+    // Outputs and scratch space
+    private final double[] speeds;
+    private final double[] anglesRad;
+    private final double[] lastModuleVx;
+    private final double[] lastModuleVy;
+    private final double[] deltaModuleVx;
+    private final double[] deltaModuleVy;
+    private double lastStepFraction = 1.0;
+
+    /**
+     * Creates a new setpoint generator.
+     * @param moduleTranslations The position of each module relative to the robot center.
+     * @param maxModuleSpeed The maximum module speed in meters per second.
+     * @param maxSteerVelocity The maximum module steering velocity in radians per second.
+     * @param driveMotor The drive motor model.
+     * @param driveReduction The reduction from the drive motor to the wheel.
+     * @param driveCurrentLimitAmps The drive motor current limit in amps.
+     * @param wheelRadiusMeters The wheel radius in meters.
+     * @param robotMassKg The robot mass in kilograms.
+     * @param wheelCOF The coefficient of friction between the wheels and the carpet.
+     */
+    public SwerveSetpointGenerator(Translation2d[] moduleTranslations, double maxModuleSpeed, double maxSteerVelocity,
+        DCMotor driveMotor, double driveReduction, double driveCurrentLimitAmps, double wheelRadiusMeters,
+        double robotMassKg, double wheelCOF) {
+        moduleCount = moduleTranslations.length;
+        moduleX = new double[moduleCount];
+        moduleY = new double[moduleCount];
+        for(int i = 0; i < moduleCount; i++) {
+            moduleX[i] = moduleTranslations[i].getX();
+            moduleY[i] = moduleTranslations[i].getY();
+        }
+        this.maxModuleSpeed = maxModuleSpeed;
+        this.maxSteerVelocity = maxSteerVelocity;
+
+        forcePerAmp = driveMotor.KtNMPerAmp * driveReduction / wheelRadiusMeters;
+        currentLimitAmps = driveCurrentLimitAmps;
+        motorSpeedPerWheelSpeed = driveReduction / wheelRadiusMeters;
+        nominalVoltage = driveMotor.nominalVoltageVolts;
+        motorKv = driveMotor.KvRadPerSecPerVolt;
+        motorResistance = driveMotor.rOhms;
+        massPerModule = robotMassKg / moduleCount;
+        frictionForce = wheelCOF * massPerModule * GRAVITY;
+
+        lastAnglesRad = new double[moduleCount];
+        speeds = new double[moduleCount];
+        anglesRad = new double[moduleCount];
+        lastModuleVx = new double[moduleCount];
+        lastModuleVy = new double[moduleCount];
+        deltaModuleVx = new double[moduleCount];
+        deltaModuleVy = new double[moduleCount];
+    }
+
+    /**
+     * Resets the previous setpoint to the measured state of the drivetrain. Call this before generating setpoints when
+     * the drive wasn't being controlled by this generator, like after being disabled.
+     * @param vx The measured robot-relative x velocity in meters per second.
+     * @param vy The measured robot-relative y velocity in meters per second.
+     * @param omega The measured angular velocity in radians per second.
+     * @param moduleAnglesRad The measured angle of each module in radians.
+     */
+    public void reset(double vx, double vy, double omega, double[] moduleAnglesRad) {
+        lastVx = vx;
+        lastVy = vy;
+        lastOmega = omega;
+        System.arraycopy(moduleAnglesRad, 0, lastAnglesRad, 0, moduleCount);
+    }
+
+    /**
+     * Holds the modules at the given angles once they're stopped, until a nonzero velocity is requested. This is used
+     * to turn the modules to an X arrangement.
+     */
+    public void park(double[] anglesRad) {
+        parkedAnglesRad = anglesRad;
+    }
+
+    /**
+     * Generates the next feasible setpoint toward the requested speeds. The results are read with
+     * {@link #getModuleSpeed(int)} and {@link #getModuleAngle(int)}.
+     * @param vx The requested robot-relative x velocity in meters per second.
+     * @param vy The requested robot-relative y velocity in meters per second.
+     * @param omega The requested angular velocity in radians per second.
+     * @param dt The time until the next setpoint, in seconds.
+     */
+    public void generate(double vx, double vy, double omega, double dt) {
+        boolean stopRequested = vx == 0.0 && vy == 0.0 && omega == 0.0;
+        if(!stopRequested) parkedAnglesRad = null;
+
+        // Scale the request down uniformly if any module would exceed its maximum speed
+        double maxRequestedSpeed = 0.0;
+        for(int i = 0; i < moduleCount; i++) {
+            maxRequestedSpeed = Math.max(maxRequestedSpeed,
+                Math.hypot(vx - omega * moduleY[i], vy + omega * moduleX[i]));
+        }
+        if(maxRequestedSpeed > maxModuleSpeed) {
+            double scale = maxModuleSpeed / maxRequestedSpeed;
+            vx *= scale;
+            vy *= scale;
+            omega *= scale;
+        }
+
+        // Module velocities change linearly with the step fraction, so each module's velocity along the step is
+        // lastModuleV + fraction * deltaModuleV
+        double dvx = vx - lastVx, dvy = vy - lastVy, dOmega = omega - lastOmega;
+        double fraction = 1.0;
+        for(int i = 0; i < moduleCount; i++) {
+            lastModuleVx[i] = lastVx - lastOmega * moduleY[i];
+            lastModuleVy[i] = lastVy + lastOmega * moduleX[i];
+            deltaModuleVx[i] = dvx - dOmega * moduleY[i];
+            deltaModuleVy[i] = dvy + dOmega * moduleX[i];
+
+            fraction = Math.min(fraction, getAccelerationLimitedFraction(i, dt));
+            fraction = Math.min(fraction, getSteeringLimitedFraction(i, dt, fraction));
+        }
+        lastStepFraction = fraction;
+
+        lastVx += fraction * dvx;
+        lastVy += fraction * dvy;
+        lastOmega += fraction * dOmega;
+        for(int i = 0; i < moduleCount; i++) {
+            double moduleVx = lastModuleVx[i] + fraction * deltaModuleVx[i];
+            double moduleVy = lastModuleVy[i] + fraction * deltaModuleVy[i];
+            double speed = Math.hypot(moduleVx, moduleVy);
+            speeds[i] = speed;
+            if(speed > STOPPED_SPEED) {
+                anglesRad[i] = Math.atan2(moduleVy, moduleVx);
+            } else {
+                // Hold stopped modules where they are instead of snapping them to an arbitrary direction
+                speeds[i] = 0.0;
+                anglesRad[i] = parkedAnglesRad != null ? parkedAnglesRad[i] : lastAnglesRad[i];
+            }
+            lastAnglesRad[i] = anglesRad[i];
+        }
+    }
+
+    /** Returns the largest step fraction for which a module's velocity change stays within its force limit. */
+    private double getAccelerationLimitedFraction(int module, double dt) {
+        double deltaMagnitude = Math.hypot(deltaModuleVx[module], deltaModuleVy[module]);
+        if(deltaMagnitude < 1E-9) return 1.0;
+
+        double lastSpeed = Math.hypot(lastModuleVx[module], lastModuleVy[module]);
+        double targetSpeed = Math.hypot(lastModuleVx[module] + deltaModuleVx[module],
+            lastModuleVy[module] + deltaModuleVy[module]);
+        double maxVelocityChange = getMaxForce(lastSpeed, targetSpeed > lastSpeed) / massPerModule * dt;
+        return Math.min(1.0, maxVelocityChange / deltaMagnitude);
+    }
+
+    /**
+     * Returns the force one module can apply in newtons.
+     * @param speed The module speed in meters per second.
+     * @param accelerating If the module is speeding up. Back-EMF limits the available current while accelerating, but
+     *            helps while braking.
+     */
+    private double getMaxForce(double speed, boolean accelerating) {
+        double current = currentLimitAmps;
+        if(accelerating) {
+            double backEMF = speed * motorSpeedPerWheelSpeed / motorKv;
+            current = Math.min(current, Math.max(0.0, (nominalVoltage - backEMF) / motorResistance));
+        }
+        return Math.min(current * forcePerAmp, frictionForce);
+    }
+
+    /**
+     * Returns the largest step fraction, up to the given maximum, for which the module doesn't need to steer faster
+     * than its maximum steering velocity. The steering needed at a fraction is the change in the module's direction
+     * from its last angle, where a reversal counts as no change.
+     */
+    private double getSteeringLimitedFraction(int module, double dt, double maxFraction) {
+        // Stopped modules turn in place. Their speed is limited by acceleration while they do, and the module scales
+        // its drive speed down until it's aligned.
+        if(Math.hypot(lastModuleVx[module], lastModuleVy[module]) <= STOPPED_SPEED) return maxFraction;
+
+        double maxSteer = maxSteerVelocity * dt;
+        if(getSteeringAngle(module, maxFraction) <= maxSteer) return maxFraction;
+
+        // The steering angle starts near zero for a moving module, so bisect for where it reaches the limit
+        double low = 0.0, high = maxFraction;
+        for(int iteration = 0; iteration < STEERING_ITERATIONS; iteration++) {
+            double middle = (low + high) / 2.0;
+            if(getSteeringAngle(module, middle) <= maxSteer) low = middle;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /** Returns how far a module must steer from its last angle to reach its velocity at a step fraction. */
+    private double getSteeringAngle(int module, double fraction) {
+        double moduleVx = lastModuleVx[module] + fraction * deltaModuleVx[module];
+        double moduleVy = lastModuleVy[module] + fraction * deltaModuleVy[module];
+        // Stopped modules can point anywhere, and slow modules are limited by acceleration instead
+        if(Math.hypot(moduleVx, moduleVy) <= STOPPED_SPEED) return 0.0;
+        return Math.abs(Math.IEEEremainder(Math.atan2(moduleVy, moduleVx) - lastAnglesRad[module], Math.PI));
+    }
+
+    /** Returns the speed of a module in the last setpoint, in meters per second. */
+    public double getModuleSpeed(int module) {
+        return speeds[module];
+    }
+
+    /** Returns the angle of a module in the last setpoint, in radians. */
+    public double getModuleAngle(int module) {
+        return anglesRad[module];
+    }
+
+    /**
+     * Gets the robot-relative chassis speeds of the last setpoint.
+     * @param out Receives the speeds as [vx in meters per second, vy in meters per second, omega in radians per
+     *            second].
+     */
+    public void getChassisSpeeds(double[] out) {
+        out[0] = lastVx;
+        out[1] = lastVy;
+        out[2] = lastOmega;
+    }
+
+    /**
+     * Returns how far the last setpoint moved toward the requested speeds, from 0 to 1. Values below 1 mean the
+     * request wasn't feasible in one loop.
+     */
+    public double getLastStepFraction() {
+        return lastStepFraction;
+    }
+}
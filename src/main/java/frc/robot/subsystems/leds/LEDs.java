@@ -21,6 +21,7 @@ import edu.wpi.first.wpilibj2.command.button.CommandXboxController;
 import edu.wpi.first.wpilibj2.command.button.Trigger;
 import frc.robot.RobotState;
 import frc.robot.subsystems.drive.DriveConstants;
+import frc.robot.util.AllocationMeter;
 import frc.robot.util.RioAlerts;
 
 /**
@@ -69,6 +70,7 @@ public class LEDs extends SubsystemBase {
      * The number of loop cycles that have passed.
      */
     private int loopCycles = 0;
+    private final AllocationMeter allocationMeter = new AllocationMeter("LEDs");
 
     /**
      * A notifier that runs the animation until the robot code is fully started. This allows us to display the LEDs as
@@ -497,6 +499,7 @@ public class LEDs extends SubsystemBase {
     public void periodic() {
         loopCycles++;
         if(loopCycles < SKIP_FIRST_LOOP_CYCLES) { return; }
+        allocationMeter.start();
 
         if(initialUpdatesRunning) {
             initialUpdateNotifier.stop();
@@ -504,7 +507,7 @@ public class LEDs extends SubsystemBase {
         }
 
         // Update the time based on the delta and robot speed
-        double robotSpeedMultiplier = 1. + RobotState.getInstance().getRobotLinearVelocity()
+        double robotSpeedMultiplier = 1. + RobotState.getInstance().getSnapshot().linearSpeed()
             / DriveConstants.maxSpeedMetersPerSec * (maximumSpeedMultiplier - 1.);
 
         double currentTime = Timer.getTimestamp();
@@ -539,5 +542,6 @@ public class LEDs extends SubsystemBase {
         Logger.recordOutput("LEDs/RobotSpeedMultiplier", robotSpeedMultiplier);
 
         io.pushLEDs(colors);
+        allocationMeter.stop();
     }
 }
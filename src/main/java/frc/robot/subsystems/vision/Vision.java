@@ -2,8 +2,8 @@ package frc.robot.subsystems.vision;
 
 import static frc.robot.subsystems.vision.VisionConstants.*;
 
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.Matrix;
-import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Pose3d;
 import edu.wpi.first.math.geometry.Rotation2d;
@@ -11,10 +11,14 @@ import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.Alert;
 import edu.wpi.first.wpilibj.Alert.AlertType;
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import frc.robot.RobotState;
 import frc.robot.subsystems.vision.VisionIO.PoseObservationType;
-
+import frc.robot.util.AllocationMeter;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.poseEstimator.VisionMeasurementBatch;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import org.littletonrobotics.junction.Logger;
@@ -23,6 +27,20 @@ public class Vision extends SubsystemBase {
     private final VisionIO[] io;
     private final VisionIOInputsAutoLogged[] inputs;
     private final Alert[] disconnectedAlerts;
+    /** Every accepted measurement from this loop, added to the pose estimator together. */
+    private final VisionMeasurementBatch measurementBatch = new VisionMeasurementBatch(16);
+
+    /** The estimated pose at the timestamp of the observation being gated. */
+    private final MutablePose2d gatingPose = new MutablePose2d();
+    /** The innovation covariance of the observation being gated, row-major. */
+    private final double[] gatingCovariance = new double[9];
+    /** The timestamp of the newest observation that passed gating, or of the last pose reset if that's newer. */
+    private double lastGateAcceptedTimestamp = Double.NEGATIVE_INFINITY;
+    // Gating counts for each camera
+    private final long[] gateAcceptedCounts;
+    private final long[] gateDownweightedCounts;
+    private final long[] gateRejectedCounts;
+    private final AllocationMeter allocationMeter = new AllocationMeter("Vision");
 
     public static record IndividualTagEstimate(Pose2d robotPose, double ambiguity, double timestamp) {
     }
@@ -36,6 +54,10 @@ public class Vision extends SubsystemBase {
             inputs[i] = new VisionIOInputsAutoLogged();
         }
 
+        gateAcceptedCounts = new long[io.length];
+        gateDownweightedCounts = new long[io.length];
+        gateRejectedCounts = new long[io.length];
+
         // Initialize disconnected alerts
         this.disconnectedAlerts = new Alert[io.length];
         for(int i = 0; i < inputs.length; i++) {
@@ -55,6 +77,7 @@ public class Vision extends SubsystemBase {
 
     @Override
     public void periodic() {
+        allocationMeter.start();
         for(int i = 0; i < io.length; i++) {
             io[i].updateInputs(inputs[i]);
             Logger.processInputs("Vision/Camera" + Integer.toString(i), inputs[i]);
@@ -67,6 +90,7 @@ public class Vision extends SubsystemBase {
         List<Pose3d> allRobotPosesRejected = new LinkedList<>();
 
         var robotState = RobotState.getInstance();
+        measurementBatch.clear();
 
         // Loop over cameras
         for(int cameraIndex = 0; cameraIndex < io.length; cameraIndex++) {
@@ -100,14 +124,10 @@ public class Vision extends SubsystemBase {
 
                 // Add pose to log
                 robotPoses.add(observation.pose());
-                if(rejectPose) {
-                    robotPosesRejected.add(observation.pose());
-                } else {
-                    robotPosesAccepted.add(observation.pose());
-                }
 
                 // Skip if rejected
                 if(rejectPose) {
+                    robotPosesRejected.add(observation.pose());
                     continue;
                 }
 
@@ -124,9 +144,27 @@ public class Vision extends SubsystemBase {
                     angularStdDev *= cameraStdDevFactors[cameraIndex];
                 }
 
-                // Send vision observation
-                robotState.addVisionMeasurement(observation.pose().toPose2d(), observation.timestamp(),
-                    VecBuilder.fill(linearStdDev, linearStdDev, angularStdDev));
+                // Trust vision more while odometry is slipping
+                boolean odometrySlipping = robotState
+                    .hasOdometrySlippedSince(observation.timestamp() - slipTrustWindow);
+                if(odometrySlipping) {
+                    linearStdDev *= slipStdDevFactor;
+                    angularStdDev *= slipStdDevFactor;
+                }
+
+                // Gate against the estimated pose at the observation's timestamp
+                Pose2d robotPose = observation.pose().toPose2d();
+                double gateScale = getGateStdDevScale(cameraIndex, robotPose, observation.timestamp(), linearStdDev,
+                    angularStdDev, odometrySlipping);
+                if(gateScale < 0.0) {
+                    robotPosesRejected.add(observation.pose());
+                    continue;
+                }
+                robotPosesAccepted.add(observation.pose());
+
+                // Queue vision observation
+                measurementBatch.add(robotPose, observation.timestamp(), linearStdDev * gateScale,
+                    angularStdDev * gateScale);
             }
             // Log camera data
             Logger.recordOutput("Vision/Camera" + Integer.toString(cameraIndex) + "/TagPoses",
@@ -137,6 +175,12 @@ public class Vision extends SubsystemBase {
                 robotPosesAccepted.toArray(new Pose3d[robotPosesAccepted.size()]));
             Logger.recordOutput("Vision/Camera" + Integer.toString(cameraIndex) + "/RobotPosesRejected",
                 robotPosesRejected.toArray(new Pose3d[robotPosesRejected.size()]));
+            Logger.recordOutput("Vision/Camera" + Integer.toString(cameraIndex) + "/Gate/Accepted",
+                gateAcceptedCounts[cameraIndex]);
+            Logger.recordOutput("Vision/Camera" + Integer.toString(cameraIndex) + "/Gate/Downweighted",
+                gateDownweightedCounts[cameraIndex]);
+            Logger.recordOutput("Vision/Camera" + Integer.toString(cameraIndex) + "/Gate/Rejected",
+                gateRejectedCounts[cameraIndex]);
 
             allTagPoses.addAll(tagPoses);
             allRobotPoses.addAll(robotPoses);
@@ -144,6 +188,9 @@ public class Vision extends SubsystemBase {
             allRobotPosesRejected.addAll(robotPosesRejected);
         }
 
+        // Send every vision observation from this loop at once
+        robotState.addVisionMeasurements(measurementBatch);
+
         // Log summary data
         Logger.recordOutput("Vision/Summary/TagPoses", allTagPoses.toArray(new Pose3d[allTagPoses.size()]));
         Logger.recordOutput("Vision/Summary/RobotPoses", allRobotPoses.toArray(new Pose3d[allRobotPoses.size()]));
@@ -151,6 +198,88 @@ public class Vision extends SubsystemBase {
             allRobotPosesAccepted.toArray(new Pose3d[allRobotPosesAccepted.size()]));
         Logger.recordOutput("Vision/Summary/RobotPosesRejected",
             allRobotPosesRejected.toArray(new Pose3d[allRobotPosesRejected.size()]));
+        allocationMeter.stop();
+    }
+
+    /**
+     * Gates an observation on its innovation: the difference from the estimated pose at its timestamp, normalized by
+     * the combined uncertainty of the estimate and the observation. The squared Mahalanobis distance follows a
+     * chi-squared distribution, so observations past the down-weight threshold are trusted less and observations past
+     * the rejection threshold are dropped.
+     *
+     * <p>
+     * The estimate's uncertainty comes from the pose estimator's covariance if it tracks one. Otherwise it's assumed to
+     * grow with the time since an observation was last accepted, so a long stretch of rejections widens the gate until
+     * vision can pull in an estimate that has drifted. A pose reset, like at the start of autonomous, counts as an
+     * accepted observation, so the gate starts narrow again around the new pose. While odometry is slipping, the
+     * estimate is likely wrong, so its uncertainty is scaled up to widen the gate. Gating is skipped while disabled and
+     * until the first observation is accepted or the pose is reset, since the estimate may never have been
+     * initialized.
+     * @return The factor to scale the observation's standard deviations by, or -1 if it should be rejected.
+     */
+    private double getGateStdDevScale(int cameraIndex, Pose2d robotPose, double timestamp, double linearStdDev,
+        double angularStdDev, boolean odometrySlipping) {
+        var robotState = RobotState.getInstance();
+        lastGateAcceptedTimestamp = Math.max(lastGateAcceptedTimestamp, robotState.getLastPoseResetTimestamp());
+        if(DriverStation.isDisabled() || lastGateAcceptedTimestamp == Double.NEGATIVE_INFINITY
+            || !robotState.getPoseAtTimestamp(timestamp, gatingPose)) {
+            lastGateAcceptedTimestamp = Math.max(lastGateAcceptedTimestamp, timestamp);
+            gateAcceptedCounts[cameraIndex]++;
+            return 1.0;
+        }
+
+        // The innovation covariance is the estimate's covariance plus the observation's
+        if(!robotState.getCovarianceAtTimestamp(timestamp, gatingCovariance)) {
+            double timeSinceAccepted = Math.max(timestamp - lastGateAcceptedTimestamp, 0.0);
+            double estimateLinearStdDev = gatingEstimateLinearStdDev
+                + gatingEstimateLinearStdDevPerSecond * timeSinceAccepted;
+            double estimateAngularStdDev = gatingEstimateAngularStdDev
+                + gatingEstimateAngularStdDevPerSecond * timeSinceAccepted;
+            Arrays.fill(gatingCovariance, 0.0);
+            gatingCovariance[0] = gatingCovariance[4] = estimateLinearStdDev * estimateLinearStdDev;
+            gatingCovariance[8] = estimateAngularStdDev * estimateAngularStdDev;
+        }
+        if(odometrySlipping) {
+            double slipVarianceFactor = slipGateStdDevFactor * slipGateStdDevFactor;
+            for(int i = 0; i < gatingCovariance.length; i++) gatingCovariance[i] *= slipVarianceFactor;
+        }
+        gatingCovariance[0] += linearStdDev * linearStdDev;
+        gatingCovariance[4] += linearStdDev * linearStdDev;
+        gatingCovariance[8] += angularStdDev * angularStdDev;
+
+        // Whiten the innovation with the Cholesky factor of the covariance, so its squared length is the distance
+        double l00 = Math.sqrt(gatingCovariance[0]);
+        double l10 = gatingCovariance[3] / l00;
+        double l11 = Math.sqrt(gatingCovariance[4] - l10 * l10);
+        double a = (robotPose.getX() - gatingPose.x) / l00;
+        double b = (robotPose.getY() - gatingPose.y - l10 * a) / l11;
+        double distanceSquared = a * a + b * b;
+        int degreesOfFreedom = 2;
+
+        // Observations without useful rotation data are gated on position only
+        if(angularStdDev < gatingMaxAngularStdDev) {
+            double l20 = gatingCovariance[6] / l00;
+            double l21 = (gatingCovariance[7] - l20 * l10) / l11;
+            double l22 = Math.sqrt(gatingCovariance[8] - l20 * l20 - l21 * l21);
+            double dtheta = MathUtil.angleModulus(robotPose.getRotation().getRadians() - gatingPose.theta);
+            double c = (dtheta - l20 * a - l21 * b) / l22;
+            distanceSquared += c * c;
+            degreesOfFreedom = 3;
+        }
+
+        if(distanceSquared > gatingRejectChiSquared[degreesOfFreedom - 1]) {
+            gateRejectedCounts[cameraIndex]++;
+            return -1.0;
+        }
+
+        lastGateAcceptedTimestamp = Math.max(lastGateAcceptedTimestamp, timestamp);
+        double downweightThreshold = gatingDownweightChiSquared[degreesOfFreedom - 1];
+        if(distanceSquared > downweightThreshold) {
+            gateDownweightedCounts[cameraIndex]++;
+            return Math.sqrt(distanceSquared / downweightThreshold);
+        }
+        gateAcceptedCounts[cameraIndex]++;
+        return 1.0;
     }
 
     @FunctionalInterface
@@ -47,6 +47,31 @@ public class VisionConstants {
         1.0 // Camera 1
     };
 
+    // Innovation gating against the estimated pose at each observation's timestamp
+    // Assumed standard deviations of the pose estimate, combined with each observation's own standard deviations. Only
+    // used when the pose estimator doesn't track its own covariance. They grow with the time since an observation was
+    // last accepted, so the gate widens until vision can pull in an estimate that has drifted.
+    public static double gatingEstimateLinearStdDev = 0.15; // Meters
+    public static double gatingEstimateAngularStdDev = 0.1; // Radians
+    public static double gatingEstimateLinearStdDevPerSecond = 0.5; // Meters per second without accepted observations
+    public static double gatingEstimateAngularStdDevPerSecond = 0.2; // Radians per second without accepted observations
+    // Observations with a larger angular standard deviation are gated on position only
+    public static double gatingMaxAngularStdDev = Math.PI; // Radians
+    // Chi-squared thresholds, indexed by degrees of freedom - 1. Observations past the down-weight threshold (95%) get
+    // their standard deviations scaled up, and observations past the rejection threshold (99.9%) are dropped.
+    public static double[] gatingDownweightChiSquared = new double[] {
+        3.841, 5.991, 7.815
+    };
+    public static double[] gatingRejectChiSquared = new double[] {
+        10.828, 13.816, 16.266
+    };
+
+    // Observations within this long after odometry flags wheel slip are trusted more and gated against a wider
+    // estimate uncertainty, since the estimate they're compared against is suspect
+    public static double slipTrustWindow = 0.5; // Seconds
+    public static double slipStdDevFactor = 0.5;
+    public static double slipGateStdDevFactor = 3.0; // Multiplies the estimate's standard deviations while gating
+
     // Multipliers to apply for MegaTag 2 observations
     public static double linearStdDevMegatag2Factor = 0.5; // More stable than full 3D solve
     public static double angularStdDevMegatag2Factor = Double.POSITIVE_INFINITY; // No rotation data available
@@ -0,0 +1,64 @@
+package frc.robot.util;
+
+import java.lang.management.ManagementFactory;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Measures how many bytes a section of code allocates on the current thread, using the JVM's per-thread allocation
+ * counter. Wrap a subsystem's periodic body in {@link #start()} and {@link #stop()} to log how much it allocates each
+ * loop; steady-state loops should report zero. Allocation causes garbage collection pauses, which show up as loop
+ * overruns.
+ *
+ * <p>
+ * The counter is read from the real JVM, so the values aren't reproduced in replay. If the JVM doesn't support
+ * per-thread allocation counting, nothing is logged.
+ */
+public class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+    private final String bytesKey;
+    private final String totalBytesKey;
+
+    private long startBytes = -1;
+    private long totalBytes = 0;
+
+    /**
+     * Creates a new meter.
+     * @param name The log key prefix, like the subsystem name. Values are logged under "name/Allocation".
+     */
+    public AllocationMeter(String name) {
+        bytesKey = name + "/Allocation/BytesPerLoop";
+        totalBytesKey = name + "/Allocation/TotalBytes";
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean)) return null;
+        try {
+            if(!bean.isThreadAllocatedMemorySupported()) return null;
+            if(!bean.isThreadAllocatedMemoryEnabled()) bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        } catch(UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /** Starts measuring. */
+    public void start() {
+        if(threadBean == null) return;
+        startBytes = threadBean.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Stops measuring and logs the bytes allocated since {@link #start()}. The logging happens after the measurement,
+     * so it isn't counted.
+     */
+    public void stop() {
+        if(threadBean == null || startBytes < 0) return;
+        long bytes = threadBean.getCurrentThreadAllocatedBytes() - startBytes;
+        startBytes = -1;
+
+        totalBytes += bytes;
+        Logger.recordOutput(bytesKey, bytes);
+        Logger.recordOutput(totalBytesKey, totalBytes);
+    }
+}
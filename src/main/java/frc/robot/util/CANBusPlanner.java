@@ -0,0 +1,86 @@
+package frc.robot.util;
+
+/**
+ * Estimates CAN bus utilization from the periodic frames devices send and receive, and picks the fastest odometry rate
+ * that keeps the bus under a utilization ceiling. Frames are split into ones sent at a fixed period and ones sent once
+ * per odometry sample, like the Spark encoder status frames that feed the odometry thread.
+ *
+ * <p>
+ * This is a planning estimate, not a measurement: every frame is counted at the worst-case size of an extended frame
+ * with a full 8-byte payload.
+ */
+public class CANBusPlanner {
+    /**
+     * The worst-case size in bits of a CAN 2.0B extended data frame with an 8-byte payload, including bit stuffing and
+     * interframe space.
+     */
+    public static final double BITS_PER_FRAME = 160.0;
+
+    /** The result of planning an odometry rate. */
+    public record Plan(double odometryFrequency, double utilization, double utilizationCeiling) {
+    }
+
+    private final double bitrate;
+    private double fixedFramesPerSecond = 0.0;
+    private int framesPerOdometrySample = 0;
+
+    /**
+     * Creates a new planner.
+     * @param bitrate The bus bitrate in bits per second. The roboRIO's CAN bus runs at 1 Mbps.
+     */
+    public CANBusPlanner(double bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Adds frames that are sent at a fixed period regardless of the odometry rate.
+     * @param periodMs The period of each frame in milliseconds.
+     * @param count The number of frames with this period, e.g. one per device.
+     */
+    public CANBusPlanner addPeriodicFrames(double periodMs, int count) {
+        fixedFramesPerSecond += count * 1000.0 / periodMs;
+        return this;
+    }
+
+    /**
+     * Adds frames that are sent once per odometry sample.
+     * @param count The number of frames sent each sample, e.g. one per device.
+     */
+    public CANBusPlanner addOdometryFrames(int count) {
+        framesPerOdometrySample += count;
+        return this;
+    }
+
+    /**
+     * Returns the period devices will actually use for an odometry rate. Status frame periods are configured in whole
+     * milliseconds, so rates that don't divide evenly run slightly faster than requested.
+     */
+    public static int getOdometryPeriodMs(double odometryFrequency) {
+        return Math.max(1, (int) (1000.0 / odometryFrequency));
+    }
+
+    /** Returns the estimated bus utilization, from 0 to 1, at the given odometry rate. */
+    public double getUtilization(double odometryFrequency) {
+        double odometryFramesPerSecond = framesPerOdometrySample * 1000.0 / getOdometryPeriodMs(odometryFrequency);
+        return (fixedFramesPerSecond + odometryFramesPerSecond) * BITS_PER_FRAME / bitrate;
+    }
+
+    /**
+     * Picks the highest candidate odometry rate whose estimated utilization is at or below the ceiling. If none fit,
+     * the lowest candidate is used.
+     * @param candidateFrequencies The odometry rates to choose from, in Hz.
+     * @param utilizationCeiling The highest allowed bus utilization, from 0 to 1.
+     */
+    public Plan plan(double[] candidateFrequencies, double utilizationCeiling) {
+        double best = Double.NaN;
+        double lowest = Double.POSITIVE_INFINITY;
+        for(double frequency : candidateFrequencies) {
+            lowest = Math.min(lowest, frequency);
+            boolean fits = getUtilization(frequency) <= utilizationCeiling;
+            if(fits && (Double.isNaN(best) || frequency > best)) best = frequency;
+        }
+        if(Double.isNaN(best)) best = lowest;
+
+        return new Plan(best, getUtilization(best), utilizationCeiling);
+    }
+}
@@ -0,0 +1,79 @@
+package frc.robot.util;
+
+import com.revrobotics.spark.SparkBase.ControlType;
+import edu.wpi.first.wpilibj.RobotController;
+
+/**
+ * Skips sending a Spark a setpoint it already has. Every setpoint is a CAN frame and a JNI call, and most loops send
+ * the same setpoint as the last one, like while the robot is sitting still. A setpoint is only sent if its control type
+ * changed, its value or feedforward moved by more than an epsilon, or the refresh period has passed since the last one
+ * was sent. The refresh makes sure a Spark that missed a frame or reset itself gets its setpoint back.
+ *
+ * <p>
+ * The cache counts sent and suppressed setpoints. Its methods are synchronized so setpoints can come from more than
+ * one thread.
+ */
+public class SparkSetpointCache {
+    private final double valueEpsilon;
+    private final double feedforwardEpsilon;
+    private final long refreshPeriodMicros;
+
+    private ControlType lastControlType = null;
+    private double lastValue = 0.0;
+    private double lastFeedforward = 0.0;
+    private long lastSentMicros = 0;
+
+    private long sentCount = 0;
+    private long suppressedCount = 0;
+
+    /**
+     * Creates a new cache.
+     * @param valueEpsilon How much the setpoint value must change to be sent, in the setpoint's units.
+     * @param feedforwardEpsilon How much the arbitrary feedforward must change to be sent, in volts.
+     * @param refreshPeriodSeconds The longest time a setpoint is suppressed for before it's sent again.
+     */
+    public SparkSetpointCache(double valueEpsilon, double feedforwardEpsilon, double refreshPeriodSeconds) {
+        this.valueEpsilon = valueEpsilon;
+        this.feedforwardEpsilon = feedforwardEpsilon;
+        this.refreshPeriodMicros = (long) (refreshPeriodSeconds * 1e6);
+    }
+
+    /**
+     * Returns if a setpoint should be sent, and if so, records it as the last one sent. Open-loop voltage setpoints
+     * use {@link ControlType#kVoltage}.
+     */
+    public synchronized boolean shouldSend(ControlType controlType, double value, double feedforward) {
+        long nowMicros = RobotController.getFPGATime();
+        if(controlType == lastControlType && Math.abs(value - lastValue) <= valueEpsilon
+            && Math.abs(feedforward - lastFeedforward) <= feedforwardEpsilon
+            && nowMicros - lastSentMicros < refreshPeriodMicros) {
+            suppressedCount++;
+            return false;
+        }
+
+        lastControlType = controlType;
+        lastValue = value;
+        lastFeedforward = feedforward;
+        lastSentMicros = nowMicros;
+        sentCount++;
+        return true;
+    }
+
+    /**
+     * Forgets the last setpoint so the next one is always sent. Call this after anything that could make the Spark
+     * lose its setpoint, like reconfiguring it.
+     */
+    public synchronized void invalidate() {
+        lastControlType = null;
+    }
+
+    /** Returns the number of setpoints sent. */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /** Returns the number of setpoints suppressed because the Spark already had them. */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+}
@@ -0,0 +1,83 @@
+package frc.robot.util;
+
+import com.revrobotics.REVLibError;
+import com.revrobotics.spark.SparkBase;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Reads a group of cached status values from a Spark in one pass into preallocated fields, with a single error check
+ * at the end. This replaces a separate {@link SparkUtil#ifOk} call per value, each of which adds a JNI error check and
+ * a lambda.
+ *
+ * <p>
+ * The Spark only reports the error from the most recent call, so a single check after the pass doesn't notice a value
+ * whose status frame timed out while the last one didn't. Spark getters return the last received value in that case
+ * rather than garbage, and a disconnected Spark times out every frame, so connection detection works the same. The
+ * fields keep their previous values when the check fails, like {@link SparkUtil#ifOk}.
+ *
+ * <p>
+ * The pass holds the Spark's monitor, so a setpoint sent from another thread can't replace the error between the reads
+ * and the check.
+ */
+public class SparkStatusReader {
+    private final SparkBase spark;
+    private final DoubleSupplier positionSignal;
+    private final DoubleSupplier velocitySignal;
+    private final boolean readOutput;
+
+    /** The position from the last valid read, in the signal's units. */
+    public double position = 0.0;
+    /** The velocity from the last valid read, in the signal's units. */
+    public double velocity = 0.0;
+    /** The applied output voltage from the last valid read. Only read if output reading is enabled. */
+    public double appliedVolts = 0.0;
+    /** The output current from the last valid read, in amps. Only read if output reading is enabled. */
+    public double currentAmps = 0.0;
+    /** If the last read was valid. */
+    public boolean valid = false;
+
+    /**
+     * Creates a new reader. The signals should be method references created once, like {@code encoder::getPosition},
+     * so reading doesn't allocate.
+     * @param spark The Spark the signals come from.
+     * @param positionSignal The position signal, or null to not read it.
+     * @param velocitySignal The velocity signal, or null to not read it.
+     * @param readOutput If the applied output voltage and output current should be read.
+     */
+    public SparkStatusReader(SparkBase spark, DoubleSupplier positionSignal, DoubleSupplier velocitySignal,
+        boolean readOutput) {
+        this.spark = spark;
+        this.positionSignal = positionSignal;
+        this.velocitySignal = velocitySignal;
+        this.readOutput = readOutput;
+    }
+
+    /**
+     * Reads every value. If the Spark reports an error, the values are discarded and {@link SparkUtil#sparkStickyFault}
+     * is set.
+     * @return If the read was valid.
+     */
+    public boolean read() {
+        double newPosition, newVelocity, appliedOutput, busVoltage, newCurrent;
+        synchronized(spark) {
+            newPosition = positionSignal != null ? positionSignal.getAsDouble() : 0.0;
+            newVelocity = velocitySignal != null ? velocitySignal.getAsDouble() : 0.0;
+            appliedOutput = readOutput ? spark.getAppliedOutput() : 0.0;
+            busVoltage = readOutput ? spark.getBusVoltage() : 0.0;
+            newCurrent = readOutput ? spark.getOutputCurrent() : 0.0;
+            valid = spark.getLastError() == REVLibError.kOk;
+        }
+        if(!valid) {
+            SparkUtil.sparkStickyFault = true;
+            return false;
+        }
+
+        if(positionSignal != null) position = newPosition;
+        if(velocitySignal != null) velocity = newVelocity;
+        if(readOutput) {
+            appliedVolts = appliedOutput * busVoltage;
+            currentAmps = newCurrent;
+        }
+        return true;
+    }
+}
@@ -23,10 +23,18 @@ public class SparkUtil {
     /** Stores whether any error was has been detected by other utility methods. */
     public static boolean sparkStickyFault = false;
 
-    /** Processes a value from a Spark only if the value is valid. */
+    /**
+     * Processes a value from a Spark only if the value is valid. The Spark is held from the read to the error check, like
+     * {@link SparkStatusReader}.
+     */
     public static void ifOk(SparkBase spark, DoubleSupplier supplier, DoubleConsumer consumer) {
-        double value = supplier.getAsDouble();
-        if(spark.getLastError() == REVLibError.kOk) {
+        double value;
+        boolean ok;
+        synchronized(spark) {
+            value = supplier.getAsDouble();
+            ok = spark.getLastError() == REVLibError.kOk;
+        }
+        if(ok) {
             consumer.accept(value);
         } else {
             sparkStickyFault = true;
@@ -36,20 +44,29 @@ public class SparkUtil {
     /** Processes a value from a Spark only if the value is valid. */
     public static void ifOk(SparkBase spark, DoubleSupplier[] suppliers, Consumer<double[]> consumer) {
         double[] values = new double[suppliers.length];
-        for(int i = 0; i < suppliers.length; i++) {
-            values[i] = suppliers[i].getAsDouble();
-            if(spark.getLastError() != REVLibError.kOk) {
-                sparkStickyFault = true;
-                return;
+        synchronized(spark) {
+            for(int i = 0; i < suppliers.length; i++) {
+                values[i] = suppliers[i].getAsDouble();
+                if(spark.getLastError() != REVLibError.kOk) {
+                    sparkStickyFault = true;
+                    return;
+                }
             }
         }
         consumer.accept(values);
     }
 
-    /** Attempts to run the command until no error is produced. */
+    /**
+     * Attempts to run the command until no error is produced. Each attempt holds the Spark, so it can't replace the
+     * error between another thread's read and its check. Blocking configuration calls keep other threads from reading
+     * the Spark until they finish, so they shouldn't be made while the robot is enabled.
+     */
     public static void tryUntilOk(SparkBase spark, int maxAttempts, Supplier<REVLibError> command) {
         for(int i = 0; i < maxAttempts; i++) {
-            var error = command.get();
+            REVLibError error;
+            synchronized(spark) {
+                error = command.get();
+            }
             if(error == REVLibError.kOk) {
                 break;
             } else {
@@ -107,11 +124,16 @@ public class SparkUtil {
         }
 
         public void updateAlerts() {
-            var faults = spark.getFaults();
-            int faultBits = faults.rawBits;
-            int warningBits = spark.getWarnings().rawBits;
+            int faultBits, warningBits;
+            boolean canFault;
+            synchronized(spark) {
+                var faults = spark.getFaults();
+                faultBits = faults.rawBits;
+                canFault = faults.can;
+                warningBits = spark.getWarnings().rawBits;
+            }
 
-            if(faults.can) {
+            if(canFault) {
                 faultBits = 1 >> 3;
                 warningBits = 0;
             }
@@ -0,0 +1,98 @@
+package frc.robot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram of durations in microseconds. Recording is allocation-free and lock-free, so it can be used
+ * from high-frequency threads like odometry. One thread records values while another periodically calls
+ * {@link #updateWindow()} to compute percentiles over everything recorded since the previous window.
+ *
+ * <p>
+ * Percentiles are reported as the upper edge of the bucket they fall in, so their resolution is the bucket width.
+ * Values past the last bucket are clamped into it; the maximum is always tracked exactly.
+ */
+public class TimingHistogram {
+    private final long bucketWidthMicros;
+    private final AtomicLongArray counts;
+    /** Bucket counts at the end of the last window. Only used by the reading thread. */
+    private final long[] lastCounts;
+    /** Bucket counts within the last window. Only used by the reading thread. */
+    private final long[] windowCounts;
+    private final AtomicLong windowMaxMicros = new AtomicLong();
+
+    private long windowCount = 0;
+    private double windowP50Micros = 0.0;
+    private double windowP99Micros = 0.0;
+    private double windowMax = 0.0;
+
+    /**
+     * Creates a new histogram.
+     * @param bucketWidthMicros The width of each bucket in microseconds.
+     * @param bucketCount The number of buckets. The histogram covers durations up to the width times the count.
+     */
+    public TimingHistogram(long bucketWidthMicros, int bucketCount) {
+        this.bucketWidthMicros = bucketWidthMicros;
+        counts = new AtomicLongArray(bucketCount);
+        lastCounts = new long[bucketCount];
+        windowCounts = new long[bucketCount];
+    }
+
+    /** Records a duration. Must only be called from one thread at a time. */
+    public void record(long micros) {
+        int bucket = (int) Math.min(Math.max(micros, 0) / bucketWidthMicros, counts.length() - 1);
+        // Only one thread records, so a plain read-then-write is enough
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        if(micros > windowMaxMicros.get()) windowMaxMicros.set(micros);
+    }
+
+    /**
+     * Computes the statistics for everything recorded since the last call. Must only be called from one thread at a
+     * time, but can run concurrently with {@link #record(long)}.
+     */
+    public void updateWindow() {
+        windowCount = 0;
+        for(int i = 0; i < lastCounts.length; i++) {
+            long current = counts.get(i);
+            windowCounts[i] = current - lastCounts[i];
+            lastCounts[i] = current;
+            windowCount += windowCounts[i];
+        }
+
+        long p50Rank = (long) Math.ceil(windowCount * 0.50);
+        long p99Rank = (long) Math.ceil(windowCount * 0.99);
+        long seen = 0;
+        windowP50Micros = 0.0;
+        windowP99Micros = 0.0;
+        for(int i = 0; i < windowCounts.length; i++) {
+            long previousSeen = seen;
+            seen += windowCounts[i];
+
+            double bucketTop = (i + 1) * bucketWidthMicros;
+            if(previousSeen < p50Rank && seen >= p50Rank) windowP50Micros = bucketTop;
+            if(previousSeen < p99Rank && seen >= p99Rank) windowP99Micros = bucketTop;
+        }
+
+        windowMax = windowMaxMicros.getAndSet(0);
+    }
+
+    /** Returns the number of values in the last window. */
+    public long getWindowCount() {
+        return windowCount;
+    }
+
+    /** Returns the median of the last window in microseconds. */
+    public double getP50Micros() {
+        return windowP50Micros;
+    }
+
+    /** Returns the 99th percentile of the last window in microseconds. */
+    public double getP99Micros() {
+        return windowP99Micros;
+    }
+
+    /** Returns the largest value in the last window in microseconds. */
+    public double getMaxMicros() {
+        return windowMax;
+    }
+}
@@ -0,0 +1,121 @@
+package frc.robot.util.geometry;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * A mutable 2D pose for allocation-free math in high-frequency code. Unlike {@link Pose2d}, this can be reused as an
+ * output parameter. Convert to a {@link Pose2d} with {@link #toPose2d()} when an immutable pose is needed.
+ */
+public class MutablePose2d {
+    /** The x position in meters. */
+    public double x;
+    /** The y position in meters. */
+    public double y;
+    /** The heading in radians, counterclockwise positive. */
+    public double theta;
+
+    public MutablePose2d() {
+        this(0.0, 0.0, 0.0);
+    }
+
+    public MutablePose2d(double x, double y, double theta) {
+        set(x, y, theta);
+    }
+
+    /** Sets this pose and returns it. */
+    public MutablePose2d set(double x, double y, double theta) {
+        this.x = x;
+        this.y = y;
+        this.theta = theta;
+        return this;
+    }
+
+    /** Sets this pose to match an immutable pose and returns it. */
+    public MutablePose2d set(Pose2d pose) {
+        return set(pose.getX(), pose.getY(), pose.getRotation().getRadians());
+    }
+
+    /**
+     * Applies a robot-relative twist to this pose along a constant-curvature arc, like {@link Pose2d#exp}, and returns
+     * this pose.
+     */
+    public MutablePose2d exp(double dx, double dy, double dtheta) {
+        double s, c;
+        if(Math.abs(dtheta) < 1E-9) {
+            s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+            c = 0.5 * dtheta;
+        } else {
+            s = Math.sin(dtheta) / dtheta;
+            c = (1 - Math.cos(dtheta)) / dtheta;
+        }
+        double localX = dx * s - dy * c;
+        double localY = dx * c + dy * s;
+
+        double cos = Math.cos(theta);
+        double sin = Math.sin(theta);
+        return set(x + localX * cos - localY * sin, y + localX * sin + localY * cos,
+            Math.IEEEremainder(theta + dtheta, 2 * Math.PI));
+    }
+
+    /**
+     * Computes the twist that moves this pose to another along a constant-curvature arc, like {@link Pose2d#log}.
+     * @param out Receives the twist as [dx, dy, dtheta].
+     */
+    public void log(double endX, double endY, double endTheta, double[] out) {
+        log(endX, endY, endTheta, out, null);
+    }
+
+    /** Computes the twist to another pose into whichever output is provided. */
+    private void log(double endX, double endY, double endTheta, double[] arrayOut, MutableTwist2d twistOut) {
+        // The end pose relative to this pose
+        double cos = Math.cos(theta);
+        double sin = Math.sin(theta);
+        double fieldDx = endX - x;
+        double fieldDy = endY - y;
+        double dx = fieldDx * cos + fieldDy * sin;
+        double dy = -fieldDx * sin + fieldDy * cos;
+        double dtheta = Math.IEEEremainder(endTheta - theta, 2 * Math.PI);
+
+        double halfDtheta = dtheta / 2.0;
+        double cosMinusOne = Math.cos(dtheta) - 1;
+        double halfThetaByTanOfHalfDtheta;
+        if(Math.abs(cosMinusOne) < 1E-9) {
+            halfThetaByTanOfHalfDtheta = 1.0 - 1.0 / 12.0 * dtheta * dtheta;
+        } else {
+            halfThetaByTanOfHalfDtheta = -(halfDtheta * Math.sin(dtheta)) / cosMinusOne;
+        }
+        double twistX = dx * halfThetaByTanOfHalfDtheta + dy * halfDtheta;
+        double twistY = -dx * halfDtheta + dy * halfThetaByTanOfHalfDtheta;
+        if(arrayOut != null) {
+            arrayOut[0] = twistX;
+            arrayOut[1] = twistY;
+            arrayOut[2] = dtheta;
+        } else {
+            twistOut.set(twistX, twistY, dtheta);
+        }
+    }
+
+    /** Applies a robot-relative twist to this pose along a constant-curvature arc and returns this pose. */
+    public MutablePose2d exp(MutableTwist2d twist) {
+        return exp(twist.dx, twist.dy, twist.dtheta);
+    }
+
+    /**
+     * Computes the twist that moves this pose to another along a constant-curvature arc, like {@link Pose2d#log}.
+     * @param out Receives the twist.
+     */
+    public void log(double endX, double endY, double endTheta, MutableTwist2d out) {
+        log(endX, endY, endTheta, null, out);
+    }
+
+    /** Returns a new immutable copy of this pose. */
+    public Pose2d toPose2d() {
+        return new Pose2d(x, y, new Rotation2d(theta));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MutablePose2d(X: %.2f, Y: %.2f, Theta: %.2f rad)", x, y, theta);
+    }
+}
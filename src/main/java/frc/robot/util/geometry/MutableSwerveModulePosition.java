@@ -0,0 +1,59 @@
+package frc.robot.util.geometry;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+
+/**
+ * A mutable swerve module position for allocation-free odometry. Unlike {@link SwerveModulePosition}, the angle is
+ * stored in radians, so updating a position doesn't allocate a {@link Rotation2d}. Convert to a
+ * {@link SwerveModulePosition} with {@link #toSwerveModulePosition()} when an immutable position is needed.
+ */
+public class MutableSwerveModulePosition {
+    /** The distance driven by the wheel in meters. */
+    public double distanceMeters;
+    /** The angle of the module in radians, counterclockwise positive. */
+    public double angleRad;
+
+    public MutableSwerveModulePosition() {
+        this(0.0, 0.0);
+    }
+
+    public MutableSwerveModulePosition(double distanceMeters, double angleRad) {
+        set(distanceMeters, angleRad);
+    }
+
+    /** Sets this position and returns it. */
+    public MutableSwerveModulePosition set(double distanceMeters, double angleRad) {
+        this.distanceMeters = distanceMeters;
+        this.angleRad = angleRad;
+        return this;
+    }
+
+    /** Sets this position to match another and returns it. */
+    public MutableSwerveModulePosition set(MutableSwerveModulePosition position) {
+        return set(position.distanceMeters, position.angleRad);
+    }
+
+    /** Sets this position to match an immutable position and returns it. */
+    public MutableSwerveModulePosition set(SwerveModulePosition position) {
+        return set(position.distanceMeters, position.angle.getRadians());
+    }
+
+    /** Returns a new immutable copy of this position. */
+    public SwerveModulePosition toSwerveModulePosition() {
+        return new SwerveModulePosition(distanceMeters, new Rotation2d(angleRad));
+    }
+
+    /** Creates an array of zeroed positions. */
+    public static MutableSwerveModulePosition[] createArray(int length) {
+        MutableSwerveModulePosition[] positions = new MutableSwerveModulePosition[length];
+        for(int i = 0; i < length; i++) positions[i] = new MutableSwerveModulePosition();
+        return positions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MutableSwerveModulePosition(Distance: %.2f m, Angle: %.2f rad)", distanceMeters,
+            angleRad);
+    }
+}
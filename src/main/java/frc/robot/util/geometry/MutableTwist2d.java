@@ -0,0 +1,52 @@
+package frc.robot.util.geometry;
+
+import edu.wpi.first.math.geometry.Twist2d;
+
+/**
+ * A mutable 2D twist for allocation-free math in high-frequency code. Unlike {@link Twist2d}, this can be reused as an
+ * output parameter. Convert to a {@link Twist2d} with {@link #toTwist2d()} when an immutable twist is needed.
+ */
+public class MutableTwist2d {
+    /** The linear "dx" component in meters. */
+    public double dx;
+    /** The linear "dy" component in meters. */
+    public double dy;
+    /** The angular "dtheta" component in radians. */
+    public double dtheta;
+
+    public MutableTwist2d() {
+        this(0.0, 0.0, 0.0);
+    }
+
+    public MutableTwist2d(double dx, double dy, double dtheta) {
+        set(dx, dy, dtheta);
+    }
+
+    /** Sets this twist and returns it. */
+    public MutableTwist2d set(double dx, double dy, double dtheta) {
+        this.dx = dx;
+        this.dy = dy;
+        this.dtheta = dtheta;
+        return this;
+    }
+
+    /** Sets this twist to match an immutable twist and returns it. */
+    public MutableTwist2d set(Twist2d twist) {
+        return set(twist.dx, twist.dy, twist.dtheta);
+    }
+
+    /** Scales every component of this twist and returns it. */
+    public MutableTwist2d scale(double scalar) {
+        return set(dx * scalar, dy * scalar, dtheta * scalar);
+    }
+
+    /** Returns a new immutable copy of this twist. */
+    public Twist2d toTwist2d() {
+        return new Twist2d(dx, dy, dtheta);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MutableTwist2d(dX: %.2f, dY: %.2f, dTheta: %.2f)", dx, dy, dtheta);
+    }
+}
@@ -0,0 +1,502 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import frc.robot.util.geometry.MutableTwist2d;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * A swerve drive pose estimator that runs an extended Kalman filter over the field pose (x, y, and heading) and tracks
+ * its full 3x3 covariance.
+ *
+ * <p>
+ * Unlike {@link OdometryPoseEstimator}, which uses a fixed steady-state vision gain, the covariance here grows with
+ * every odometry twist according to how far and how fast the robot moved, and vision measurements are fused using the
+ * innovation covariance. This means vision is trusted more after a long stretch of pure odometry and less right after
+ * a good measurement, and the correlation between heading and position error is kept, so a heading correction also
+ * moves the position.
+ *
+ * <p>
+ * Each odometry sample stores the twist that produced it along with the filter state after it. A delayed vision
+ * measurement is applied at the newest sample at or before its timestamp, and the samples after it are re-propagated
+ * from their stored twists. Odometry uses a {@link SwerveOdometryIntegrator} and all filter math uses fixed 3x3
+ * primitive arrays, so updates don't allocate; only reading the estimate as a {@link Pose2d} does, and that's cached
+ * until the estimate changes.
+ */
+public class EKFSwervePoseEstimator implements SwervePoseEstimator {
+    private static final double kBufferDuration = 1.5;
+    // Enough for the buffer duration at odometry rates up to ~680Hz
+    private static final int kBufferCapacity = 1024;
+
+    /** The standard deviation of the initial position estimate after a reset, in meters. */
+    private static final double kInitialTranslationStdDev = 0.1;
+    /** The standard deviation of the initial heading estimate after a reset, in radians. */
+    private static final double kInitialRotationStdDev = 0.1;
+    /** Position variance added per meter driven, in square meters per meter. */
+    private static final double kTranslationVariancePerMeter = 0.01;
+    /** Position variance added per second, in square meters per second. */
+    private static final double kTranslationVariancePerSecond = 1e-4;
+    /** Heading variance added per radian turned, in square radians per radian. */
+    private static final double kRotationVariancePerRadian = 1e-4;
+    /** Heading variance added per second, in square radians per second. */
+    private static final double kRotationVariancePerSecond = 1e-6;
+
+    private final int m_numModules;
+    private final SwerveOdometryIntegrator m_odometry;
+    private final MutableSwerveModulePosition[] m_wheelPositions;
+    private final boolean[] m_allModulesValid;
+    /** The current odometry-only pose. */
+    private final MutablePose2d m_odometryPose = new MutablePose2d();
+    // Maps timestamps to odometry-only pose estimates
+    private final PoseHistoryBuffer m_odometryPoseBuffer = new PoseHistoryBuffer(kBufferCapacity, kBufferDuration);
+
+    // The current filter state
+    private final MutablePose2d m_state = new MutablePose2d();
+    /** The state covariance, row-major. */
+    private final double[] m_covariance = new double[9];
+
+    // Filter history, one entry per odometry sample, as a circular buffer of parallel arrays. Each entry holds the
+    // robot-relative twist from the previous entry and the filter state after applying it.
+    private final double[] m_timestamps = new double[kBufferCapacity];
+    private final double[] m_twistX = new double[kBufferCapacity];
+    private final double[] m_twistY = new double[kBufferCapacity];
+    private final double[] m_twistTheta = new double[kBufferCapacity];
+    private final double[] m_stateX = new double[kBufferCapacity];
+    private final double[] m_stateY = new double[kBufferCapacity];
+    private final double[] m_stateTheta = new double[kBufferCapacity];
+    /** The upper triangle of each covariance: p00, p01, p02, p11, p12, p22. */
+    private final double[] m_stateCovariance = new double[kBufferCapacity * 6];
+    /** The index of the oldest entry. */
+    private int m_head = 0;
+    private int m_size = 0;
+
+    private Pose2d m_poseEstimate;
+    private boolean m_poseEstimateStale = true;
+
+    // Scratch space
+    private final MutableTwist2d m_twist = new MutableTwist2d();
+    private final MutablePose2d m_replayState = new MutablePose2d();
+    private final double[] m_replayCovariance = new double[9];
+    private final double[] m_innovationInverse = new double[9];
+    private final double[] m_gain = new double[9];
+    private final double[] m_gainTimesCovariance = new double[9];
+
+    /**
+     * Constructs an EKFSwervePoseEstimator.
+     *
+     * @param moduleTranslations The position of each module relative to the robot center.
+     * @param gyroAngle The current gyro angle.
+     * @param modulePositions The current distance measurements and rotations of the swerve modules.
+     * @param initialPoseMeters The starting pose estimate.
+     */
+    public EKFSwervePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
+        SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters) {
+        this(moduleTranslations, gyroAngle, modulePositions, initialPoseMeters, false);
+    }
+
+    /**
+     * Constructs an EKFSwervePoseEstimator.
+     *
+     * @param moduleTranslations The position of each module relative to the robot center.
+     * @param gyroAngle The current gyro angle.
+     * @param modulePositions The current distance measurements and rotations of the swerve modules.
+     * @param initialPoseMeters The starting pose estimate.
+     * @param secondOrderOdometry If odometry should be integrated to second order. See
+     *            {@link SwerveOdometryIntegrator}.
+     */
+    public EKFSwervePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
+        SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters, boolean secondOrderOdometry) {
+        m_numModules = modulePositions.length;
+        m_odometry = new SwerveOdometryIntegrator(moduleTranslations, secondOrderOdometry);
+        m_wheelPositions = MutableSwerveModulePosition.createArray(m_numModules);
+        m_allModulesValid = new boolean[m_numModules];
+        Arrays.fill(m_allModulesValid, true);
+        resetPosition(gyroAngle, modulePositions, initialPoseMeters);
+    }
+
+    private void checkModuleCount(int moduleCount) {
+        if(moduleCount != m_numModules) {
+            throw new IllegalArgumentException(
+                "Number of modules is not consistent with number of wheel locations provided in " + "constructor");
+        }
+    }
+
+    /** Converts a position in the history, with 0 as the oldest entry, to an array index. */
+    private int index(int position) {
+        int index = m_head + position;
+        return index >= kBufferCapacity ? index - kBufferCapacity : index;
+    }
+
+    /** Resets the filter to a pose with the initial covariance and clears all history. */
+    private void resetState(Pose2d pose) {
+        m_odometryPoseBuffer.clear();
+        m_head = 0;
+        m_size = 0;
+
+        m_state.set(pose);
+        for(int i = 0; i < 9; i++) m_covariance[i] = 0.0;
+        m_covariance[0] = kInitialTranslationStdDev * kInitialTranslationStdDev;
+        m_covariance[4] = kInitialTranslationStdDev * kInitialTranslationStdDev;
+        m_covariance[8] = kInitialRotationStdDev * kInitialRotationStdDev;
+        m_poseEstimateStale = true;
+    }
+
+    @Override
+    public void resetPosition(Rotation2d gyroAngle, SwerveModulePosition[] wheelPositions, Pose2d poseMeters) {
+        // Reset the odometry, using the current wheel positions and gyro angle as references
+        checkModuleCount(wheelPositions.length);
+        m_odometry.reset(poseMeters.getX(), poseMeters.getY(), poseMeters.getRotation().getRadians());
+        for(int i = 0; i < m_numModules; i++) m_wheelPositions[i].set(wheelPositions[i]);
+        m_odometry.update(m_wheelPositions, m_allModulesValid, true, gyroAngle.getRadians());
+        m_odometry.getPose(m_odometryPose);
+
+        // Reset state estimate and error covariance
+        resetState(poseMeters);
+    }
+
+    @Override
+    public Pose2d getEstimatedPosition() {
+        if(m_poseEstimateStale) {
+            m_poseEstimate = m_state.toPose2d();
+            m_poseEstimateStale = false;
+        }
+        return m_poseEstimate;
+    }
+
+    @Override
+    public Pose2d getOdometryPose() {
+        return m_odometryPose.toPose2d();
+    }
+
+    @Override
+    public PoseHistoryBuffer getOdometryPoseBuffer() {
+        return m_odometryPoseBuffer;
+    }
+
+    @Override
+    public int getSlippingModules(boolean[] out) {
+        return m_odometry.getSlippingModules(out);
+    }
+
+    /**
+     * Gets the standard deviations of the current estimate, from the diagonal of the covariance.
+     * @param out Receives the standard deviations as [x in meters, y in meters, heading in radians].
+     */
+    public void getStandardDeviations(double[] out) {
+        out[0] = Math.sqrt(m_covariance[0]);
+        out[1] = Math.sqrt(m_covariance[4]);
+        out[2] = Math.sqrt(m_covariance[8]);
+    }
+
+    @Override
+    public Optional<Pose2d> sampleAt(double timestampSeconds) {
+        var pose = new MutablePose2d();
+        if(!sampleAt(timestampSeconds, pose)) { return Optional.empty(); }
+        return Optional.of(pose.toPose2d());
+    }
+
+    @Override
+    public boolean sampleAt(double timestampSeconds, MutablePose2d out) {
+        if(m_size == 0) { return false; }
+
+        int newest = index(m_size - 1);
+        if(timestampSeconds <= m_timestamps[m_head]) {
+            out.set(m_stateX[m_head], m_stateY[m_head], m_stateTheta[m_head]);
+            return true;
+        }
+        if(timestampSeconds >= m_timestamps[newest]) {
+            out.set(m_stateX[newest], m_stateY[newest], m_stateTheta[newest]);
+            return true;
+        }
+
+        // Interpolate along the arc between the entries around the timestamp. The checks above guarantee both exist.
+        int start = index(floorPosition(timestampSeconds));
+        int end = start + 1 == kBufferCapacity ? 0 : start + 1;
+        double t = (timestampSeconds - m_timestamps[start]) / (m_timestamps[end] - m_timestamps[start]);
+        out.set(m_stateX[start], m_stateY[start], m_stateTheta[start]);
+        out.log(m_stateX[end], m_stateY[end], m_stateTheta[end], m_twist);
+        out.exp(m_twist.scale(t));
+        return true;
+    }
+
+    /** Returns the covariance of the newest history entry at or before the timestamp, or the oldest entry's. */
+    @Override
+    public boolean sampleCovarianceAt(double timestampSeconds, double[] out) {
+        if(m_size == 0) { return false; }
+        loadCovariance(index(Math.max(floorPosition(timestampSeconds), 0)), out);
+        return true;
+    }
+
+    /** Returns the position of the newest history entry at or before the timestamp, or -1 if there isn't one. */
+    private int floorPosition(double timestamp) {
+        int low = 0;
+        int high = m_size - 1;
+        int result = -1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(m_timestamps[index(middle)] <= timestamp) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void addVisionMeasurement(Pose2d visionRobotPoseMeters, double timestampSeconds,
+        Matrix<N3, N1> visionMeasurementStdDevs) {
+        // Measurements older than the history can't be applied
+        if(m_size == 0 || timestampSeconds < m_timestamps[m_head]) { return; }
+
+        int position = floorPosition(timestampSeconds);
+        loadReplayState(position);
+        correct(m_replayState, m_replayCovariance, visionRobotPoseMeters.getX(), visionRobotPoseMeters.getY(),
+            visionRobotPoseMeters.getRotation().getRadians(), square(visionMeasurementStdDevs.get(0, 0)),
+            square(visionMeasurementStdDevs.get(1, 0)), square(visionMeasurementStdDevs.get(2, 0)));
+        storeReplayState(position);
+        finishReplay(position);
+    }
+
+    @Override
+    public void addVisionMeasurements(VisionMeasurementBatch batch) {
+        if(m_size == 0 || batch.size() == 0) { return; }
+        batch.sortByTimestamp();
+
+        // Walk forward through the history once, correcting at each measurement and re-propagating between them
+        int replayPosition = -1;
+        for(int i = 0; i < batch.size(); i++) {
+            double timestamp = batch.getTimestamp(i);
+            if(timestamp < m_timestamps[m_head]) continue;
+
+            int position = floorPosition(timestamp);
+            if(replayPosition < 0) {
+                loadReplayState(position);
+            } else {
+                replay(replayPosition, position);
+            }
+            replayPosition = position;
+
+            double linearVariance = square(batch.getLinearStdDev(i));
+            correct(m_replayState, m_replayCovariance, batch.getX(i), batch.getY(i), batch.getTheta(i),
+                linearVariance, linearVariance, square(batch.getAngularStdDev(i)));
+            storeReplayState(position);
+        }
+        if(replayPosition >= 0) finishReplay(replayPosition);
+    }
+
+    @Override
+    public Pose2d updateWithTime(double currentTimeSeconds, Rotation2d gyroAngle,
+        SwerveModulePosition[] wheelPositions) {
+        checkModuleCount(wheelPositions.length);
+        for(int i = 0; i < m_numModules; i++) m_wheelPositions[i].set(wheelPositions[i]);
+        updateWithTime(currentTimeSeconds, m_wheelPositions, true, gyroAngle.getRadians());
+        return getEstimatedPosition();
+    }
+
+    @Override
+    public void updateWithTime(double currentTimeSeconds, MutableSwerveModulePosition[] wheelPositions,
+        boolean hasGyro, double gyroYawRad) {
+        checkModuleCount(wheelPositions.length);
+        m_odometry.update(currentTimeSeconds, wheelPositions, m_allModulesValid, hasGyro, gyroYawRad);
+        m_odometry.getPose(m_odometryPose);
+        m_odometryPoseBuffer.addSample(currentTimeSeconds, m_odometryPose.x, m_odometryPose.y, m_odometryPose.theta);
+
+        // The robot-relative motion since the last sample
+        m_odometry.getLastTwist(m_twist);
+
+        // Keep the history in time order
+        double dt = 0.0;
+        if(m_size > 0) {
+            double newestTimestamp = m_timestamps[index(m_size - 1)];
+            currentTimeSeconds = Math.max(currentTimeSeconds, newestTimestamp);
+            dt = currentTimeSeconds - newestTimestamp;
+        }
+
+        predict(m_state, m_covariance, m_twist.dx, m_twist.dy, m_twist.dtheta, dt);
+        addHistoryEntry(currentTimeSeconds, m_twist.dx, m_twist.dy, m_twist.dtheta);
+        m_poseEstimateStale = true;
+    }
+
+    /** Appends the current filter state to the history, removing entries that are too old. */
+    private void addHistoryEntry(double timestamp, double twistX, double twistY, double twistTheta) {
+        while(m_size > 0 && timestamp - m_timestamps[m_head] > kBufferDuration) {
+            m_head = index(1);
+            m_size--;
+        }
+        if(m_size == kBufferCapacity) {
+            m_head = index(1);
+            m_size--;
+        }
+
+        int index = index(m_size);
+        m_timestamps[index] = timestamp;
+        m_twistX[index] = twistX;
+        m_twistY[index] = twistY;
+        m_twistTheta[index] = twistTheta;
+        m_size++;
+        storeState(index, m_state, m_covariance);
+    }
+
+    /** Loads the history entry at a position into the replay state. */
+    private void loadReplayState(int position) {
+        int index = index(position);
+        m_replayState.set(m_stateX[index], m_stateY[index], m_stateTheta[index]);
+        loadCovariance(index, m_replayCovariance);
+    }
+
+    /** Expands the stored upper triangle of the history entry at an index into a full covariance. */
+    private void loadCovariance(int index, double[] out) {
+        int offset = index * 6;
+        out[0] = m_stateCovariance[offset];
+        out[1] = out[3] = m_stateCovariance[offset + 1];
+        out[2] = out[6] = m_stateCovariance[offset + 2];
+        out[4] = m_stateCovariance[offset + 3];
+        out[5] = out[7] = m_stateCovariance[offset + 4];
+        out[8] = m_stateCovariance[offset + 5];
+    }
+
+    /** Stores the replay state into the history entry at a position. */
+    private void storeReplayState(int position) {
+        storeState(index(position), m_replayState, m_replayCovariance);
+    }
+
+    private void storeState(int index, MutablePose2d state, double[] covariance) {
+        m_stateX[index] = state.x;
+        m_stateY[index] = state.y;
+        m_stateTheta[index] = state.theta;
+        int offset = index * 6;
+        m_stateCovariance[offset] = covariance[0];
+        m_stateCovariance[offset + 1] = covariance[1];
+        m_stateCovariance[offset + 2] = covariance[2];
+        m_stateCovariance[offset + 3] = covariance[4];
+        m_stateCovariance[offset + 4] = covariance[5];
+        m_stateCovariance[offset + 5] = covariance[8];
+    }
+
+    /**
+     * Re-propagates the replay state from one history position to a later one, storing each entry along the way.
+     */
+    private void replay(int fromPosition, int toPosition) {
+        for(int position = fromPosition + 1; position <= toPosition; position++) {
+            int index = index(position);
+            int previousIndex = index == 0 ? kBufferCapacity - 1 : index - 1;
+            predict(m_replayState, m_replayCovariance, m_twistX[index], m_twistY[index], m_twistTheta[index],
+                m_timestamps[index] - m_timestamps[previousIndex]);
+            storeState(index, m_replayState, m_replayCovariance);
+        }
+    }
+
+    /** Re-propagates the replay state to the newest history entry and makes it the current state. */
+    private void finishReplay(int fromPosition) {
+        replay(fromPosition, m_size - 1);
+        m_state.set(m_replayState.x, m_replayState.y, m_replayState.theta);
+        System.arraycopy(m_replayCovariance, 0, m_covariance, 0, 9);
+        m_poseEstimateStale = true;
+    }
+
+    /**
+     * The EKF prediction step. Applies a robot-relative twist to the state and propagates the covariance through the
+     * motion's Jacobian, adding process noise proportional to the distance moved and the elapsed time.
+     */
+    private static void predict(MutablePose2d state, double[] covariance, double twistX, double twistY,
+        double twistTheta, double dt) {
+        double startX = state.x;
+        double startY = state.y;
+        state.exp(twistX, twistY, twistTheta);
+
+        // The Jacobian of the new pose with respect to the old one is F = [[1, 0, a], [0, 1, b], [0, 0, 1]], where a and
+        // b come from rotating the field-relative displacement with the heading.
+        double a = -(state.y - startY);
+        double b = state.x - startX;
+
+        double distance = Math.hypot(twistX, twistY);
+        double translationNoise = kTranslationVariancePerMeter * distance + kTranslationVariancePerSecond * dt;
+        double rotationNoise = kRotationVariancePerRadian * Math.abs(twistTheta) + kRotationVariancePerSecond * dt;
+
+        // P = F * P * F^T + Q, expanded for this F
+        double p00 = covariance[0], p01 = covariance[1], p02 = covariance[2];
+        double p11 = covariance[4], p12 = covariance[5], p22 = covariance[8];
+        covariance[0] = p00 + 2 * a * p02 + a * a * p22 + translationNoise;
+        covariance[1] = covariance[3] = p01 + a * p12 + b * p02 + a * b * p22;
+        covariance[2] = covariance[6] = p02 + a * p22;
+        covariance[4] = p11 + 2 * b * p12 + b * b * p22 + translationNoise;
+        covariance[5] = covariance[7] = p12 + b * p22;
+        covariance[8] = p22 + rotationNoise;
+    }
+
+    /**
+     * The EKF correction step for a direct pose measurement, so the measurement Jacobian is the identity.
+     * @param varianceX The measurement variance of x, in square meters.
+     * @param varianceY The measurement variance of y, in square meters.
+     * @param varianceTheta The measurement variance of the heading, in square radians.
+     */
+    private void correct(MutablePose2d state, double[] covariance, double measuredX, double measuredY,
+        double measuredTheta, double varianceX, double varianceY, double varianceTheta) {
+        // Innovation covariance S = P + R
+        double s00 = covariance[0] + varianceX, s01 = covariance[1], s02 = covariance[2];
+        double s11 = covariance[4] + varianceY, s12 = covariance[5];
+        double s22 = covariance[8] + varianceTheta;
+
+        // Invert S through its adjugate; it's symmetric, so only the upper triangle is needed
+        double c00 = s11 * s22 - s12 * s12;
+        double c01 = s02 * s12 - s01 * s22;
+        double c02 = s01 * s12 - s02 * s11;
+        double determinant = s00 * c00 + s01 * c01 + s02 * c02;
+        if(!(determinant > 1e-12)) return;
+        double inverseDeterminant = 1.0 / determinant;
+        double[] inverse = m_innovationInverse;
+        inverse[0] = c00 * inverseDeterminant;
+        inverse[1] = inverse[3] = c01 * inverseDeterminant;
+        inverse[2] = inverse[6] = c02 * inverseDeterminant;
+        inverse[4] = (s00 * s22 - s02 * s02) * inverseDeterminant;
+        inverse[5] = inverse[7] = (s01 * s02 - s00 * s12) * inverseDeterminant;
+        inverse[8] = (s00 * s11 - s01 * s01) * inverseDeterminant;
+
+        // Kalman gain K = P * S^-1
+        multiply(covariance, inverse, m_gain);
+
+        // x = x + K * (z - x)
+        double innovationX = measuredX - state.x;
+        double innovationY = measuredY - state.y;
+        double innovationTheta = MathUtil.angleModulus(measuredTheta - state.theta);
+        double[] k = m_gain;
+        state.set(state.x + k[0] * innovationX + k[1] * innovationY + k[2] * innovationTheta,
+            state.y + k[3] * innovationX + k[4] * innovationY + k[5] * innovationTheta,
+            MathUtil.angleModulus(state.theta + k[6] * innovationX + k[7] * innovationY + k[8] * innovationTheta));
+
+        // P = P - K * P, symmetrized to keep rounding error from accumulating
+        multiply(k, covariance, m_gainTimesCovariance);
+        double[] kp = m_gainTimesCovariance;
+        covariance[0] -= kp[0];
+        covariance[4] -= kp[4];
+        covariance[8] -= kp[8];
+        covariance[1] = covariance[3] = covariance[1] - 0.5 * (kp[1] + kp[3]);
+        covariance[2] = covariance[6] = covariance[2] - 0.5 * (kp[2] + kp[6]);
+        covariance[5] = covariance[7] = covariance[5] - 0.5 * (kp[5] + kp[7]);
+    }
+
+    /** Multiplies two row-major 3x3 matrices. The output must not be either input. */
+    private static void multiply(double[] left, double[] right, double[] out) {
+        for(int row = 0; row < 3; row++) {
+            for(int column = 0; column < 3; column++) {
+                out[row * 3 + column] = left[row * 3] * right[column] + left[row * 3 + 1] * right[3 + column]
+                    + left[row * 3 + 2] * right[6 + column];
+            }
+        }
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
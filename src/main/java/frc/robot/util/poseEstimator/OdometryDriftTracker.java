@@ -0,0 +1,141 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Measures how far odometry drifts from a ground truth pose, like the simulated drivetrain pose from maple-sim. The
+ * same odometry samples are integrated by a first-order and a second-order {@link SwerveOdometryIntegrator} side by
+ * side, so the two can be compared on exactly the same data.
+ */
+public class OdometryDriftTracker {
+    private final SwerveOdometryIntegrator firstOrder;
+    private final SwerveOdometryIntegrator secondOrder;
+    private final DriftStats firstOrderStats = new DriftStats("FirstOrder");
+    private final DriftStats secondOrderStats = new DriftStats("SecondOrder");
+    private final MutablePose2d pose = new MutablePose2d();
+
+    /** If the tracker has been reset to a ground truth pose. */
+    private boolean started = false;
+    private double lastTruthX = 0.0;
+    private double lastTruthY = 0.0;
+    /** The ground truth distance traveled since the last reset, in meters. */
+    private double distanceMeters = 0.0;
+
+    /** The drift of one integrator since the last reset. */
+    private static class DriftStats {
+        final String name;
+        double positionError = 0.0;
+        double maxPositionError = 0.0;
+        double headingError = 0.0;
+        double maxHeadingError = 0.0;
+
+        DriftStats(String name) {
+            this.name = name;
+        }
+
+        void reset() {
+            positionError = 0.0;
+            maxPositionError = 0.0;
+            headingError = 0.0;
+            maxHeadingError = 0.0;
+        }
+    }
+
+    /**
+     * Creates a new tracker.
+     * @param moduleTranslations The position of each module relative to the robot center.
+     */
+    public OdometryDriftTracker(Translation2d[] moduleTranslations) {
+        firstOrder = new SwerveOdometryIntegrator(moduleTranslations, false);
+        secondOrder = new SwerveOdometryIntegrator(moduleTranslations, true);
+    }
+
+    /**
+     * Starts measuring drift from a ground truth pose. Both integrators are reset to the pose, and the next odometry
+     * sample sets their references.
+     */
+    public void reset(Pose2d groundTruth) {
+        double theta = groundTruth.getRotation().getRadians();
+        firstOrder.reset(groundTruth.getX(), groundTruth.getY(), theta);
+        secondOrder.reset(groundTruth.getX(), groundTruth.getY(), theta);
+        firstOrderStats.reset();
+        secondOrderStats.reset();
+        lastTruthX = groundTruth.getX();
+        lastTruthY = groundTruth.getY();
+        distanceMeters = 0.0;
+        started = true;
+    }
+
+    /**
+     * Integrates an odometry sample with both integrators.
+     * @param timestampSeconds The time the sample was taken, in seconds.
+     * @param positions The position of each module.
+     * @param moduleValid If each module position is valid.
+     * @param hasGyro If the gyro yaw is valid.
+     * @param gyroYawRad The gyro yaw in radians.
+     */
+    public void addSample(double timestampSeconds, MutableSwerveModulePosition[] positions, boolean[] moduleValid,
+        boolean hasGyro, double gyroYawRad) {
+        if(!started) return;
+        firstOrder.update(timestampSeconds, positions, moduleValid, hasGyro, gyroYawRad);
+        secondOrder.update(timestampSeconds, positions, moduleValid, hasGyro, gyroYawRad);
+    }
+
+    /**
+     * Compares both integrated poses against the ground truth and logs the drift. Call this once per loop after the
+     * loop's odometry samples are added.
+     */
+    public void update(Pose2d groundTruth) {
+        if(!started) return;
+        distanceMeters += Math.hypot(groundTruth.getX() - lastTruthX, groundTruth.getY() - lastTruthY);
+        lastTruthX = groundTruth.getX();
+        lastTruthY = groundTruth.getY();
+
+        Logger.recordOutput("Odometry/Drift/DistanceTraveled", distanceMeters);
+        updateStats(firstOrder, firstOrderStats, groundTruth);
+        updateStats(secondOrder, secondOrderStats, groundTruth);
+    }
+
+    private void updateStats(SwerveOdometryIntegrator integrator, DriftStats stats, Pose2d groundTruth) {
+        integrator.getPose(pose);
+        stats.positionError = Math.hypot(pose.x - groundTruth.getX(), pose.y - groundTruth.getY());
+        stats.headingError = Math
+            .abs(Math.IEEEremainder(pose.theta - groundTruth.getRotation().getRadians(), 2 * Math.PI));
+        stats.maxPositionError = Math.max(stats.maxPositionError, stats.positionError);
+        stats.maxHeadingError = Math.max(stats.maxHeadingError, stats.headingError);
+
+        String prefix = "Odometry/Drift/" + stats.name + "/";
+        Logger.recordOutput(prefix + "Pose", new Pose2d(pose.x, pose.y, new Rotation2d(pose.theta)));
+        Logger.recordOutput(prefix + "PositionError", stats.positionError);
+        Logger.recordOutput(prefix + "HeadingErrorDegrees", Math.toDegrees(stats.headingError));
+        Logger.recordOutput(prefix + "ErrorPerMeter", getErrorPerMeter(stats));
+    }
+
+    private double getErrorPerMeter(DriftStats stats) {
+        return distanceMeters > 0.0 ? stats.positionError / distanceMeters : 0.0;
+    }
+
+    /** Prints the drift since the last reset for both integrators. */
+    public void printReport(String pathName) {
+        NumberFormat formatter = new DecimalFormat("#0.0000");
+        System.out.println("********** Odometry Drift Report: " + pathName + " **********");
+        System.out.println("\tDistance traveled: " + formatter.format(distanceMeters) + " meters");
+        for(DriftStats stats : new DriftStats[] {
+            firstOrderStats, secondOrderStats
+        }) {
+            System.out.println("\t" + stats.name + ":");
+            System.out.println("\t \tFinal position error: " + formatter.format(stats.positionError) + " meters ("
+                + formatter.format(getErrorPerMeter(stats) * 100.0) + "% of distance)");
+            System.out.println("\t \tMax position error: " + formatter.format(stats.maxPositionError) + " meters");
+            System.out.println(
+                "\t \tFinal heading error: " + formatter.format(Math.toDegrees(stats.headingError)) + " degrees");
+        }
+    }
+}
@@ -9,23 +9,22 @@ import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.geometry.Twist2d;
-import edu.wpi.first.math.interpolation.TimeInterpolatableBuffer;
 import edu.wpi.first.math.kinematics.Kinematics;
 import edu.wpi.first.math.kinematics.Odometry;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
-import java.util.NavigableMap;
+import frc.robot.util.geometry.MutablePose2d;
 import java.util.Optional;
-import java.util.TreeMap;
 
 /**
- * A mostly copy-paste implementation of the WPILib pose estimator that publicizes the internal odometry pose buffer.
- * 
- * This class wraps {@link Odometry} to fuse latency-compensated vision measurements with encoder measurements. Robot
- * code should not use this directly- Instead, use the particular type for your drivetrain (e.g.,
- * {@link DifferentialDrivePoseEstimator}). It is intended to be a drop-in replacement for {@link Odometry}; in fact, if
- * you never call {@link OdometryPoseEstimator#addVisionMeasurement} and only call {@link OdometryPoseEstimator#update}
- * then this will behave exactly the same as Odometry.
+ * Fuses latency-compensated vision measurements with odometry using the same closed-form Kalman gain as WPILib's pose
+ * estimator. The odometry and vision histories are kept in preallocated buffers, so updating and sampling the estimate
+ * don't allocate, and the odometry history is available through {@link #getOdometryPoseBuffer()}.
+ *
+ * <p>
+ * Odometry comes from a WPILib {@link Odometry}, or subclasses can integrate it themselves by using the constructor
+ * without one and overriding the reset and update methods, like {@link OdometrySwerveDrivePoseEstimator}. If you never
+ * call {@link OdometryPoseEstimator#addVisionMeasurement} this behaves exactly like the odometry alone.
  *
  * <p>
  * {@link OdometryPoseEstimator#update} should be called every robot loop.
@@ -37,21 +36,34 @@ import java.util.TreeMap;
  * @param <T> Wheel positions type.
  */
 public class OdometryPoseEstimator<T> {
-    public final Odometry<T> m_odometry;
+    /** The WPILib odometry, or null if the subclass integrates odometry itself. */
+    private final Odometry<T> m_odometry;
     private final Matrix<N3, N1> m_q = new Matrix<>(Nat.N3(), Nat.N1());
     private final Matrix<N3, N3> m_visionK = new Matrix<>(Nat.N3(), Nat.N3());
 
     private static final double kBufferDuration = 1.5;
+    // Enough for the buffer duration at odometry rates up to ~680Hz
+    private static final int kBufferCapacity = 1024;
     // Maps timestamps to odometry-only pose estimates
-    public final TimeInterpolatableBuffer<Pose2d> m_odometryPoseBuffer = TimeInterpolatableBuffer
-        .createBuffer(kBufferDuration);
+    private final PoseHistoryBuffer m_odometryPoseBuffer = new PoseHistoryBuffer(kBufferCapacity, kBufferDuration);
 
-    // Maps timestamps to vision updates
+    // Enough for the buffer duration with several cameras reporting every frame
+    private static final int kVisionUpdateCapacity = 512;
+    // Time-ordered vision updates
     // Always contains one entry before the oldest entry in m_odometryPoseBuffer, unless there have
     // been no vision measurements after the last reset
-    private final NavigableMap<Double, VisionUpdate> m_visionUpdates = new TreeMap<>();
+    private final VisionUpdateHistory m_visionUpdates = new VisionUpdateHistory(kVisionUpdateCapacity);
 
+    /** The current odometry-only pose. */
+    protected final MutablePose2d m_odometryPose = new MutablePose2d();
+    private final MutablePose2d m_estimate = new MutablePose2d();
     private Pose2d m_poseEstimate;
+    private boolean m_poseEstimateStale = true;
+
+    // Scratch space for batched vision measurements
+    private final MutablePose2d m_batchOdometrySample = new MutablePose2d();
+    private final MutablePose2d m_batchVisionSample = new MutablePose2d();
+    private final double[] m_batchTwist = new double[3];
 
     /**
      * Constructs a PoseEstimator.
@@ -66,10 +78,32 @@ public class OdometryPoseEstimator<T> {
      */
     @SuppressWarnings("PMD.UnusedFormalParameter")
     public OdometryPoseEstimator(Kinematics<?, T> kinematics, Odometry<T> odometry, Matrix<N3, N1> stateStdDevs,
+        Matrix<N3, N1> visionMeasurementStdDevs) {
+        this(odometry, odometry.getPoseMeters(), stateStdDevs, visionMeasurementStdDevs);
+    }
+
+    /**
+     * Constructs a PoseEstimator for a subclass that integrates odometry itself. The subclass must override every reset
+     * and update method, and record its odometry with {@link #addOdometrySample}.
+     *
+     * @param initialPoseMeters The starting odometry pose.
+     * @param stateStdDevs Standard deviations of the pose estimate (x position in meters, y position in meters, and
+     *            heading in radians). Increase these numbers to trust your state estimate less.
+     * @param visionMeasurementStdDevs Standard deviations of the vision pose measurement (x position in meters, y
+     *            position in meters, and heading in radians). Increase these numbers to trust the vision pose
+     *            measurement less.
+     */
+    protected OdometryPoseEstimator(Pose2d initialPoseMeters, Matrix<N3, N1> stateStdDevs,
+        Matrix<N3, N1> visionMeasurementStdDevs) {
+        this(null, initialPoseMeters, stateStdDevs, visionMeasurementStdDevs);
+    }
+
+    private OdometryPoseEstimator(Odometry<T> odometry, Pose2d initialPoseMeters, Matrix<N3, N1> stateStdDevs,
         Matrix<N3, N1> visionMeasurementStdDevs) {
         m_odometry = odometry;
 
-        m_poseEstimate = m_odometry.getPoseMeters();
+        m_odometryPose.set(initialPoseMeters);
+        updateEstimate();
 
         for(int i = 0; i < 3; ++i) {
             m_q.set(i, 0, stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0));
@@ -116,9 +150,8 @@ public class OdometryPoseEstimator<T> {
     public void resetPosition(Rotation2d gyroAngle, T wheelPositions, Pose2d poseMeters) {
         // Reset state estimate and error covariance
         m_odometry.resetPosition(gyroAngle, wheelPositions, poseMeters);
-        m_odometryPoseBuffer.clear();
-        m_visionUpdates.clear();
-        m_poseEstimate = m_odometry.getPoseMeters();
+        m_odometryPose.set(m_odometry.getPoseMeters());
+        clearHistory();
     }
 
     /**
@@ -128,9 +161,8 @@ public class OdometryPoseEstimator<T> {
      */
     public void resetPose(Pose2d pose) {
         m_odometry.resetPose(pose);
-        m_odometryPoseBuffer.clear();
-        m_visionUpdates.clear();
-        m_poseEstimate = m_odometry.getPoseMeters();
+        m_odometryPose.set(m_odometry.getPoseMeters());
+        clearHistory();
     }
 
     /**
@@ -140,9 +172,8 @@ public class OdometryPoseEstimator<T> {
      */
     public void resetTranslation(Translation2d translation) {
         m_odometry.resetTranslation(translation);
-        m_odometryPoseBuffer.clear();
-        m_visionUpdates.clear();
-        m_poseEstimate = m_odometry.getPoseMeters();
+        m_odometryPose.set(m_odometry.getPoseMeters());
+        clearHistory();
     }
 
     /**
@@ -152,9 +183,15 @@ public class OdometryPoseEstimator<T> {
      */
     public void resetRotation(Rotation2d rotation) {
         m_odometry.resetRotation(rotation);
+        m_odometryPose.set(m_odometry.getPoseMeters());
+        clearHistory();
+    }
+
+    /** Clears the odometry and vision history after the odometry pose is reset. */
+    protected void clearHistory() {
         m_odometryPoseBuffer.clear();
         m_visionUpdates.clear();
-        m_poseEstimate = m_odometry.getPoseMeters();
+        updateEstimate();
     }
 
     /**
@@ -163,9 +200,31 @@ public class OdometryPoseEstimator<T> {
      * @return The estimated robot pose in meters.
      */
     public Pose2d getEstimatedPosition() {
+        if(m_poseEstimateStale) {
+            m_poseEstimate = m_estimate.toPose2d();
+            m_poseEstimateStale = false;
+        }
         return m_poseEstimate;
     }
 
+    /**
+     * Gets the current odometry-only pose.
+     *
+     * @return The odometry pose in meters.
+     */
+    public Pose2d getOdometryPose() {
+        return m_odometryPose.toPose2d();
+    }
+
+    /**
+     * Gets the history of odometry-only poses.
+     *
+     * @return The odometry pose buffer.
+     */
+    public PoseHistoryBuffer getOdometryPoseBuffer() {
+        return m_odometryPoseBuffer;
+    }
+
     /**
      * Return the pose at a given timestamp, if the buffer is not empty.
      *
@@ -173,47 +232,54 @@ public class OdometryPoseEstimator<T> {
      * @return The pose at the given timestamp (or Optional.empty() if the buffer is empty).
      */
     public Optional<Pose2d> sampleAt(double timestampSeconds) {
+        var pose = new MutablePose2d();
+        if(!sampleAt(timestampSeconds, pose)) { return Optional.empty(); }
+        return Optional.of(pose.toPose2d());
+    }
+
+    /**
+     * Samples the pose at a given timestamp without allocating, if the buffer is not empty.
+     *
+     * @param timestampSeconds The pose's timestamp in seconds.
+     * @param out Receives the pose at the given timestamp.
+     * @return False if the buffer is empty, in which case the output isn't changed.
+     */
+    public boolean sampleAt(double timestampSeconds, MutablePose2d out) {
         // Step 0: If there are no odometry updates to sample, skip.
-        if(m_odometryPoseBuffer.getInternalBuffer().isEmpty()) { return Optional.empty(); }
+        if(m_odometryPoseBuffer.isEmpty()) { return false; }
 
         // Step 1: Make sure timestamp matches the sample from the odometry pose buffer. (When sampling,
         // the buffer will always use a timestamp between the first and last timestamps)
-        double oldestOdometryTimestamp = m_odometryPoseBuffer.getInternalBuffer().firstKey();
-        double newestOdometryTimestamp = m_odometryPoseBuffer.getInternalBuffer().lastKey();
+        double oldestOdometryTimestamp = m_odometryPoseBuffer.getOldestTimestamp();
+        double newestOdometryTimestamp = m_odometryPoseBuffer.getNewestTimestamp();
         timestampSeconds = MathUtil.clamp(timestampSeconds, oldestOdometryTimestamp, newestOdometryTimestamp);
 
-        // Step 2: If there are no applicable vision updates, use the odometry-only information.
-        if(m_visionUpdates.isEmpty() || timestampSeconds < m_visionUpdates.firstKey()) {
-            return m_odometryPoseBuffer.getSample(timestampSeconds);
-        }
-
-        // Step 3: Get the latest vision update from before or at the timestamp to sample at.
-        double floorTimestamp = m_visionUpdates.floorKey(timestampSeconds);
-        var visionUpdate = m_visionUpdates.get(floorTimestamp);
+        // Step 2: Get the pose measured by odometry at the time of the sample.
+        m_odometryPoseBuffer.sampleAt(timestampSeconds, out);
 
-        // Step 4: Get the pose measured by odometry at the time of the sample.
-        var odometryEstimate = m_odometryPoseBuffer.getSample(timestampSeconds);
+        // Step 3: If there are no applicable vision updates, use the odometry-only information.
+        int floorPosition = m_visionUpdates.floorPosition(timestampSeconds);
+        if(floorPosition < 0) { return true; }
 
-        // Step 5: Apply the vision compensation to the odometry pose.
-        return odometryEstimate.map(odometryPose -> visionUpdate.compensate(odometryPose));
+        // Step 4: Apply the latest vision update from before or at the timestamp to the odometry pose.
+        m_visionUpdates.compensate(floorPosition, out.x, out.y, out.theta, out);
+        return true;
     }
 
     /** Removes stale vision updates that won't affect sampling. */
     private void cleanUpVisionUpdates() {
         // Step 0: If there are no odometry samples, skip.
-        if(m_odometryPoseBuffer.getInternalBuffer().isEmpty()) { return; }
+        if(m_odometryPoseBuffer.isEmpty()) { return; }
 
         // Step 1: Find the oldest timestamp that needs a vision update.
-        double oldestOdometryTimestamp = m_odometryPoseBuffer.getInternalBuffer().firstKey();
-
-        // Step 2: If there are no vision updates before that timestamp, skip.
-        if(m_visionUpdates.isEmpty() || oldestOdometryTimestamp < m_visionUpdates.firstKey()) { return; }
+        double oldestOdometryTimestamp = m_odometryPoseBuffer.getOldestTimestamp();
 
-        // Step 3: Find the newest vision update timestamp before or at the oldest timestamp.
-        double newestNeededVisionUpdateTimestamp = m_visionUpdates.floorKey(oldestOdometryTimestamp);
+        // Step 2: Find the newest vision update before or at the oldest timestamp.
+        int newestNeededVisionUpdate = m_visionUpdates.floorPosition(oldestOdometryTimestamp);
 
-        // Step 4: Remove all entries strictly before the newest timestamp we need.
-        m_visionUpdates.headMap(newestNeededVisionUpdateTimestamp, false).clear();
+        // Step 3: Remove all entries strictly before the newest update we need. If there are no vision updates
+        // before the oldest timestamp, this does nothing.
+        m_visionUpdates.removeBefore(newestNeededVisionUpdate);
     }
 
     /**
@@ -237,8 +303,8 @@ public class OdometryPoseEstimator<T> {
      */
     public void addVisionMeasurement(Pose2d visionRobotPoseMeters, double timestampSeconds) {
         // Step 0: If this measurement is old enough to be outside the pose buffer's timespan, skip.
-        if(m_odometryPoseBuffer.getInternalBuffer().isEmpty()
-            || m_odometryPoseBuffer.getInternalBuffer().lastKey() - kBufferDuration > timestampSeconds) {
+        if(m_odometryPoseBuffer.isEmpty()
+            || m_odometryPoseBuffer.getNewestTimestamp() - kBufferDuration > timestampSeconds) {
             return;
         }
 
@@ -266,16 +332,13 @@ public class OdometryPoseEstimator<T> {
         // Step 6: Convert back to Twist2d.
         var scaledTwist = new Twist2d(k_times_twist.get(0, 0), k_times_twist.get(1, 0), k_times_twist.get(2, 0));
 
-        // Step 7: Calculate and record the vision update.
-        var visionUpdate = new VisionUpdate(visionSample.get().exp(scaledTwist), odometrySample.get());
-        m_visionUpdates.put(timestampSeconds, visionUpdate);
+        // Step 7: Calculate and record the vision update. This removes later vision measurements.
+        // (Matches previous behavior)
+        m_visionUpdates.add(timestampSeconds, visionSample.get().exp(scaledTwist), odometrySample.get());
 
-        // Step 8: Remove later vision measurements. (Matches previous behavior)
-        m_visionUpdates.tailMap(timestampSeconds, false).entrySet().clear();
-
-        // Step 9: Update latest pose estimate. Since we cleared all updates after this vision update,
+        // Step 8: Update latest pose estimate. Since we cleared all updates after this vision update,
         // it's guaranteed to be the latest vision update.
-        m_poseEstimate = visionUpdate.compensate(m_odometry.getPoseMeters());
+        updateEstimate();
     }
 
     /**
@@ -311,6 +374,68 @@ public class OdometryPoseEstimator<T> {
         addVisionMeasurement(visionRobotPoseMeters, timestampSeconds);
     }
 
+    /**
+     * Adds a batch of vision measurements to the Kalman Filter. This is equivalent to calling
+     * {@link #addVisionMeasurement(Pose2d, double, Matrix)} for each measurement in timestamp order, but old vision
+     * updates are cleaned up once and the latest pose estimate is only recomputed after the whole batch. Adding a
+     * measurement discards vision updates after it, so applying the batch in timestamp order also means no measurement
+     * in the batch undoes another.
+     *
+     * <p>
+     * Each measurement uses its own standard deviations. Unlike {@link #addVisionMeasurement(Pose2d, double, Matrix)},
+     * this doesn't change the standard deviations used by later single measurements.
+     *
+     * @param batch The measurements to add. This sorts the batch by timestamp.
+     */
+    public void addVisionMeasurements(VisionMeasurementBatch batch) {
+        // Step 0: If there are no odometry samples to compare against, skip.
+        if(batch.size() == 0 || m_odometryPoseBuffer.isEmpty()) { return; }
+
+        // Step 1: Clean up any old entries and sort the measurements so each one is applied after the previous.
+        cleanUpVisionUpdates();
+        batch.sortByTimestamp();
+        double oldestUsableTimestamp = m_odometryPoseBuffer.getNewestTimestamp() - kBufferDuration;
+
+        boolean addedUpdate = false;
+        for(int i = 0; i < batch.size(); i++) {
+            // Step 2: If this measurement is old enough to be outside the pose buffer's timespan, skip it.
+            double timestampSeconds = batch.getTimestamp(i);
+            if(timestampSeconds < oldestUsableTimestamp) { continue; }
+
+            // Step 3: Get the odometry and vision-compensated poses at the moment the measurement was made.
+            m_odometryPoseBuffer.sampleAt(timestampSeconds, m_batchOdometrySample);
+            sampleAt(timestampSeconds, m_batchVisionSample);
+
+            // Step 4: Measure the twist between the old pose estimate and the vision pose, and scale it by the
+            // Kalman gain for this measurement's standard deviations.
+            m_batchVisionSample.log(batch.getX(i), batch.getY(i), batch.getTheta(i), m_batchTwist);
+            m_batchVisionSample.exp(m_batchTwist[0] * getVisionGain(0, batch.getLinearStdDev(i)),
+                m_batchTwist[1] * getVisionGain(1, batch.getLinearStdDev(i)),
+                m_batchTwist[2] * getVisionGain(2, batch.getAngularStdDev(i)));
+
+            // Step 5: Record the vision update. This removes any later vision updates from before this batch.
+            m_visionUpdates.add(timestampSeconds, m_batchVisionSample.x, m_batchVisionSample.y,
+                m_batchVisionSample.theta, m_batchOdometrySample.x, m_batchOdometrySample.y,
+                m_batchOdometrySample.theta);
+            addedUpdate = true;
+        }
+
+        // Step 6: Update latest pose estimate once. The last measurement applied is the latest vision update.
+        if(addedUpdate) {
+            updateEstimate();
+        }
+    }
+
+    /**
+     * Returns the closed form Kalman gain for one state given a vision measurement standard deviation. This matches the
+     * gain computed by {@link #setVisionMeasurementStdDevs(Matrix)}.
+     */
+    private double getVisionGain(int row, double stdDev) {
+        double q = m_q.get(row, 0);
+        if(q == 0.0) { return 0.0; }
+        return q / (q + Math.sqrt(q * stdDev * stdDev));
+    }
+
     /**
      * Updates the pose estimator with wheel encoder and gyro information. This should be called every loop.
      *
@@ -331,52 +456,31 @@ public class OdometryPoseEstimator<T> {
      * @return The estimated pose of the robot in meters.
      */
     public Pose2d updateWithTime(double currentTimeSeconds, Rotation2d gyroAngle, T wheelPositions) {
-        var odometryEstimate = m_odometry.update(gyroAngle, wheelPositions);
-
-        m_odometryPoseBuffer.addSample(currentTimeSeconds, odometryEstimate);
-
-        if(m_visionUpdates.isEmpty()) {
-            m_poseEstimate = odometryEstimate;
-        } else {
-            var visionUpdate = m_visionUpdates.get(m_visionUpdates.lastKey());
-            m_poseEstimate = visionUpdate.compensate(odometryEstimate);
-        }
+        m_odometryPose.set(m_odometry.update(gyroAngle, wheelPositions));
+        addOdometrySample(currentTimeSeconds);
 
         return getEstimatedPosition();
     }
 
     /**
-     * Represents a vision update record. The record contains the vision-compensated pose estimate as well as the
-     * corresponding odometry pose estimate.
+     * Records the current odometry pose in {@link #m_odometryPose} at a timestamp and updates the estimate from it.
+     * This doesn't allocate, so subclasses with their own odometry can call it directly.
+     *
+     * @param currentTimeSeconds The time the odometry pose was measured at, in seconds.
      */
-    private static final class VisionUpdate {
-        // The vision-compensated pose estimate.
-        private final Pose2d visionPose;
-
-        // The pose estimated based solely on odometry.
-        private final Pose2d odometryPose;
-
-        /**
-         * Constructs a vision update record with the specified parameters.
-         *
-         * @param visionPose The vision-compensated pose estimate.
-         * @param odometryPose The pose estimate based solely on odometry.
-         */
-        private VisionUpdate(Pose2d visionPose, Pose2d odometryPose) {
-            this.visionPose = visionPose;
-            this.odometryPose = odometryPose;
-        }
+    protected void addOdometrySample(double currentTimeSeconds) {
+        m_odometryPoseBuffer.addSample(currentTimeSeconds, m_odometryPose.x, m_odometryPose.y, m_odometryPose.theta);
+        updateEstimate();
+    }
 
-        /**
-         * Returns the vision-compensated version of the pose. Specifically, changes the pose from being relative to
-         * this record's odometry pose to being relative to this record's vision pose.
-         *
-         * @param pose The pose to compensate.
-         * @return The compensated pose.
-         */
-        public Pose2d compensate(Pose2d pose) {
-            var delta = pose.minus(this.odometryPose);
-            return this.visionPose.plus(delta);
+    /** Updates the estimate by applying the latest vision update to the current odometry pose. */
+    private void updateEstimate() {
+        if(m_visionUpdates.isEmpty()) {
+            m_estimate.set(m_odometryPose.x, m_odometryPose.y, m_odometryPose.theta);
+        } else {
+            m_visionUpdates.compensate(m_visionUpdates.size() - 1, m_odometryPose.x, m_odometryPose.y,
+                m_odometryPose.theta, m_estimate);
         }
+        m_poseEstimateStale = true;
     }
 }
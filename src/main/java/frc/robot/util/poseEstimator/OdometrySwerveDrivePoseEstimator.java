@@ -5,28 +5,32 @@ import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
-import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
-import edu.wpi.first.math.kinematics.SwerveDriveOdometry;
+import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import java.util.Arrays;
 
 /**
- * A mostly copy-paste implementation of the WPILib pose estimator that publicizes the internal odometry pose buffer.
- * 
- * This class wraps {@link SwerveDriveOdometry Swerve Drive Odometry} to fuse latency-compensated vision measurements
- * with swerve drive encoder distance measurements. It is intended to be a drop-in replacement for
- * {@link SwerveDriveOdometry}.
+ * The swerve drive version of {@link OdometryPoseEstimator}, which fuses latency-compensated vision measurements with
+ * swerve odometry like WPILib's {@link SwerveDrivePoseEstimator}.
  *
  * <p>
- * {@link SwerveDrivePoseEstimator#update} should be called every robot loop.
+ * {@link #updateWithTime(double, MutableSwerveModulePosition[], boolean, double)} should be called for every odometry
+ * sample. Vision measurements can be added as infrequently as you want; without them, this behaves as regular encoder
+ * odometry.
  *
  * <p>
- * {@link SwerveDrivePoseEstimator#addVisionMeasurement} can be called as infrequently as you want; if you never call
- * it, then this class will behave as regular encoder odometry.
+ * Odometry is integrated with a {@link SwerveOdometryIntegrator} instead of WPILib's odometry, so updating doesn't
+ * allocate.
  */
-public class OdometrySwerveDrivePoseEstimator extends OdometryPoseEstimator<SwerveModulePosition[]> {
+public class OdometrySwerveDrivePoseEstimator extends OdometryPoseEstimator<SwerveModulePosition[]>
+    implements SwervePoseEstimator {
     private final int m_numModules;
+    private final SwerveOdometryIntegrator m_swerveOdometry;
+    private final MutableSwerveModulePosition[] m_wheelPositions;
+    private final boolean[] m_allModulesValid;
 
     /**
      * Constructs a SwerveDrivePoseEstimator with default standard deviations for the model and vision measurements.
@@ -36,21 +40,36 @@ public class OdometrySwerveDrivePoseEstimator extends OdometryPoseEstimator<Swer
      * heading. The default standard deviations of the vision measurements are 0.9 meters for x, 0.9 meters for y, and
      * 0.9 radians for heading.
      *
-     * @param kinematics A correctly-configured kinematics object for your drivetrain.
+     * @param moduleTranslations The position of each module relative to the robot center.
      * @param gyroAngle The current gyro angle.
      * @param modulePositions The current distance measurements and rotations of the swerve modules.
      * @param initialPoseMeters The starting pose estimate.
      */
-    public OdometrySwerveDrivePoseEstimator(SwerveDriveKinematics kinematics, Rotation2d gyroAngle,
+    public OdometrySwerveDrivePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
         SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters) {
-        this(kinematics, gyroAngle, modulePositions, initialPoseMeters, VecBuilder.fill(0.1, 0.1, 0.1),
-            VecBuilder.fill(0.9, 0.9, 0.9));
+        this(moduleTranslations, gyroAngle, modulePositions, initialPoseMeters, false);
+    }
+
+    /**
+     * Constructs a SwerveDrivePoseEstimator with default standard deviations for the model and vision measurements.
+     *
+     * @param moduleTranslations The position of each module relative to the robot center.
+     * @param gyroAngle The current gyro angle.
+     * @param modulePositions The current distance measurements and rotations of the swerve modules.
+     * @param initialPoseMeters The starting pose estimate.
+     * @param secondOrderOdometry If odometry should be integrated to second order. See
+     *            {@link SwerveOdometryIntegrator}.
+     */
+    public OdometrySwerveDrivePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
+        SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters, boolean secondOrderOdometry) {
+        this(moduleTranslations, gyroAngle, modulePositions, initialPoseMeters, VecBuilder.fill(0.1, 0.1, 0.1),
+            VecBuilder.fill(0.9, 0.9, 0.9), secondOrderOdometry);
     }
 
     /**
      * Constructs a SwerveDrivePoseEstimator.
      *
-     * @param kinematics A correctly-configured kinematics object for your drivetrain.
+     * @param moduleTranslations The position of each module relative to the robot center.
      * @param gyroAngle The current gyro angle.
      * @param modulePositions The current distance and rotation measurements of the swerve modules.
      * @param initialPoseMeters The starting pose estimate.
@@ -60,23 +79,90 @@ public class OdometrySwerveDrivePoseEstimator extends OdometryPoseEstimator<Swer
      *            position in meters, and heading in radians). Increase these numbers to trust the vision pose
      *            measurement less.
      */
-    public OdometrySwerveDrivePoseEstimator(SwerveDriveKinematics kinematics, Rotation2d gyroAngle,
+    public OdometrySwerveDrivePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
         SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters, Matrix<N3, N1> stateStdDevs,
         Matrix<N3, N1> visionMeasurementStdDevs) {
-        super(kinematics, new SwerveDriveOdometry(kinematics, gyroAngle, modulePositions, initialPoseMeters),
-            stateStdDevs, visionMeasurementStdDevs);
+        this(moduleTranslations, gyroAngle, modulePositions, initialPoseMeters, stateStdDevs, visionMeasurementStdDevs,
+            false);
+    }
+
+    private OdometrySwerveDrivePoseEstimator(Translation2d[] moduleTranslations, Rotation2d gyroAngle,
+        SwerveModulePosition[] modulePositions, Pose2d initialPoseMeters, Matrix<N3, N1> stateStdDevs,
+        Matrix<N3, N1> visionMeasurementStdDevs, boolean secondOrderOdometry) {
+        super(initialPoseMeters, stateStdDevs, visionMeasurementStdDevs);
 
         m_numModules = modulePositions.length;
+        m_swerveOdometry = new SwerveOdometryIntegrator(moduleTranslations, secondOrderOdometry);
+        m_wheelPositions = MutableSwerveModulePosition.createArray(m_numModules);
+        m_allModulesValid = new boolean[m_numModules];
+        Arrays.fill(m_allModulesValid, true);
+        resetOdometry(gyroAngle, modulePositions, initialPoseMeters);
+        clearHistory();
     }
 
-    @Override
-    public Pose2d updateWithTime(double currentTimeSeconds, Rotation2d gyroAngle,
-        SwerveModulePosition[] wheelPositions) {
-        if(wheelPositions.length != m_numModules) {
+    /** Resets the odometry to a pose, using the current wheel positions and gyro angle as references. */
+    private void resetOdometry(Rotation2d gyroAngle, SwerveModulePosition[] wheelPositions, Pose2d poseMeters) {
+        checkModuleCount(wheelPositions.length);
+        m_swerveOdometry.reset(poseMeters.getX(), poseMeters.getY(), poseMeters.getRotation().getRadians());
+        for(int i = 0; i < m_numModules; i++) m_wheelPositions[i].set(wheelPositions[i]);
+        m_swerveOdometry.update(m_wheelPositions, m_allModulesValid, true, gyroAngle.getRadians());
+        m_swerveOdometry.getPose(m_odometryPose);
+    }
+
+    private void checkModuleCount(int moduleCount) {
+        if(moduleCount != m_numModules) {
             throw new IllegalArgumentException(
                 "Number of modules is not consistent with number of wheel locations provided in " + "constructor");
         }
+    }
 
-        return super.updateWithTime(currentTimeSeconds, gyroAngle, wheelPositions);
+    @Override
+    public void resetPosition(Rotation2d gyroAngle, SwerveModulePosition[] wheelPositions, Pose2d poseMeters) {
+        resetOdometry(gyroAngle, wheelPositions, poseMeters);
+        clearHistory();
+    }
+
+    @Override
+    public void resetPose(Pose2d pose) {
+        m_swerveOdometry.setPose(pose.getX(), pose.getY(), pose.getRotation().getRadians());
+        m_swerveOdometry.getPose(m_odometryPose);
+        clearHistory();
+    }
+
+    @Override
+    public void resetTranslation(Translation2d translation) {
+        m_swerveOdometry.setPose(translation.getX(), translation.getY(), m_swerveOdometry.getTheta());
+        m_swerveOdometry.getPose(m_odometryPose);
+        clearHistory();
+    }
+
+    @Override
+    public void resetRotation(Rotation2d rotation) {
+        m_swerveOdometry.setPose(m_swerveOdometry.getX(), m_swerveOdometry.getY(), rotation.getRadians());
+        m_swerveOdometry.getPose(m_odometryPose);
+        clearHistory();
+    }
+
+    @Override
+    public Pose2d updateWithTime(double currentTimeSeconds, Rotation2d gyroAngle,
+        SwerveModulePosition[] wheelPositions) {
+        checkModuleCount(wheelPositions.length);
+        for(int i = 0; i < m_numModules; i++) m_wheelPositions[i].set(wheelPositions[i]);
+        updateWithTime(currentTimeSeconds, m_wheelPositions, true, gyroAngle.getRadians());
+        return getEstimatedPosition();
+    }
+
+    @Override
+    public void updateWithTime(double currentTimeSeconds, MutableSwerveModulePosition[] wheelPositions,
+        boolean hasGyro, double gyroYawRad) {
+        checkModuleCount(wheelPositions.length);
+        m_swerveOdometry.update(currentTimeSeconds, wheelPositions, m_allModulesValid, hasGyro, gyroYawRad);
+        m_swerveOdometry.getPose(m_odometryPose);
+        addOdometrySample(currentTimeSeconds);
+    }
+
+    @Override
+    public int getSlippingModules(boolean[] out) {
+        return m_swerveOdometry.getSlippingModules(out);
     }
 }
@@ -0,0 +1,169 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import frc.robot.util.geometry.MutablePose2d;
+import java.util.Optional;
+
+/**
+ * A fixed-capacity, time-ordered history of poses stored in parallel primitive arrays. This replaces WPILib's
+ * {@link edu.wpi.first.math.interpolation.TimeInterpolatableBuffer TimeInterpolatableBuffer} for odometry poses: adding
+ * a sample doesn't allocate, lookups use a binary search, and samples are interpolated into a caller-provided
+ * {@link MutablePose2d}.
+ *
+ * <p>
+ * Interpolation matches {@link Pose2d#interpolate(Pose2d, double)}, which follows the constant-curvature arc between
+ * the two samples. Samples older than the history duration are discarded as new ones are added. If the buffer fills
+ * before that, the oldest sample is overwritten.
+ */
+public class PoseHistoryBuffer {
+    private final double historySeconds;
+    private final double[] timestamps;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] thetas;
+    private final double[] twist = new double[3];
+
+    /** The index of the oldest sample. */
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Creates a new buffer.
+     * @param capacity The maximum number of samples. This should cover the history duration at the sample rate.
+     * @param historySeconds How long samples are kept, in seconds.
+     */
+    public PoseHistoryBuffer(int capacity, double historySeconds) {
+        this.historySeconds = historySeconds;
+        timestamps = new double[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        thetas = new double[capacity];
+    }
+
+    /** Converts a position in the history, with 0 as the oldest sample, to an array index. */
+    private int index(int position) {
+        int index = head + position;
+        return index >= timestamps.length ? index - timestamps.length : index;
+    }
+
+    /**
+     * Adds a sample. Samples are expected in time order; one at the same time as the newest sample replaces it, and one
+     * older than the newest sample is ignored.
+     */
+    public void addSample(double timestamp, double x, double y, double theta) {
+        if(size > 0) {
+            double newest = getNewestTimestamp();
+            if(timestamp < newest) return;
+            if(timestamp == newest) size--;
+        }
+
+        // Remove samples that are too old
+        while(size > 0 && timestamp - timestamps[head] > historySeconds) {
+            head = index(1);
+            size--;
+        }
+
+        if(size == timestamps.length) {
+            head = index(1);
+            size--;
+        }
+
+        int index = index(size);
+        timestamps[index] = timestamp;
+        xs[index] = x;
+        ys[index] = y;
+        thetas[index] = theta;
+        size++;
+    }
+
+    /** Adds a sample. Samples are expected in time order. */
+    public void addSample(double timestamp, Pose2d pose) {
+        addSample(timestamp, pose.getX(), pose.getY(), pose.getRotation().getRadians());
+    }
+
+    /** Removes all samples. */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /** Returns if the buffer has no samples. */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the number of samples in the buffer. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the timestamp of the oldest sample. The buffer must not be empty. */
+    public double getOldestTimestamp() {
+        return timestamps[head];
+    }
+
+    /** Returns the timestamp of the newest sample. The buffer must not be empty. */
+    public double getNewestTimestamp() {
+        return timestamps[index(size - 1)];
+    }
+
+    /**
+     * Samples the pose at a timestamp, interpolating between the samples around it. Timestamps outside the buffer are
+     * clamped to the oldest or newest sample.
+     * @param out Receives the sampled pose.
+     * @return False if the buffer is empty, in which case the output isn't changed.
+     */
+    public boolean sampleAt(double timestamp, MutablePose2d out) {
+        if(size == 0) return false;
+
+        if(timestamp <= timestamps[head]) {
+            out.set(xs[head], ys[head], thetas[head]);
+            return true;
+        }
+        int newestIndex = index(size - 1);
+        if(timestamp >= timestamps[newestIndex]) {
+            out.set(xs[newestIndex], ys[newestIndex], thetas[newestIndex]);
+            return true;
+        }
+
+        // Find the last sample at or before the timestamp. The checks above guarantee one exists, and that there's
+        // a sample after it.
+        int low = 0;
+        int high = size - 1;
+        while(high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if(timestamps[index(middle)] <= timestamp) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+
+        int start = index(low);
+        int end = index(high);
+        double t = (timestamp - timestamps[start]) / (timestamps[end] - timestamps[start]);
+        interpolate(xs[start], ys[start], thetas[start], xs[end], ys[end], thetas[end], t, out);
+        return true;
+    }
+
+    /**
+     * Samples the pose at a timestamp like {@link #sampleAt(double, MutablePose2d)}, but returns a new pose.
+     * @return The pose, or empty if the buffer is empty.
+     */
+    public Optional<Pose2d> getSample(double timestamp) {
+        MutablePose2d pose = new MutablePose2d();
+        if(!sampleAt(timestamp, pose)) return Optional.empty();
+        return Optional.of(pose.toPose2d());
+    }
+
+    /**
+     * Interpolates along the constant-curvature arc between two poses. This is the same as
+     * {@code start.exp(start.log(end) * t)}.
+     */
+    private void interpolate(double startX, double startY, double startTheta, double endX, double endY,
+        double endTheta, double t, MutablePose2d out) {
+        out.set(startX, startY, startTheta);
+        out.log(endX, endY, endTheta, twist);
+        out.exp(twist[0] * t, twist[1] * t, twist[2] * t);
+    }
+}
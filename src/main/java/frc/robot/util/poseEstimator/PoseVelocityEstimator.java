@@ -0,0 +1,190 @@
+package frc.robot.util.poseEstimator;
+
+/**
+ * Estimates velocity and acceleration from a stream of timestamped poses by fitting a quadratic to each of x, y, and
+ * heading over a sliding time window and evaluating its derivatives at the newest sample. Fitting over many
+ * high-rate odometry samples averages out encoder quantization and per-sample timing jitter much better than
+ * differencing two samples, and unlike a low-pass filter, the fit has no lag when the acceleration is constant.
+ *
+ * <p>
+ * Samples are stored in a circular buffer of parallel primitive arrays, and the fit is only computed when a getter is
+ * called after new samples arrive, so adding samples is cheap and nothing allocates.
+ */
+public class PoseVelocityEstimator {
+    /** Fits whose normal matrix determinant is below this are treated as degenerate. */
+    private static final double MIN_DETERMINANT = 1E-9;
+
+    private final double windowSeconds;
+    private final double[] timestamps;
+    private final double[] xs;
+    private final double[] ys;
+    /** Unwrapped headings, so the fit doesn't see jumps at +/- pi. */
+    private final double[] thetas;
+    /** The index of the oldest sample. */
+    private int head = 0;
+    private int size = 0;
+
+    private boolean fitStale = true;
+    private final double[] velocity = new double[3];
+    private final double[] acceleration = new double[3];
+    private final double[] fitCoefficients = new double[3];
+
+    /**
+     * Creates a new estimator.
+     * @param capacity The maximum number of samples to fit. This should cover the window at the sample rate.
+     * @param windowSeconds How far back from the newest sample to fit, in seconds.
+     */
+    public PoseVelocityEstimator(int capacity, double windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        timestamps = new double[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        thetas = new double[capacity];
+    }
+
+    /** Converts a position in the buffer, with 0 as the oldest sample, to an array index. */
+    private int index(int position) {
+        int index = head + position;
+        return index >= timestamps.length ? index - timestamps.length : index;
+    }
+
+    /** Removes all samples. Call this when the pose jumps, like after a reset. */
+    public void clear() {
+        head = 0;
+        size = 0;
+        fitStale = true;
+    }
+
+    /**
+     * Adds a pose sample. Samples that aren't newer than the newest sample are ignored.
+     * @param timestampSeconds The time of the sample, in seconds.
+     * @param theta The heading in radians. This can be wrapped; it's unwrapped against the previous sample.
+     */
+    public void addSample(double timestampSeconds, double x, double y, double theta) {
+        if(size > 0) {
+            int newest = index(size - 1);
+            if(timestampSeconds <= timestamps[newest]) return;
+            theta = thetas[newest] + Math.IEEEremainder(theta - thetas[newest], 2 * Math.PI);
+        }
+
+        if(size == timestamps.length) {
+            head = index(1);
+            size--;
+        }
+        int index = index(size);
+        timestamps[index] = timestampSeconds;
+        xs[index] = x;
+        ys[index] = y;
+        thetas[index] = theta;
+        size++;
+
+        // Drop samples that have left the window
+        while(size > 1 && timestampSeconds - timestamps[head] > windowSeconds) {
+            head = index(1);
+            size--;
+        }
+        fitStale = true;
+    }
+
+    /** Returns the number of samples in the window. */
+    public int getSampleCount() {
+        return size;
+    }
+
+    /**
+     * Gets the velocity at the newest sample, in the same frame as the poses.
+     * @param out Receives the velocity as [vx in meters per second, vy in meters per second, omega in radians per
+     *            second]. This is zero if there are fewer than two samples.
+     */
+    public void getVelocity(double[] out) {
+        updateFit();
+        System.arraycopy(velocity, 0, out, 0, 3);
+    }
+
+    /**
+     * Gets the acceleration at the newest sample, in the same frame as the poses.
+     * @param out Receives the acceleration as [ax in meters per second squared, ay in meters per second squared, alpha
+     *            in radians per second squared]. This is zero if there are fewer than three samples.
+     */
+    public void getAcceleration(double[] out) {
+        updateFit();
+        System.arraycopy(acceleration, 0, out, 0, 3);
+    }
+
+    private void updateFit() {
+        if(!fitStale) return;
+        fitStale = false;
+
+        for(int axis = 0; axis < 3; axis++) {
+            velocity[axis] = 0.0;
+            acceleration[axis] = 0.0;
+        }
+        if(size < 2) return;
+
+        // Fit in time relative to the newest sample, normalized by the window to keep the sums well-conditioned
+        double newestTimestamp = timestamps[index(size - 1)];
+        double s0 = size, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0;
+        for(int position = 0; position < size; position++) {
+            double u = (timestamps[index(position)] - newestTimestamp) / windowSeconds;
+            double u2 = u * u;
+            s1 += u;
+            s2 += u2;
+            s3 += u2 * u;
+            s4 += u2 * u2;
+        }
+
+        for(int axis = 0; axis < 3; axis++) {
+            double[] values = axis == 0 ? xs : axis == 1 ? ys : thetas;
+            fitAxis(values, newestTimestamp, s0, s1, s2, s3, s4);
+            velocity[axis] = fitCoefficients[1] / windowSeconds;
+            acceleration[axis] = 2.0 * fitCoefficients[2] / (windowSeconds * windowSeconds);
+        }
+    }
+
+    /**
+     * Fits a quadratic in normalized time to one axis with least squares, falling back to a line when there are too few
+     * samples to fit a quadratic. The coefficients are stored in {@link #fitCoefficients} as [c0, c1, c2].
+     */
+    private void fitAxis(double[] values, double newestTimestamp, double s0, double s1, double s2, double s3,
+        double s4) {
+        // Values are taken relative to the newest sample for precision
+        double newestValue = values[index(size - 1)];
+        double b0 = 0.0, b1 = 0.0, b2 = 0.0;
+        for(int position = 0; position < size; position++) {
+            int index = index(position);
+            double u = (timestamps[index] - newestTimestamp) / windowSeconds;
+            double value = values[index] - newestValue;
+            b0 += value;
+            b1 += value * u;
+            b2 += value * u * u;
+        }
+
+        // Solve [[s0, s1, s2], [s1, s2, s3], [s2, s3, s4]] c = b with the adjugate
+        if(size >= 3) {
+            double m00 = s2 * s4 - s3 * s3;
+            double m01 = s2 * s3 - s1 * s4;
+            double m02 = s1 * s3 - s2 * s2;
+            double determinant = s0 * m00 + s1 * m01 + s2 * m02;
+            if(Math.abs(determinant) > MIN_DETERMINANT) {
+                double m11 = s0 * s4 - s2 * s2;
+                double m12 = s1 * s2 - s0 * s3;
+                double m22 = s0 * s2 - s1 * s1;
+                fitCoefficients[0] = (m00 * b0 + m01 * b1 + m02 * b2) / determinant;
+                fitCoefficients[1] = (m01 * b0 + m11 * b1 + m12 * b2) / determinant;
+                fitCoefficients[2] = (m02 * b0 + m12 * b1 + m22 * b2) / determinant;
+                return;
+            }
+        }
+
+        // Solve [[s0, s1], [s1, s2]] c = b for a line
+        double determinant = s0 * s2 - s1 * s1;
+        fitCoefficients[2] = 0.0;
+        if(Math.abs(determinant) > MIN_DETERMINANT) {
+            fitCoefficients[0] = (s2 * b0 - s1 * b1) / determinant;
+            fitCoefficients[1] = (s0 * b1 - s1 * b0) / determinant;
+        } else {
+            fitCoefficients[0] = 0.0;
+            fitCoefficients[1] = 0.0;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Translation2d;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import frc.robot.util.geometry.MutableTwist2d;
+import java.util.Arrays;
+
+/**
+ * Allocation-free swerve odometry that works directly on primitive module positions. This matches the math in WPILib's
+ * {@link edu.wpi.first.math.kinematics.SwerveDriveOdometry SwerveDriveOdometry}: module deltas are solved for a chassis
+ * twist with least-squares forward kinematics, the gyro replaces the twist's rotation when available, and the twist is
+ * integrated along a constant-curvature arc.
+ *
+ * <p>
+ * Modules can be marked invalid for individual samples. An invalid module is left out of the least-squares solve, and
+ * its next valid sample only re-establishes its reference position, since the movement across the gap can't be
+ * attributed to a single sample.
+ *
+ * <p>
+ * Each sample is also checked for consistency. While at least three modules are usable, each module's displacement
+ * is compared against the displacement predicted at it by the twist solved from the other modules, and the module that
+ * disagrees the most is dropped until the rest agree. This rejects a wheel that's spinning out or being dragged. Then,
+ * if the remaining modules agree with each other but their rotation doesn't match the gyro, the whole chassis slid,
+ * like when the robot is pushed or hits something. No single module can be blamed for that, so they're all kept and
+ * flagged. The gyro can update slower than odometry is sampled and repeat its last yaw, so the module rotation is
+ * accumulated and only compared once the gyro reports a new yaw.
+ * Either way, the modules flagged for the last sample can be read with {@link #getSlippingModules}.
+ *
+ * <p>
+ * Optionally, timestamped samples can be integrated to second order. Instead of assuming each module pointed at its
+ * final angle for the whole sample and the chassis moved at a constant speed, each module's displacement is integrated
+ * with Simpson's rule while its angle sweeps linearly from the previous sample's angle and its speed changes at the
+ * acceleration measured across the last two samples. The chassis twist is integrated the same way, with the heading
+ * sweeping linearly and the speed following the chassis acceleration. This mostly matters when the modules steer or
+ * the robot accelerates hard while rotating, where the first-order model consistently cuts corners.
+ *
+ * <p>
+ * Because it never allocates, this is safe to run at the odometry sample rate on the odometry thread.
+ */
+public class SwerveOdometryIntegrator {
+    /**
+     * Module angle changes larger than this within one sample are assumed to be a wrapped or flipped module rather
+     * than steering, so the module falls back to its final angle.
+     */
+    private static final double MAX_MODULE_SWEEP_RAD = Math.PI / 4;
+    /** Speeds below this are treated as stopped when estimating acceleration, in meters per second. */
+    private static final double MIN_ACCELERATION_SPEED = 1E-3;
+    /** The fixed part of how far a module can be from the solved twist before it's considered slipping, in meters. */
+    private static final double SLIP_RESIDUAL_METERS = 0.002;
+    /** The part of the slip threshold that scales with the average module displacement in the sample. */
+    private static final double SLIP_RESIDUAL_FRACTION = 0.15;
+    /**
+     * How many samples in a row the gyro can repeat its yaw before it's trusted as not rotating. This covers gyros
+     * updating as slowly as a quarter of the sample rate, and still catches the modules rotating while the robot is
+     * pinned.
+     */
+    private static final int MAX_REPEATED_GYRO_YAWS = 3;
+
+    private final int moduleCount;
+    private final boolean secondOrder;
+    private final double[] moduleX;
+    private final double[] moduleY;
+
+    private final double[] lastDistancesMeters;
+    /** If each module needs a new reference position before its deltas can be used. */
+    private final boolean[] needsReference;
+    private final double[] weights;
+    private final double[] moduleDeltaX;
+    private final double[] moduleDeltaY;
+    private final double[] twist = new double[3];
+    /** The twist solved without the module being checked for slip. */
+    private final double[] otherModulesTwist = new double[3];
+    /** If each module was flagged as slipping in the last sample. */
+    private final boolean[] slipping;
+    private int slippingCount = 0;
+    private final double[] sampleDistancesMeters;
+    private final double[] sampleAnglesRad;
+    /** The robot-relative twist applied by the last update. */
+    private final MutableTwist2d lastTwist = new MutableTwist2d();
+    private double lastGyroYawRad = 0.0;
+    private boolean hasGyroReference = false;
+
+    // The module rotation and mean displacement since the gyro last reported a new yaw, compared against the gyro's
+    // rotation once it does
+    private double moduleDthetaSinceGyroYaw = 0.0;
+    private double displacementSinceGyroYaw = 0.0;
+    /** If the modules were solved for every sample since the gyro last reported a new yaw. */
+    private boolean hasRotationSinceGyroYaw = false;
+    private int repeatedGyroYaws = 0;
+
+    // Second-order integration state
+    private final double[] lastAnglesRad;
+    /** The average speed of each module over its last sample, in meters per second. */
+    private final double[] lastModuleSpeeds;
+    private final boolean[] hasLastModuleSpeed;
+    /** The average chassis speed over the last sample, in meters per second. */
+    private double lastChassisSpeed = 0.0;
+    private boolean hasLastChassisSpeed = false;
+    private double lastTimestamp = Double.NaN;
+    /** The duration of the last sample, in seconds, or NaN if it isn't known. */
+    private double lastDt = Double.NaN;
+
+    private double x = 0.0;
+    private double y = 0.0;
+    private double theta = 0.0;
+
+    /**
+     * Creates a new integrator.
+     * @param moduleX The x position of each module relative to the robot center, in meters.
+     * @param moduleY The y position of each module relative to the robot center, in meters.
+     * @param secondOrder If timestamped samples should be integrated to second order.
+     */
+    public SwerveOdometryIntegrator(double[] moduleX, double[] moduleY, boolean secondOrder) {
+        moduleCount = moduleX.length;
+        this.secondOrder = secondOrder;
+        this.moduleX = moduleX.clone();
+        this.moduleY = moduleY.clone();
+        lastDistancesMeters = new double[moduleCount];
+        needsReference = new boolean[moduleCount];
+        weights = new double[moduleCount];
+        Arrays.fill(needsReference, true);
+        moduleDeltaX = new double[moduleCount];
+        moduleDeltaY = new double[moduleCount];
+        sampleDistancesMeters = new double[moduleCount];
+        sampleAnglesRad = new double[moduleCount];
+        slipping = new boolean[moduleCount];
+        lastAnglesRad = new double[moduleCount];
+        lastModuleSpeeds = new double[moduleCount];
+        hasLastModuleSpeed = new boolean[moduleCount];
+    }
+
+    /**
+     * Creates a new first-order integrator.
+     * @param moduleX The x position of each module relative to the robot center, in meters.
+     * @param moduleY The y position of each module relative to the robot center, in meters.
+     */
+    public SwerveOdometryIntegrator(double[] moduleX, double[] moduleY) {
+        this(moduleX, moduleY, false);
+    }
+
+    /**
+     * Creates a new integrator.
+     * @param moduleTranslations The position of each module relative to the robot center.
+     * @param secondOrder If timestamped samples should be integrated to second order.
+     */
+    public SwerveOdometryIntegrator(Translation2d[] moduleTranslations, boolean secondOrder) {
+        this(Arrays.stream(moduleTranslations).mapToDouble(Translation2d::getX).toArray(),
+            Arrays.stream(moduleTranslations).mapToDouble(Translation2d::getY).toArray(), secondOrder);
+    }
+
+    /**
+     * Creates a new first-order integrator.
+     * @param moduleTranslations The position of each module relative to the robot center.
+     */
+    public SwerveOdometryIntegrator(Translation2d[] moduleTranslations) {
+        this(moduleTranslations, false);
+    }
+
+    /** Returns if timestamped samples are integrated to second order. */
+    public boolean isSecondOrder() {
+        return secondOrder;
+    }
+
+    /**
+     * Resets the integrated pose. The next call to {@link #update} is treated as the first sample, so it only sets the
+     * reference positions.
+     */
+    public void reset(double x, double y, double theta) {
+        this.x = x;
+        this.y = y;
+        this.theta = theta;
+        Arrays.fill(needsReference, true);
+        hasGyroReference = false;
+        lastTwist.set(0.0, 0.0, 0.0);
+        clearTiming();
+    }
+
+    /** Forgets the sample timing, so the next samples are integrated to first order until it's known again. */
+    private void clearTiming() {
+        Arrays.fill(hasLastModuleSpeed, false);
+        hasLastChassisSpeed = false;
+        lastTimestamp = Double.NaN;
+        lastDt = Double.NaN;
+    }
+
+    /**
+     * Moves the integrated pose without changing the module or gyro references, so the next update continues from the
+     * new pose.
+     */
+    public void setPose(double x, double y, double theta) {
+        this.x = x;
+        this.y = y;
+        this.theta = theta;
+    }
+
+    /**
+     * Integrates a new untimed sample from mutable module positions. This is always integrated to first order.
+     * @param positions The position of each module.
+     * @param moduleValid If each module's distance and angle were read successfully for this sample.
+     * @param hasGyro If the gyro yaw is valid. If not, the rotation is estimated from the module deltas.
+     * @param gyroYawRad The gyro yaw in radians, counterclockwise positive.
+     */
+    public void update(MutableSwerveModulePosition[] positions, boolean[] moduleValid, boolean hasGyro,
+        double gyroYawRad) {
+        update(Double.NaN, positions, moduleValid, hasGyro, gyroYawRad);
+    }
+
+    /**
+     * Integrates a new sample from mutable module positions.
+     * @param timestampSeconds The time the sample was taken, in seconds.
+     * @param positions The position of each module.
+     * @param moduleValid If each module's distance and angle were read successfully for this sample.
+     * @param hasGyro If the gyro yaw is valid. If not, the rotation is estimated from the module deltas.
+     * @param gyroYawRad The gyro yaw in radians, counterclockwise positive.
+     */
+    public void update(double timestampSeconds, MutableSwerveModulePosition[] positions, boolean[] moduleValid,
+        boolean hasGyro, double gyroYawRad) {
+        for(int i = 0; i < moduleCount; i++) {
+            sampleDistancesMeters[i] = positions[i].distanceMeters;
+            sampleAnglesRad[i] = positions[i].angleRad;
+        }
+        update(timestampSeconds, sampleDistancesMeters, sampleAnglesRad, moduleValid, hasGyro, gyroYawRad);
+    }
+
+    /**
+     * Integrates a new untimed sample. This is always integrated to first order.
+     * @param distancesMeters The total distance driven by each module, in meters.
+     * @param anglesRad The angle of each module, in radians.
+     * @param moduleValid If each module's distance and angle were read successfully for this sample.
+     * @param hasGyro If the gyro yaw is valid. If not, the rotation is estimated from the module deltas.
+     * @param gyroYawRad The gyro yaw in radians, counterclockwise positive.
+     */
+    public void update(double[] distancesMeters, double[] anglesRad, boolean[] moduleValid, boolean hasGyro,
+        double gyroYawRad) {
+        update(Double.NaN, distancesMeters, anglesRad, moduleValid, hasGyro, gyroYawRad);
+    }
+
+    /**
+     * Integrates a new sample.
+     * @param timestampSeconds The time the sample was taken, in seconds. Second-order integration needs the time
+     *            between samples; if this is NaN or not after the previous sample, the sample is integrated to first
+     *            order.
+     * @param distancesMeters The total distance driven by each module, in meters.
+     * @param anglesRad The angle of each module, in radians.
+     * @param moduleValid If each module's distance and angle were read successfully for this sample.
+     * @param hasGyro If the gyro yaw is valid. If not, the rotation is estimated from the module deltas.
+     * @param gyroYawRad The gyro yaw in radians, counterclockwise positive.
+     */
+    public void update(double timestampSeconds, double[] distancesMeters, double[] anglesRad, boolean[] moduleValid,
+        boolean hasGyro, double gyroYawRad) {
+        double dt = Double.NaN;
+        if(secondOrder) {
+            if(Double.isNaN(timestampSeconds)) {
+                clearTiming();
+            } else {
+                if(timestampSeconds > lastTimestamp) dt = timestampSeconds - lastTimestamp;
+                lastTimestamp = timestampSeconds;
+            }
+        }
+        // Acceleration is only known if both this sample and the last one have a known duration
+        boolean timed = !Double.isNaN(dt);
+        boolean accelerationKnown = timed && !Double.isNaN(lastDt);
+
+        int usableModules = 0;
+        for(int i = 0; i < moduleCount; i++) {
+            weights[i] = 0.0;
+            moduleDeltaX[i] = 0.0;
+            moduleDeltaY[i] = 0.0;
+            if(!moduleValid[i]) {
+                needsReference[i] = true;
+                hasLastModuleSpeed[i] = false;
+                continue;
+            }
+
+            double delta = distancesMeters[i] - lastDistancesMeters[i];
+            lastDistancesMeters[i] = distancesMeters[i];
+            double lastAngle = lastAnglesRad[i];
+            lastAnglesRad[i] = anglesRad[i];
+            if(needsReference[i]) {
+                needsReference[i] = false;
+                continue;
+            }
+
+            double sweep = Math.IEEEremainder(anglesRad[i] - lastAngle, 2 * Math.PI);
+            if(timed && Math.abs(sweep) <= MAX_MODULE_SWEEP_RAD) {
+                double speed = delta / dt;
+                double acceleration = accelerationKnown && hasLastModuleSpeed[i]
+                    ? accelerationWeight(lastModuleSpeeds[i], speed, dt)
+                    : 0.0;
+                lastModuleSpeeds[i] = speed;
+                hasLastModuleSpeed[i] = true;
+
+                // Simpson's rule over the sample with the angle sweeping linearly
+                double midAngle = lastAngle + sweep / 2;
+                moduleDeltaX[i] = delta * ((1 - acceleration) * Math.cos(lastAngle) + 4 * Math.cos(midAngle)
+                    + (1 + acceleration) * Math.cos(anglesRad[i])) / 6;
+                moduleDeltaY[i] = delta * ((1 - acceleration) * Math.sin(lastAngle) + 4 * Math.sin(midAngle)
+                    + (1 + acceleration) * Math.sin(anglesRad[i])) / 6;
+            } else {
+                hasLastModuleSpeed[i] = false;
+                moduleDeltaX[i] = delta * Math.cos(anglesRad[i]);
+                moduleDeltaY[i] = delta * Math.sin(anglesRad[i]);
+            }
+            weights[i] = 1.0;
+            usableModules++;
+        }
+
+        double gyroDtheta = hasGyro && hasGyroReference
+            ? Math.IEEEremainder(gyroYawRad - lastGyroYawRad, 2 * Math.PI)
+            : Double.NaN;
+
+        Arrays.fill(slipping, false);
+        slippingCount = 0;
+        // Two modules at different positions are the minimum to solve for a full twist
+        if(usableModules >= 2) {
+            solveConsistentTwist(gyroDtheta, usableModules);
+        } else {
+            Arrays.fill(twist, 0.0);
+            hasRotationSinceGyroYaw = false;
+        }
+
+        double dtheta = twist[2];
+        if(hasGyro) {
+            dtheta = hasGyroReference ? gyroDtheta : 0.0;
+            lastGyroYawRad = gyroYawRad;
+            hasGyroReference = true;
+        } else {
+            // The rotation while the gyro is unavailable comes from the modules, so the gyro needs a new reference
+            hasGyroReference = false;
+        }
+
+        lastTwist.set(twist[0], twist[1], dtheta);
+        if(timed) {
+            double speed = Math.hypot(twist[0], twist[1]) / dt;
+            double acceleration = accelerationKnown && hasLastChassisSpeed
+                ? accelerationWeight(lastChassisSpeed, speed, dt)
+                : 0.0;
+            lastChassisSpeed = speed;
+            hasLastChassisSpeed = true;
+            applyTwistSecondOrder(twist[0], twist[1], dtheta, acceleration);
+        } else {
+            hasLastChassisSpeed = false;
+            applyTwist(twist[0], twist[1], dtheta);
+        }
+        if(secondOrder) lastDt = dt;
+    }
+
+    /**
+     * Solves for the twist from the weighted module displacements, dropping modules that disagree with the rest and
+     * flagging samples where the modules disagree with the gyro.
+     * @param gyroDtheta The rotation measured by the gyro over the sample, or NaN if it isn't available. When it is,
+     *            the twist's rotation is fixed to it and only the translation is solved.
+     * @param usableModules The number of modules with a positive weight.
+     */
+    private void solveConsistentTwist(double gyroDtheta, int usableModules) {
+        // Drop the module that disagrees the most with the others until they all agree. Two modules can't tell which
+        // of them is wrong, so at least two are always kept.
+        while(usableModules >= 3) {
+            double threshold = getSlipThreshold();
+            int worstModule = -1;
+            double worstResidual = threshold;
+            for(int i = 0; i < moduleCount; i++) {
+                double weight = weights[i];
+                if(weight <= 0.0) continue;
+
+                // Compare against the other modules so a bad module can't pull the prediction toward itself
+                weights[i] = 0.0;
+                solveTwist(moduleDeltaX, moduleDeltaY, weights, otherModulesTwist);
+                weights[i] = weight;
+                double residual = Math.hypot(
+                    moduleDeltaX[i] - (otherModulesTwist[0] - otherModulesTwist[2] * moduleY[i]),
+                    moduleDeltaY[i] - (otherModulesTwist[1] + otherModulesTwist[2] * moduleX[i]));
+                if(residual > worstResidual) {
+                    worstResidual = residual;
+                    worstModule = i;
+                }
+            }
+            if(worstModule < 0) break;
+
+            weights[worstModule] = 0.0;
+            slipping[worstModule] = true;
+            slippingCount++;
+            usableModules--;
+        }
+
+        solveTwist(moduleDeltaX, moduleDeltaY, weights, twist);
+        if(Double.isNaN(gyroDtheta)) {
+            hasRotationSinceGyroYaw = false;
+            return;
+        }
+
+        // The gyro repeats its last yaw until it has a new sample, so the modules' rotation is accumulated until then.
+        // A yaw identical to the last one is treated as a repeat.
+        moduleDthetaSinceGyroYaw += twist[2];
+        displacementSinceGyroYaw += getMeanDisplacement();
+        if(gyroDtheta == 0.0 && repeatedGyroYaws < MAX_REPEATED_GYRO_YAWS) {
+            repeatedGyroYaws++;
+        } else {
+            // If the modules agree with each other but not the gyro, the whole chassis slid, so no module can be
+            // blamed. Without a full interval of module rotation, this only starts the next one.
+            if(hasRotationSinceGyroYaw && isChassisSliding(moduleDthetaSinceGyroYaw - gyroDtheta)) {
+                for(int i = 0; i < moduleCount; i++) {
+                    if(weights[i] > 0.0) {
+                        slipping[i] = true;
+                        slippingCount++;
+                    }
+                }
+            }
+            moduleDthetaSinceGyroYaw = 0.0;
+            displacementSinceGyroYaw = 0.0;
+            hasRotationSinceGyroYaw = true;
+            repeatedGyroYaws = 0;
+        }
+        solveTranslation(gyroDtheta, twist);
+    }
+
+    /** Returns how far a module can be from its predicted displacement before it's considered slipping, in meters. */
+    private double getSlipThreshold() {
+        return SLIP_RESIDUAL_METERS + SLIP_RESIDUAL_FRACTION * getMeanDisplacement();
+    }
+
+    /** Returns the weighted mean displacement of the modules in the sample, in meters. */
+    private double getMeanDisplacement() {
+        double totalWeight = 0.0;
+        double meanDisplacement = 0.0;
+        for(int i = 0; i < moduleCount; i++) {
+            totalWeight += weights[i];
+            meanDisplacement += weights[i] * Math.hypot(moduleDeltaX[i], moduleDeltaY[i]);
+        }
+        return meanDisplacement / totalWeight;
+    }
+
+    /**
+     * Returns if the modules' rotation disagrees with the gyro by more than the slip threshold over the interval since
+     * the gyro's last new yaw, measured at the modules' mean radius.
+     * @param rotationErrorRad The modules' rotation minus the gyro's rotation over the interval.
+     */
+    private boolean isChassisSliding(double rotationErrorRad) {
+        double totalWeight = 0.0;
+        double meanRadius = 0.0;
+        for(int i = 0; i < moduleCount; i++) {
+            totalWeight += weights[i];
+            meanRadius += weights[i] * Math.hypot(moduleX[i], moduleY[i]);
+        }
+        meanRadius /= totalWeight;
+        return Math.abs(rotationErrorRad) * meanRadius > SLIP_RESIDUAL_METERS
+            + SLIP_RESIDUAL_FRACTION * displacementSinceGyroYaw;
+    }
+
+    /**
+     * Solves for the translation of the twist with its rotation fixed, in the weighted least-squares sense.
+     * @param out Receives the twist as [dx, dy, dtheta].
+     */
+    private void solveTranslation(double dtheta, double[] out) {
+        double totalWeight = 0.0, sumX = 0.0, sumY = 0.0;
+        for(int i = 0; i < moduleCount; i++) {
+            double w = weights[i];
+            totalWeight += w;
+            sumX += w * (moduleDeltaX[i] + dtheta * moduleY[i]);
+            sumY += w * (moduleDeltaY[i] - dtheta * moduleX[i]);
+        }
+        out[0] = sumX / totalWeight;
+        out[1] = sumY / totalWeight;
+        out[2] = dtheta;
+    }
+
+    /**
+     * Estimates how the speed changes over a sample, assuming constant acceleration across it and the previous one.
+     * @param lastSpeed The average speed over the previous sample.
+     * @param speed The average speed over this sample.
+     * @param dt The duration of this sample, in seconds.
+     * @return The speed change from the middle of the sample to its end, relative to the average speed and clamped to
+     *         [-1, 1]. The speed at the start of the sample is {@code speed * (1 - result)} and at the end is
+     *         {@code speed * (1 + result)}.
+     */
+    private double accelerationWeight(double lastSpeed, double speed, double dt) {
+        if(Math.abs(speed) < MIN_ACCELERATION_SPEED) return 0.0;
+        // The sample midpoints are (dt + lastDt) / 2 apart
+        double acceleration = (speed - lastSpeed) / (0.5 * (dt + lastDt));
+        return MathUtil.clamp(acceleration * dt / (2 * speed), -1.0, 1.0);
+    }
+
+    /**
+     * Solves for the robot-relative chassis twist that best explains the given module displacements in the weighted
+     * least-squares sense.
+     * @param deltaX The robot-relative x displacement of each module, in meters.
+     * @param deltaY The robot-relative y displacement of each module, in meters.
+     * @param weights The weight of each module in the solve. At least two modules at different positions must have a
+     *            positive weight.
+     * @param out Receives the twist as [dx, dy, dtheta].
+     */
+    public void solveTwist(double[] deltaX, double[] deltaY, double[] weights, double[] out) {
+        // Each module gives two equations: deltaX = dx - dtheta * moduleY and deltaY = dy + dtheta * moduleX.
+        // Solve the normal equations (A^T W A) twist = A^T W b directly.
+        double n = 0.0, sumX = 0.0, sumY = 0.0, sumSquares = 0.0;
+        double bx = 0.0, by = 0.0, btheta = 0.0;
+        for(int i = 0; i < moduleCount; i++) {
+            double w = weights[i];
+            n += w;
+            sumX += w * moduleX[i];
+            sumY += w * moduleY[i];
+            sumSquares += w * (moduleX[i] * moduleX[i] + moduleY[i] * moduleY[i]);
+            bx += w * deltaX[i];
+            by += w * deltaY[i];
+            btheta += w * (-moduleY[i] * deltaX[i] + moduleX[i] * deltaY[i]);
+        }
+
+        // A^T W A = [[n, 0, -sumY], [0, n, sumX], [-sumY, sumX, sumSquares]], where n is the total weight
+        double schur = sumSquares - (sumY * sumY + sumX * sumX) / n;
+        double dtheta = (btheta + (sumY * bx - sumX * by) / n) / schur;
+        out[0] = (bx + sumY * dtheta) / n;
+        out[1] = (by - sumX * dtheta) / n;
+        out[2] = dtheta;
+    }
+
+    /** Integrates a robot-relative twist along a constant-curvature arc. */
+    private void applyTwist(double dx, double dy, double dtheta) {
+        double s, c;
+        if(Math.abs(dtheta) < 1E-9) {
+            s = 1.0 - dtheta * dtheta / 6.0;
+            c = 0.5 * dtheta;
+        } else {
+            s = Math.sin(dtheta) / dtheta;
+            c = (1 - Math.cos(dtheta)) / dtheta;
+        }
+        double localX = dx * s - dy * c;
+        double localY = dx * c + dy * s;
+
+        double cos = Math.cos(theta);
+        double sin = Math.sin(theta);
+        x += localX * cos - localY * sin;
+        y += localX * sin + localY * cos;
+        theta = Math.IEEEremainder(theta + dtheta, 2 * Math.PI);
+    }
+
+    /**
+     * Integrates a robot-relative twist with Simpson's rule, assuming the heading sweeps linearly over the sample while
+     * the speed changes linearly.
+     * @param acceleration The speed change over the sample, as returned by {@link #accelerationWeight}.
+     */
+    private void applyTwistSecondOrder(double dx, double dy, double dtheta, double acceleration) {
+        // Average of the start, middle, and end headings relative to the start, weighted by the speed at each
+        double midCos = Math.cos(dtheta / 2);
+        double midSin = Math.sin(dtheta / 2);
+        double endCos = Math.cos(dtheta);
+        double endSin = Math.sin(dtheta);
+        double c = ((1 - acceleration) + 4 * midCos + (1 + acceleration) * endCos) / 6;
+        double s = (4 * midSin + (1 + acceleration) * endSin) / 6;
+        double localX = dx * c - dy * s;
+        double localY = dx * s + dy * c;
+
+        double cos = Math.cos(theta);
+        double sin = Math.sin(theta);
+        x += localX * cos - localY * sin;
+        y += localX * sin + localY * cos;
+        theta = Math.IEEEremainder(theta + dtheta, 2 * Math.PI);
+    }
+
+    /** Returns the integrated x position in meters. */
+    public double getX() {
+        return x;
+    }
+
+    /** Returns the integrated y position in meters. */
+    public double getY() {
+        return y;
+    }
+
+    /** Returns the integrated heading in radians, wrapped to [-pi, pi]. */
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * Gets the integrated pose.
+     * @param out Receives the pose.
+     */
+    public void getPose(MutablePose2d out) {
+        out.set(x, y, theta);
+    }
+
+    /**
+     * Gets which modules were flagged as slipping in the last update. A slipping module was either left out of the
+     * solve, or every module disagreed and the whole sample was flagged.
+     * @param out Receives if each module was slipping. Must have one entry per module.
+     * @return The number of slipping modules.
+     */
+    public int getSlippingModules(boolean[] out) {
+        System.arraycopy(slipping, 0, out, 0, moduleCount);
+        return slippingCount;
+    }
+
+    /** Returns the number of modules flagged as slipping in the last update. */
+    public int getSlippingModuleCount() {
+        return slippingCount;
+    }
+
+    /**
+     * Gets the robot-relative twist applied by the last update.
+     * @param out Receives the twist.
+     */
+    public void getLastTwist(MutableTwist2d out) {
+        out.set(lastTwist.dx, lastTwist.dy, lastTwist.dtheta);
+    }
+}
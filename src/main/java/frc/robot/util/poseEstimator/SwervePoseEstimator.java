@@ -0,0 +1,100 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import frc.robot.util.geometry.MutablePose2d;
+import frc.robot.util.geometry.MutableSwerveModulePosition;
+import java.util.Optional;
+
+/**
+ * A swerve drive pose estimator that fuses odometry with latency-compensated vision measurements. This is the API
+ * {@link frc.robot.RobotState RobotState} uses, so estimator implementations can be swapped without changing anything
+ * else.
+ */
+public interface SwervePoseEstimator {
+    /** Returns the current estimated field pose. */
+    public Pose2d getEstimatedPosition();
+
+    /**
+     * Returns the estimated field pose at a timestamp, including vision compensation.
+     * @return The pose, or empty if there are no odometry samples yet.
+     */
+    public Optional<Pose2d> sampleAt(double timestampSeconds);
+
+    /**
+     * Samples the estimated field pose at a timestamp without allocating.
+     * @param out Receives the pose.
+     * @return False if there are no odometry samples yet, in which case the output isn't changed.
+     */
+    public boolean sampleAt(double timestampSeconds, MutablePose2d out);
+
+    /**
+     * Samples the covariance of the estimate at a timestamp without allocating, if the estimator tracks it.
+     * @param out Receives the 3x3 covariance of [x, y, heading], row-major.
+     * @return False if the estimator doesn't track its covariance or has no odometry samples yet, in which case the
+     *         output isn't changed.
+     */
+    public default boolean sampleCovarianceAt(double timestampSeconds, double[] out) {
+        return false;
+    }
+
+    /**
+     * Returns the current odometry-only pose. This drifts over time and should only be used for delta tracking.
+     */
+    public Pose2d getOdometryPose();
+
+    /** Returns the history of odometry-only poses, which can be sampled for delta tracking. */
+    public PoseHistoryBuffer getOdometryPoseBuffer();
+
+    /**
+     * Resets the robot's position on the field.
+     * @param gyroAngle The angle reported by the gyroscope.
+     * @param wheelPositions The current encoder readings.
+     * @param poseMeters The position on the field that the robot is at.
+     */
+    public void resetPosition(Rotation2d gyroAngle, SwerveModulePosition[] wheelPositions, Pose2d poseMeters);
+
+    /**
+     * Adds a vision measurement.
+     * @param visionRobotPoseMeters The pose of the robot as measured by vision.
+     * @param timestampSeconds The timestamp of the measurement, in the FPGA time base.
+     * @param visionMeasurementStdDevs Standard deviations of the measurement (x and y in meters, heading in radians).
+     */
+    public void addVisionMeasurement(Pose2d visionRobotPoseMeters, double timestampSeconds,
+        Matrix<N3, N1> visionMeasurementStdDevs);
+
+    /** Adds every vision measurement in a batch, applying them in timestamp order. */
+    public void addVisionMeasurements(VisionMeasurementBatch batch);
+
+    /**
+     * Updates the estimator with wheel encoder and gyro information.
+     * @param currentTimeSeconds The time the measurements were sampled at, in seconds.
+     * @param gyroAngle The gyro angle.
+     * @param wheelPositions The encoder readings.
+     * @return The estimated pose of the robot in meters.
+     */
+    public Pose2d updateWithTime(double currentTimeSeconds, Rotation2d gyroAngle,
+        SwerveModulePosition[] wheelPositions);
+
+    /**
+     * Updates the estimator with wheel encoder and gyro information without allocating. Read the new estimate with
+     * {@link #getEstimatedPosition()} or {@link #sampleAt(double, MutablePose2d)}.
+     * @param currentTimeSeconds The time the measurements were sampled at, in seconds.
+     * @param wheelPositions The encoder readings.
+     * @param hasGyro If the gyro angle is valid. If not, the rotation is estimated from the wheel positions.
+     * @param gyroYawRad The gyro angle in radians, counterclockwise positive.
+     */
+    public void updateWithTime(double currentTimeSeconds, MutableSwerveModulePosition[] wheelPositions,
+        boolean hasGyro, double gyroYawRad);
+
+    /**
+     * Gets which modules the odometry flagged as slipping in the last update. See {@link SwerveOdometryIntegrator}.
+     * @param out Receives if each module was slipping. Must have one entry per module.
+     * @return The number of slipping modules.
+     */
+    public int getSlippingModules(boolean[] out);
+}
@@ -0,0 +1,128 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import java.util.Arrays;
+
+/**
+ * A reusable batch of vision measurements, stored in parallel primitive arrays. A subsystem fills a batch with every
+ * measurement from one loop and hands it to {@link OdometryPoseEstimator#addVisionMeasurements} at once, so the
+ * estimator can apply them in timestamp order in a single pass.
+ *
+ * <p>
+ * The batch grows if it runs out of space, so size it for a typical loop to avoid reallocating.
+ */
+public class VisionMeasurementBatch {
+    private double[] timestamps;
+    private double[] xs;
+    private double[] ys;
+    private double[] thetas;
+    private double[] linearStdDevs;
+    private double[] angularStdDevs;
+    /** Measurement indices in timestamp order. Only valid after {@link #sortByTimestamp()}. */
+    private int[] order;
+    private int size = 0;
+
+    /**
+     * Creates a new batch.
+     * @param initialCapacity The number of measurements the batch can hold before growing.
+     */
+    public VisionMeasurementBatch(int initialCapacity) {
+        timestamps = new double[initialCapacity];
+        xs = new double[initialCapacity];
+        ys = new double[initialCapacity];
+        thetas = new double[initialCapacity];
+        linearStdDevs = new double[initialCapacity];
+        angularStdDevs = new double[initialCapacity];
+        order = new int[initialCapacity];
+    }
+
+    /** Removes every measurement from the batch. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** Returns the number of measurements in the batch. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a measurement to the batch.
+     * @param robotPose The robot pose measured by vision.
+     * @param timestampSeconds The timestamp of the measurement, in the FPGA time base.
+     * @param linearStdDev The standard deviation of the x and y position, in meters.
+     * @param angularStdDev The standard deviation of the heading, in radians.
+     */
+    public void add(Pose2d robotPose, double timestampSeconds, double linearStdDev, double angularStdDev) {
+        if(size == timestamps.length) grow();
+
+        timestamps[size] = timestampSeconds;
+        xs[size] = robotPose.getX();
+        ys[size] = robotPose.getY();
+        thetas[size] = robotPose.getRotation().getRadians();
+        linearStdDevs[size] = linearStdDev;
+        angularStdDevs[size] = angularStdDev;
+        order[size] = size;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = Math.max(1, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        thetas = Arrays.copyOf(thetas, capacity);
+        linearStdDevs = Arrays.copyOf(linearStdDevs, capacity);
+        angularStdDevs = Arrays.copyOf(angularStdDevs, capacity);
+        order = Arrays.copyOf(order, capacity);
+    }
+
+    /**
+     * Sorts the measurements by timestamp, oldest first. This only reorders the indices used by the getters, so it
+     * doesn't allocate.
+     */
+    public void sortByTimestamp() {
+        // Insertion sort; batches are small and usually nearly sorted already
+        for(int i = 0; i < size; i++) order[i] = i;
+        for(int i = 1; i < size; i++) {
+            int index = order[i];
+            double timestamp = timestamps[index];
+            int j = i - 1;
+            while(j >= 0 && timestamps[order[j]] > timestamp) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    /** Returns the timestamp of the measurement at a position in the batch. */
+    public double getTimestamp(int position) {
+        return timestamps[order[position]];
+    }
+
+    /** Returns the measured x position of the measurement at a position in the batch. */
+    public double getX(int position) {
+        return xs[order[position]];
+    }
+
+    /** Returns the measured y position of the measurement at a position in the batch. */
+    public double getY(int position) {
+        return ys[order[position]];
+    }
+
+    /** Returns the measured heading of the measurement at a position in the batch. */
+    public double getTheta(int position) {
+        return thetas[order[position]];
+    }
+
+    /** Returns the linear standard deviation of the measurement at a position in the batch. */
+    public double getLinearStdDev(int position) {
+        return linearStdDevs[order[position]];
+    }
+
+    /** Returns the angular standard deviation of the measurement at a position in the batch. */
+    public double getAngularStdDev(int position) {
+        return angularStdDevs[order[position]];
+    }
+}
@@ -0,0 +1,165 @@
+package frc.robot.util.poseEstimator;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import frc.robot.util.geometry.MutablePose2d;
+
+/**
+ * A bounded, time-ordered history of vision updates for {@link OdometryPoseEstimator}, stored in a circular buffer of
+ * parallel primitive arrays. Each update records the vision-compensated pose estimate and the odometry-only pose at the
+ * time of the measurement, which together describe how odometry poses are corrected from that point on.
+ *
+ * <p>
+ * This replaces a {@code TreeMap<Double, VisionUpdate>}: adding an update doesn't box the timestamp or allocate map
+ * entries, and lookups use a binary search. Updates are always appended in time order because adding an update
+ * discards every update at or after its timestamp. If the history fills up, the oldest update is overwritten.
+ *
+ * <p>
+ * Positions passed to and returned from this class count from the oldest update, which is at position 0.
+ */
+public class VisionUpdateHistory {
+    private final double[] timestamps;
+    private final double[] visionX;
+    private final double[] visionY;
+    private final double[] visionTheta;
+    private final double[] odometryX;
+    private final double[] odometryY;
+    private final double[] odometryTheta;
+
+    /** The index of the oldest update. */
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Creates a new history.
+     * @param capacity The maximum number of updates to hold. This should cover the odometry buffer duration at the
+     *            rate vision measurements are added.
+     */
+    public VisionUpdateHistory(int capacity) {
+        timestamps = new double[capacity];
+        visionX = new double[capacity];
+        visionY = new double[capacity];
+        visionTheta = new double[capacity];
+        odometryX = new double[capacity];
+        odometryY = new double[capacity];
+        odometryTheta = new double[capacity];
+    }
+
+    /** Converts a position in the history to an array index. */
+    private int index(int position) {
+        int index = head + position;
+        return index >= timestamps.length ? index - timestamps.length : index;
+    }
+
+    /** Returns if the history has no updates. */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the number of updates in the history. */
+    public int size() {
+        return size;
+    }
+
+    /** Removes all updates. */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /** Returns the timestamp of the oldest update. The history must not be empty. */
+    public double getOldestTimestamp() {
+        return timestamps[head];
+    }
+
+    /**
+     * Returns the position of the newest update at or before the timestamp, or -1 if every update is after it.
+     */
+    public int floorPosition(double timestamp) {
+        int low = 0;
+        int high = size - 1;
+        int result = -1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(timestamps[index(middle)] <= timestamp) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /** Removes every update before the given position, making it the oldest update. */
+    public void removeBefore(int position) {
+        if(position <= 0) return;
+        position = Math.min(position, size);
+        head = index(position);
+        size -= position;
+    }
+
+    /**
+     * Adds an update. Every update at or after the timestamp is discarded first, so the new update is always the
+     * newest.
+     * @param timestamp The timestamp of the vision measurement.
+     * @param visionPose The vision-compensated pose estimate at the timestamp.
+     * @param odometryPose The odometry-only pose at the timestamp.
+     */
+    public void add(double timestamp, Pose2d visionPose, Pose2d odometryPose) {
+        add(timestamp, visionPose.getX(), visionPose.getY(), visionPose.getRotation().getRadians(),
+            odometryPose.getX(), odometryPose.getY(), odometryPose.getRotation().getRadians());
+    }
+
+    /**
+     * Adds an update from primitive poses. Every update at or after the timestamp is discarded first, so the new update
+     * is always the newest.
+     */
+    public void add(double timestamp, double visionPoseX, double visionPoseY, double visionPoseTheta,
+        double odometryPoseX, double odometryPoseY, double odometryPoseTheta) {
+        // Remove later updates
+        size = floorPosition(Math.nextDown(timestamp)) + 1;
+
+        if(size == timestamps.length) removeBefore(1);
+
+        int index = index(size);
+        timestamps[index] = timestamp;
+        visionX[index] = visionPoseX;
+        visionY[index] = visionPoseY;
+        visionTheta[index] = visionPoseTheta;
+        odometryX[index] = odometryPoseX;
+        odometryY[index] = odometryPoseY;
+        odometryTheta[index] = odometryPoseTheta;
+        size++;
+    }
+
+    /**
+     * Returns the vision-compensated version of an odometry pose using the update at a position. Specifically, changes
+     * the pose from being relative to the update's odometry pose to being relative to its vision pose.
+     * @param out Receives the compensated pose. Can be the same object as the odometry pose.
+     */
+    public void compensate(int position, double x, double y, double theta, MutablePose2d out) {
+        int index = index(position);
+
+        // The pose relative to the odometry pose at the update
+        double cos = Math.cos(odometryTheta[index]);
+        double sin = Math.sin(odometryTheta[index]);
+        double dx = x - odometryX[index];
+        double dy = y - odometryY[index];
+        double relativeX = dx * cos + dy * sin;
+        double relativeY = -dx * sin + dy * cos;
+        double relativeTheta = theta - odometryTheta[index];
+
+        // The same transform applied to the vision pose
+        cos = Math.cos(visionTheta[index]);
+        sin = Math.sin(visionTheta[index]);
+        out.set(visionX[index] + relativeX * cos - relativeY * sin, visionY[index] + relativeX * sin + relativeY * cos,
+            Math.IEEEremainder(visionTheta[index] + relativeTheta, 2 * Math.PI));
+    }
+
+    /** Returns the vision-compensated version of an odometry pose using the update at a position. */
+    public Pose2d compensate(int position, Pose2d pose) {
+        MutablePose2d out = new MutablePose2d();
+        compensate(position, pose.getX(), pose.getY(), pose.getRotation().getRadians(), out);
+        return out.toPose2d();
+    }
+}
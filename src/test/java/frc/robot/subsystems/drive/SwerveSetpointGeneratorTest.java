@@ -0,0 +1,207 @@
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.system.plant.DCMotor;
+import frc.robot.util.AllocationCounter;
+import org.junit.jupiter.api.Test;
+
+class SwerveSetpointGeneratorTest {
+    private static final Translation2d[] MODULE_TRANSLATIONS = new Translation2d[] {
+        new Translation2d(0.27, 0.27), new Translation2d(0.27, -0.27), new Translation2d(-0.27, 0.27),
+        new Translation2d(-0.27, -0.27)
+    };
+    private static final double MAX_MODULE_SPEED = 4.5;
+    private static final double MAX_STEER_VELOCITY = 20.0;
+    private static final double WHEEL_COF = 1.2;
+    private static final double DT = 0.02;
+    /** The largest velocity change friction allows a module in one step, which bounds every force limit. */
+    private static final double MAX_VELOCITY_CHANGE = WHEEL_COF * 9.81 * DT;
+    private static final double EPSILON = 1e-6;
+
+    private static final int WARMUP_CALLS = 1_000;
+    private static final int MEASURED_CALLS = 1_000;
+
+    private static SwerveSetpointGenerator createGenerator() {
+        return new SwerveSetpointGenerator(MODULE_TRANSLATIONS, MAX_MODULE_SPEED, MAX_STEER_VELOCITY,
+            DCMotor.getNeoVortex(1), 6.75, 40.0, 0.05, 50.0, WHEEL_COF);
+    }
+
+    @Test
+    void accelerationIsLimited() {
+        var generator = createGenerator();
+        var modules = new ModuleTracker(generator);
+        for(int i = 0; i < 100; i++) {
+            // Full speed one way, then the other, while rotating
+            double direction = i < 50 ? 1.0 : -1.0;
+            generator.generate(direction * 4.0, 0.0, direction * 2.0, DT);
+            modules.update();
+            assertTrue(modules.maxVelocityChange <= MAX_VELOCITY_CHANGE + EPSILON,
+                "Module velocity changed by " + modules.maxVelocityChange + " m/s in step " + i);
+        }
+    }
+
+    @Test
+    void steeringIsLimited() {
+        var generator = createGenerator();
+        var modules = new ModuleTracker(generator);
+        for(int i = 0; i < 150; i++) {
+            // Drive forward, then sideways, then spin in place
+            if(i < 50) generator.generate(2.0, 0.0, 0.0, DT);
+            else if(i < 100) generator.generate(0.0, 2.0, 0.0, DT);
+            else generator.generate(0.0, 0.0, 4.0, DT);
+            modules.update();
+            assertTrue(modules.maxSteer <= MAX_STEER_VELOCITY * DT + EPSILON,
+                "Module steered " + modules.maxSteer + " rad in step " + i);
+        }
+    }
+
+    @Test
+    void modulesAgreeKinematically() {
+        var generator = createGenerator();
+        double[] chassisSpeeds = new double[3];
+        for(int i = 0; i < 100; i++) {
+            generator.generate(i < 50 ? 3.0 : -1.0, i < 50 ? 1.0 : 2.0, i < 50 ? 2.0 : -3.0, DT);
+            generator.getChassisSpeeds(chassisSpeeds);
+            for(int module = 0; module < MODULE_TRANSLATIONS.length; module++) {
+                double speed = generator.getModuleSpeed(module);
+                double angle = generator.getModuleAngle(module);
+                var translation = MODULE_TRANSLATIONS[module];
+                assertEquals(chassisSpeeds[0] - chassisSpeeds[2] * translation.getY(), speed * Math.cos(angle), 1e-3);
+                assertEquals(chassisSpeeds[1] + chassisSpeeds[2] * translation.getX(), speed * Math.sin(angle), 1e-3);
+            }
+        }
+    }
+
+    @Test
+    void reachesFeasibleRequest() {
+        var generator = createGenerator();
+        for(int i = 0; i < 100; i++) generator.generate(2.0, -1.0, 1.0, DT);
+
+        double[] chassisSpeeds = new double[3];
+        generator.getChassisSpeeds(chassisSpeeds);
+        assertEquals(2.0, chassisSpeeds[0], EPSILON);
+        assertEquals(-1.0, chassisSpeeds[1], EPSILON);
+        assertEquals(1.0, chassisSpeeds[2], EPSILON);
+        assertEquals(1.0, generator.getLastStepFraction());
+    }
+
+    @Test
+    void requestOverMaxSpeedIsScaledDown() {
+        var generator = createGenerator();
+        for(int i = 0; i < 200; i++) generator.generate(10.0, 0.0, 5.0, DT);
+
+        double maxSpeed = 0.0;
+        for(int module = 0; module < MODULE_TRANSLATIONS.length; module++) {
+            maxSpeed = Math.max(maxSpeed, generator.getModuleSpeed(module));
+        }
+        assertEquals(MAX_MODULE_SPEED, maxSpeed, EPSILON);
+
+        // The direction of the request is kept
+        double[] chassisSpeeds = new double[3];
+        generator.getChassisSpeeds(chassisSpeeds);
+        assertEquals(10.0 / 5.0, chassisSpeeds[0] / chassisSpeeds[2], EPSILON);
+    }
+
+    @Test
+    void stopHoldsModuleAngles() {
+        var generator = createGenerator();
+        for(int i = 0; i < 50; i++) generator.generate(0.0, 2.0, 0.0, DT);
+        for(int i = 0; i < 50; i++) generator.generate(0.0, 0.0, 0.0, DT);
+
+        for(int module = 0; module < MODULE_TRANSLATIONS.length; module++) {
+            assertEquals(0.0, generator.getModuleSpeed(module));
+            assertEquals(Math.PI / 2, generator.getModuleAngle(module), EPSILON);
+        }
+    }
+
+    @Test
+    void parkHoldsXUntilMoving() {
+        var generator = createGenerator();
+        double[] xAngles = new double[MODULE_TRANSLATIONS.length];
+        for(int module = 0; module < xAngles.length; module++) {
+            xAngles[module] = MODULE_TRANSLATIONS[module].getAngle().getRadians();
+        }
+
+        // Parking while moving waits for the modules to stop
+        for(int i = 0; i < 50; i++) generator.generate(2.0, 0.0, 0.0, DT);
+        generator.park(xAngles);
+        for(int i = 0; i < 50; i++) generator.generate(0.0, 0.0, 0.0, DT);
+        for(int module = 0; module < xAngles.length; module++) {
+            assertEquals(0.0, generator.getModuleSpeed(module));
+            assertEquals(xAngles[module], generator.getModuleAngle(module), EPSILON);
+        }
+
+        // Any nonzero request releases the park
+        for(int i = 0; i < 50; i++) generator.generate(1.0, 0.0, 0.0, DT);
+        for(int module = 0; module < xAngles.length; module++) {
+            assertEquals(1.0, generator.getModuleSpeed(module), EPSILON);
+            assertEquals(0.0, generator.getModuleAngle(module), EPSILON);
+        }
+    }
+
+    @Test
+    void generateDoesNotAllocate() {
+        var generator = createGenerator();
+        runRequests(generator, 0, WARMUP_CALLS);
+
+        double bytesPerCall = AllocationCounter.measurePerCall(MEASURED_CALLS,
+            () -> runRequests(generator, WARMUP_CALLS, MEASURED_CALLS));
+        assertTrue(bytesPerCall < AllocationCounter.MAX_BYTES_PER_CALL,
+            "Allocated " + bytesPerCall + " bytes per call");
+    }
+
+    /**
+     * Generates setpoints for a request that sweeps around in direction and rotation. The sweep repeats every 1000
+     * calls, so warming up covers every input the measured calls see.
+     */
+    private static void runRequests(SwerveSetpointGenerator generator, int firstCall, int count) {
+        for(int i = firstCall; i < firstCall + count; i++) {
+            double t = (i % 1000) * DT;
+            generator.generate(3.0 * Math.cos(t), 3.0 * Math.sin(1.3 * t), 2.0 * Math.sin(0.7 * t), DT);
+        }
+    }
+
+    /** Tracks how much the module setpoints changed between consecutive generated setpoints. */
+    private static class ModuleTracker {
+        private final SwerveSetpointGenerator generator;
+        private final double[] lastVx = new double[MODULE_TRANSLATIONS.length];
+        private final double[] lastVy = new double[MODULE_TRANSLATIONS.length];
+        private final double[] lastSpeed = new double[MODULE_TRANSLATIONS.length];
+        private final double[] lastAngle = new double[MODULE_TRANSLATIONS.length];
+        /** The largest change in a module's velocity vector in the last step, in meters per second. */
+        double maxVelocityChange = 0.0;
+        /**
+         * The largest change in a moving module's direction in the last step, in radians. Reversals count as no
+         * steering, since the module can flip its drive direction instead.
+         */
+        double maxSteer = 0.0;
+
+        ModuleTracker(SwerveSetpointGenerator generator) {
+            this.generator = generator;
+        }
+
+        void update() {
+            maxVelocityChange = 0.0;
+            maxSteer = 0.0;
+            for(int module = 0; module < MODULE_TRANSLATIONS.length; module++) {
+                double speed = generator.getModuleSpeed(module);
+                double angle = generator.getModuleAngle(module);
+                double vx = speed * Math.cos(angle), vy = speed * Math.sin(angle);
+                maxVelocityChange = Math.max(maxVelocityChange,
+                    Math.hypot(vx - lastVx[module], vy - lastVy[module]));
+                // Stopped modules turn in place and aren't steering limited
+                if(speed > 0.0 && lastSpeed[module] > 0.0) {
+                    maxSteer = Math.max(maxSteer,
+                        Math.abs(Math.IEEEremainder(angle - lastAngle[module], Math.PI)));
+                }
+                lastVx[module] = vx;
+                lastVy[module] = vy;
+                lastSpeed[module] = speed;
+                lastAngle[module] = angle;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package frc.robot.util;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+
+/** Measures heap allocation on the current thread for allocation-free tests. */
+public final class AllocationCounter {
+    private static final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * The most bytes per call allocation-free code should measure. The smallest object is 16 bytes, so code that
+     * allocates on every call is well over this, while a one-off allocation from class loading or the JIT compiler
+     * spread over a few hundred calls isn't. This keeps the checks from needing a long warmup or an exact zero.
+     */
+    public static final double MAX_BYTES_PER_CALL = 1.0;
+
+    private AllocationCounter() {
+    }
+
+    /**
+     * Returns the bytes the current thread allocated while running the code, as the least of a few runs. Reading the
+     * allocation counter can allocate by itself on some JDKs, so that overhead is measured first and subtracted. The
+     * JIT compiler can also allocate on the thread once while it swaps in compiled code, which the other runs skip.
+     */
+    public static long measure(Runnable code) {
+        long overhead = Long.MAX_VALUE;
+        for(int i = 0; i < 3; i++) {
+            long start = threadBean.getCurrentThreadAllocatedBytes();
+            overhead = Math.min(overhead, threadBean.getCurrentThreadAllocatedBytes() - start);
+        }
+
+        long allocated = Long.MAX_VALUE;
+        for(int i = 0; i < 3; i++) {
+            long start = threadBean.getCurrentThreadAllocatedBytes();
+            code.run();
+            allocated = Math.min(allocated, threadBean.getCurrentThreadAllocatedBytes() - start - overhead);
+        }
+        return allocated;
+    }
+
+    /** Returns the bytes allocated per call over {@code calls} calls made by the code, like {@link #measure}. */
+    public static double measurePerCall(int calls, Runnable code) {
+        return measure(code) / (double) calls;
+    }
+}
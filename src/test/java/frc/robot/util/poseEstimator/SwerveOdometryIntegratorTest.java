@@ -0,0 +1,133 @@
+package frc.robot.util.poseEstimator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import frc.robot.util.AllocationCounter;
+import org.junit.jupiter.api.Test;
+
+class SwerveOdometryIntegratorTest {
+    private static final double[] MODULE_X = new double[] {
+        0.3, 0.3, -0.3, -0.3
+    };
+    private static final double[] MODULE_Y = new double[] {
+        0.3, -0.3, 0.3, -0.3
+    };
+    private static final double SAMPLE_PERIOD = 0.005;
+    private static final int WARMUP_SAMPLES = 500;
+    private static final int MEASURED_SAMPLES = 1_000;
+
+    @Test
+    void firstOrderUpdateDoesNotAllocate() {
+        assertUpdateDoesNotAllocate(false);
+    }
+
+    @Test
+    void secondOrderUpdateDoesNotAllocate() {
+        assertUpdateDoesNotAllocate(true);
+    }
+
+    @Test
+    void drivingStraightMovesForward() {
+        var drive = new SimulatedDrive(new SwerveOdometryIntegrator(MODULE_X, MODULE_Y, true));
+        drive.speedX = 2.0;
+        drive.omega = 0.0;
+        drive.slipEvery = 0;
+        drive.invalidEvery = 0;
+        drive.runAll(0, 200);
+
+        // The first sample only sets the reference positions
+        assertEquals(2.0 * SAMPLE_PERIOD * 199, drive.integrator.getX(), 1e-9);
+        assertEquals(0.0, drive.integrator.getY(), 1e-9);
+        assertEquals(0.0, drive.integrator.getTheta(), 1e-9);
+    }
+
+    @Test
+    void slowerGyroDoesNotFlagSlip() {
+        var drive = new SimulatedDrive(new SwerveOdometryIntegrator(MODULE_X, MODULE_Y, true));
+        drive.omega = 3.0;
+        drive.slipEvery = 0;
+        drive.invalidEvery = 0;
+        // A 200 Hz gyro read by 250 Hz odometry repeats a yaw every few samples
+        drive.samplePeriod = 1.0 / 250.0;
+        drive.gyroSamplePeriod = 1.0 / 200.0;
+        for(int i = 0; i < 1000; i++) {
+            drive.run(i);
+            assertEquals(0, drive.integrator.getSlippingModuleCount(), "Slipping modules at sample " + i);
+        }
+    }
+
+    @Test
+    void chassisRotatingAgainstGyroFlagsSlip() {
+        var drive = new SimulatedDrive(new SwerveOdometryIntegrator(MODULE_X, MODULE_Y, true));
+        drive.omega = 3.0;
+        drive.slipEvery = 0;
+        drive.invalidEvery = 0;
+        drive.samplePeriod = 1.0 / 250.0;
+        drive.gyroSamplePeriod = 1.0 / 200.0;
+        drive.gyroScale = 0.0;
+        int flaggedSamples = 0;
+        for(int i = 0; i < 1000; i++) {
+            drive.run(i);
+            if(drive.integrator.getSlippingModuleCount() == MODULE_X.length) flaggedSamples++;
+        }
+        assertTrue(flaggedSamples > 0, "The slide was never flagged");
+    }
+
+    private static void assertUpdateDoesNotAllocate(boolean secondOrder) {
+        var drive = new SimulatedDrive(new SwerveOdometryIntegrator(MODULE_X, MODULE_Y, secondOrder));
+        drive.runAll(0, WARMUP_SAMPLES);
+
+        double bytesPerUpdate = AllocationCounter.measurePerCall(MEASURED_SAMPLES,
+            () -> drive.runAll(WARMUP_SAMPLES, MEASURED_SAMPLES));
+        assertTrue(bytesPerUpdate < AllocationCounter.MAX_BYTES_PER_CALL,
+            "Allocated " + bytesPerUpdate + " bytes per update");
+    }
+
+    /**
+     * Feeds the integrator samples from a robot driving an arc, with periodic invalid modules and a slipping wheel so
+     * every path through the update is exercised.
+     */
+    private static class SimulatedDrive {
+        final SwerveOdometryIntegrator integrator;
+        double speedX = 1.5; // Meters per second
+        double omega = 1.0; // Radians per second
+        int slipEvery = 70;
+        int invalidEvery = 50;
+        double samplePeriod = SAMPLE_PERIOD; // Seconds
+        /** How often the gyro reports a new yaw, in seconds. Between reports it repeats its last yaw. */
+        double gyroSamplePeriod = SAMPLE_PERIOD;
+        /** The gyro's rotation as a fraction of the wheels', to simulate the chassis sliding. */
+        double gyroScale = 1.0;
+
+        private final double[] distancesMeters = new double[MODULE_X.length];
+        private final double[] anglesRad = new double[MODULE_X.length];
+        private final boolean[] moduleValid = new boolean[MODULE_X.length];
+
+        SimulatedDrive(SwerveOdometryIntegrator integrator) {
+            this.integrator = integrator;
+        }
+
+        /** Runs a number of consecutive samples, starting from a sample index. */
+        void runAll(int firstSampleIndex, int count) {
+            for(int i = firstSampleIndex; i < firstSampleIndex + count; i++) run(i);
+        }
+
+        void run(int sampleIndex) {
+            for(int module = 0; module < MODULE_X.length; module++) {
+                double moduleSpeedX = speedX - omega * MODULE_Y[module];
+                double moduleSpeedY = omega * MODULE_X[module];
+                double moduleSpeed = Math.hypot(moduleSpeedX, moduleSpeedY);
+                distancesMeters[module] += moduleSpeed * samplePeriod;
+                if(moduleSpeed > 1e-9) anglesRad[module] = Math.atan2(moduleSpeedY, moduleSpeedX);
+                moduleValid[module] = invalidEvery == 0 || (sampleIndex + module) % invalidEvery != 0;
+            }
+            if(slipEvery != 0 && sampleIndex % slipEvery == 0) distancesMeters[0] += 0.05;
+
+            double timestamp = sampleIndex * samplePeriod;
+            double gyroTimestamp = Math.floor(timestamp / gyroSamplePeriod + 1e-9) * gyroSamplePeriod;
+            integrator.update(timestamp, distancesMeters, anglesRad, moduleValid, true,
+                gyroScale * omega * gyroTimestamp);
+        }
+    }
+}
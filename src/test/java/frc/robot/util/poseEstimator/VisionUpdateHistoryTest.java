@@ -0,0 +1,197 @@
+package frc.robot.util.poseEstimator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Transform2d;
+import frc.robot.util.AllocationCounter;
+import frc.robot.util.geometry.MutablePose2d;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+
+class VisionUpdateHistoryTest {
+    private static final double EPSILON = 1e-9;
+
+    // Simulated robot loop: two cameras with MegaTag1 and MegaTag2 each, and 1.5 s of history
+    private static final double LOOP_PERIOD = 0.02;
+    private static final int MEASUREMENTS_PER_LOOP = 4;
+    private static final double HISTORY_DURATION = 1.5;
+    // Enough loops to fill and prune the history, so every path is run before and during measurement
+    private static final int WARMUP_LOOPS = 200;
+    private static final int MEASURED_LOOPS = 500;
+
+    @Test
+    void floorPositionFindsNewestUpdateAtOrBefore() {
+        var history = new VisionUpdateHistory(8);
+        history.add(1.0, Pose2d.kZero, Pose2d.kZero);
+        history.add(2.0, Pose2d.kZero, Pose2d.kZero);
+        history.add(3.0, Pose2d.kZero, Pose2d.kZero);
+
+        assertEquals(-1, history.floorPosition(0.5));
+        assertEquals(0, history.floorPosition(1.0));
+        assertEquals(1, history.floorPosition(2.5));
+        assertEquals(2, history.floorPosition(10.0));
+    }
+
+    @Test
+    void addDiscardsUpdatesAtOrAfterTimestamp() {
+        var history = new VisionUpdateHistory(8);
+        history.add(1.0, Pose2d.kZero, Pose2d.kZero);
+        history.add(2.0, Pose2d.kZero, Pose2d.kZero);
+        history.add(3.0, Pose2d.kZero, Pose2d.kZero);
+        history.add(2.0, new Pose2d(1.0, 0.0, Rotation2d.kZero), Pose2d.kZero);
+
+        assertEquals(2, history.size());
+        assertEquals(1.0, history.compensate(1, Pose2d.kZero).getX(), EPSILON);
+    }
+
+    @Test
+    void fullHistoryOverwritesOldestUpdate() {
+        var history = new VisionUpdateHistory(4);
+        for(int i = 0; i < 6; i++) {
+            history.add(i, Pose2d.kZero, Pose2d.kZero);
+        }
+
+        assertEquals(4, history.size());
+        assertEquals(2.0, history.getOldestTimestamp());
+
+        history.removeBefore(history.floorPosition(4.5));
+        assertEquals(2, history.size());
+        assertEquals(4.0, history.getOldestTimestamp());
+    }
+
+    @Test
+    void compensateMatchesPoseMath() {
+        var history = new VisionUpdateHistory(4);
+        var visionPose = new Pose2d(3.0, -1.0, Rotation2d.fromDegrees(170.0));
+        var odometryPose = new Pose2d(2.5, 0.5, Rotation2d.fromDegrees(-30.0));
+        history.add(1.0, visionPose, odometryPose);
+
+        var pose = new Pose2d(4.0, 1.5, Rotation2d.fromDegrees(60.0));
+        var expected = visionPose.transformBy(new Transform2d(odometryPose, pose));
+        var actual = history.compensate(0, pose);
+        assertEquals(expected.getX(), actual.getX(), EPSILON);
+        assertEquals(expected.getY(), actual.getY(), EPSILON);
+        assertEquals(expected.getRotation().getRadians(), actual.getRotation().getRadians(), EPSILON);
+    }
+
+    @Test
+    void simulatedLoopDoesNotAllocate() {
+        var loop = new HistoryLoop();
+        loop.runAll(0, WARMUP_LOOPS);
+
+        double bytesPerLoop = AllocationCounter.measurePerCall(MEASURED_LOOPS,
+            () -> loop.runAll(WARMUP_LOOPS, MEASURED_LOOPS));
+        assertTrue(bytesPerLoop < AllocationCounter.MAX_BYTES_PER_CALL,
+            "Allocated " + bytesPerLoop + " bytes per loop");
+    }
+
+    /** Checks the history tracks the same estimate as the {@code TreeMap} it replaced on the same simulated loop. */
+    @Test
+    void matchesTreeMap() {
+        var historyLoop = new HistoryLoop();
+        var treeMapLoop = new TreeMapLoop();
+        historyLoop.runAll(0, WARMUP_LOOPS + MEASURED_LOOPS);
+        treeMapLoop.runAll(0, WARMUP_LOOPS + MEASURED_LOOPS);
+
+        assertEquals(treeMapLoop.result.x, historyLoop.result.x, EPSILON);
+        assertEquals(treeMapLoop.result.y, historyLoop.result.y, EPSILON);
+        assertEquals(treeMapLoop.result.theta, historyLoop.result.theta, EPSILON);
+    }
+
+    /** One robot loop of vision updates, modeled on how {@link OdometryPoseEstimator} uses its history. */
+    private abstract static class SimulatedLoop {
+        final MutablePose2d result = new MutablePose2d();
+
+        /** Runs a number of consecutive loops, starting from a loop index. */
+        void runAll(int firstLoopIndex, int count) {
+            for(int i = firstLoopIndex; i < firstLoopIndex + count; i++) run(i);
+        }
+
+        void run(int loopIndex) {
+            double now = loopIndex * LOOP_PERIOD;
+            for(int i = 0; i < MEASUREMENTS_PER_LOOP; i++) {
+                double timestamp = now - 0.03 + i * 0.001;
+                // Odometry and vision poses that drift apart slowly, like a robot driving in a circle
+                double theta = timestamp * 0.5;
+                double odometryX = Math.cos(theta), odometryY = Math.sin(theta);
+                compensate(timestamp, odometryX, odometryY, theta);
+                add(timestamp, result.x + 0.01, result.y - 0.01, result.theta + 0.001, odometryX, odometryY, theta);
+            }
+            prune(now - HISTORY_DURATION);
+            compensate(now, Math.cos(now * 0.5), Math.sin(now * 0.5), now * 0.5);
+        }
+
+        /** Compensates an odometry pose with the newest update at or before the timestamp into the result. */
+        abstract void compensate(double timestamp, double x, double y, double theta);
+
+        abstract void add(double timestamp, double visionX, double visionY, double visionTheta, double odometryX,
+            double odometryY, double odometryTheta);
+
+        /** Removes updates that are no longer needed to compensate poses at or after the timestamp. */
+        abstract void prune(double oldestTimestamp);
+    }
+
+    private static class HistoryLoop extends SimulatedLoop {
+        private final VisionUpdateHistory history = new VisionUpdateHistory(512);
+
+        @Override
+        void compensate(double timestamp, double x, double y, double theta) {
+            int position = history.floorPosition(timestamp);
+            if(position < 0) {
+                result.set(x, y, theta);
+            } else {
+                history.compensate(position, x, y, theta, result);
+            }
+        }
+
+        @Override
+        void add(double timestamp, double visionX, double visionY, double visionTheta, double odometryX,
+            double odometryY, double odometryTheta) {
+            history.add(timestamp, visionX, visionY, visionTheta, odometryX, odometryY, odometryTheta);
+        }
+
+        @Override
+        void prune(double oldestTimestamp) {
+            history.removeBefore(history.floorPosition(oldestTimestamp));
+        }
+    }
+
+    /** The previous implementation: a map from timestamp to update, which boxes and allocates on every add. */
+    private static class TreeMapLoop extends SimulatedLoop {
+        private record VisionUpdate(Pose2d visionPose, Pose2d odometryPose) {
+        }
+
+        private final TreeMap<Double, VisionUpdate> updates = new TreeMap<>();
+
+        @Override
+        void compensate(double timestamp, double x, double y, double theta) {
+            Map.Entry<Double, VisionUpdate> entry = updates.floorEntry(timestamp);
+            if(entry == null) {
+                result.set(x, y, theta);
+                return;
+            }
+            var update = entry.getValue();
+            var pose = new Pose2d(x, y, new Rotation2d(theta));
+            result.set(update.visionPose().transformBy(new Transform2d(update.odometryPose(), pose)));
+            result.theta = Math.IEEEremainder(result.theta, 2 * Math.PI);
+        }
+
+        @Override
+        void add(double timestamp, double visionX, double visionY, double visionTheta, double odometryX,
+            double odometryY, double odometryTheta) {
+            updates.tailMap(timestamp, true).clear();
+            updates.put(timestamp, new VisionUpdate(new Pose2d(visionX, visionY, new Rotation2d(visionTheta)),
+                new Pose2d(odometryX, odometryY, new Rotation2d(odometryTheta))));
+        }
+
+        @Override
+        void prune(double oldestTimestamp) {
+            Double newestNeeded = updates.floorKey(oldestTimestamp);
+            if(newestNeeded != null) updates.headMap(newestNeeded, false).clear();
+        }
+    }
+}